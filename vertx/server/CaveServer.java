@@ -1,70 +1,212 @@
 package server;
 
 import io.vertx.core.*;
+import io.vertx.core.eventbus.MessageConsumer;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.StaticHandler;
+import io.vertx.micrometer.Label;
+import io.vertx.micrometer.MicrometerMetricsOptions;
+import io.vertx.micrometer.PrometheusScrapingHandler;
+import io.vertx.micrometer.VertxPrometheusOptions;
+import server.couch.BulkWriter;
+import server.couch.ChangeFeeds;
 import server.couch.Couch;
+import server.couch.CouchOptions;
+import server.couch.Cursor;
 import server.couch.Database;
 import server.couch.Design;
+import server.couch.RowStream;
 import server.couch.View;
+import server.couch.designs.network.Network;
+import server.couch.designs.network.TimeRange;
+import server.events.Event;
+import server.ingest.ExportStream;
+import server.ingest.Ingest;
+import server.ingest.JsonLines;
+import server.replay.Replay;
+import server.replay.ReplaySource;
+import server.replay.TextMessages;
+import server.store.EventLog;
+import server.store.EventStore;
+import server.timeline.Timeline;
+import server.timeline.Timelines;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Supplier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 public class CaveServer extends AbstractVerticle {
 
     Couch couchdb;
+    ChangeFeeds changes;
+    Timelines timelines;
+    JsonWriter writer;
+    EventStore store;
+    boolean lazyViews;
 
     /** todo technically a design document can have many views of different types. We'll cross that bridge when the need arises... */
     static final String DefaultView = "events";
 
-    public static void main(String[] args) {
-        JsonObject config = new JsonObject()
-                .put("host", "localhost")
-                .put("port", 5984)
-                .put("db", "sensors")
-                .put("credentials", new JsonObject()
-                        .put("name", "admin")
-                        .put("password", "Preceptor"));
+    /** The number of events in a page when the client doesn't ask for a limit */
+    static final int DefaultLimit = 10;
+
+    /** The largest page of events a client can request */
+    static final int MaxLimit = 10000;
+
+    /** Pages up to this size are buffered, so clients asking for the same page at once share one view query.
+     * Larger pages are streamed to each client separately, since holding them in memory costs more than it saves. */
+    static final int SharedLimit = 1000;
+
+    /** The most missions which can be merged in one request */
+    static final int MaxMissions = 64;
+
+    /** The number of missions queried at once when merging, unless the config says otherwise */
+    static final int DefaultFanOut = 8;
+
+    /** Compression is cheap at the low levels, and the higher ones don't shrink JSON much further */
+    static final int DefaultCompressionLevel = 3;
+
+    /** Where the configuration is read from when no path is given on the command line */
+    static final String DefaultConfig = "vertx/server/config/server.json";
+
+    public static void main(String[] args) throws IOException {
 
+        // read the configuration, falling back on the defaults if there isn't one
+        String path = args.length > 0 ? args[0] : DefaultConfig;
+        JsonObject config = Files.exists( Paths.get(path) )
+                ? new JsonObject( new String( Files.readAllBytes( Paths.get(path) ), StandardCharsets.UTF_8 ) )
+                : new JsonObject()
+                        .put("port", 43210)
+                        .put("couchdb", new JsonObject()
+                                .put("host", "localhost")
+                                .put("port", 5984)
+                                .put("db", "sensors")
+                                .put("credentials", new JsonObject()
+                                        .put("name", "admin")
+                                        .put("password", "Preceptor")));
+
+        // metrics have to be enabled before Vert.x starts, they are scraped from /metrics
+        VertxOptions vertxOptions = new VertxOptions();
+        if (config.getBoolean("metrics", true))
+            vertxOptions.setMetricsOptions( new MicrometerMetricsOptions()
+                    .setPrometheusOptions( new VertxPrometheusOptions().setEnabled(true) )
+                    .addLabels( Label.REMOTE, Label.HTTP_CODE )
+                    .setEnabled(true) );
+        Vertx vertx = Vertx.vertx( vertxOptions );
+
+        // one instance per core unless told otherwise
+        int instances = config.getInteger("instances", 0);
+        if (instances < 1)
+            instances = Runtime.getRuntime().availableProcessors();
+
+        // every instance listens on the same port, and Vert.x balances connections between their event loops
         DeploymentOptions options = new DeploymentOptions()
-                .setConfig( config );
-        Vertx vertx = Vertx.vertx();
-        vertx.deployVerticle(new CaveServer(), options);
+                .setConfig( config )
+                .setInstances( instances );
+
+        // the instances share one hub of changes feeds, so it's deployed first, and only once
+        vertx.deployVerticle(ChangeVerticle.class.getName(), new DeploymentOptions().setConfig( config ), hub -> {
+            if (hub.succeeded())
+                vertx.deployVerticle(CaveServer.class.getName(), options);
+            else {
+                hub.cause().printStackTrace();
+                vertx.close();
+            }
+        });
     }
 
     public void start(Promise<Void> promise) {
 
         // Create the server
-        HttpServer server = vertx.createHttpServer();
+        // compress responses for clients which accept it, windows of events are large and repetitive
+        HttpServer server = vertx.createHttpServer( new HttpServerOptions()
+                .setCompressionSupported( config().getBoolean("compression", true) )
+                .setCompressionLevel( config().getInteger("compressionLevel", DefaultCompressionLevel) ) );
         Router router = Router.router(vertx);
 
-        // connect to couchdb and obtain a token
-        this.couchdb = new Couch( vertx,
-                config().getString("host"),
-                config().getInteger("port") );
-        JsonObject cred = config().getJsonObject("credentials");
+        // each instance gets its own client on its own event loop, but they share a session token
+        JsonObject couch = config().getJsonObject("couchdb");
+        this.couchdb = new Couch( vertx, new CouchOptions(couch) );
+        this.changes = new ChangeFeeds(vertx);
+        this.timelines = new Timelines(vertx, changes, Timelines.DefaultIdle);
+        this.writer = new JsonWriter(vertx, config().getInteger("encodeThreshold", JsonWriter.DefaultThreshold));
+        this.store = new EventStore(vertx, config().getString("store", EventStore.DefaultPath));
+        this.lazyViews = config().getBoolean("lazyViews", true);
+        JsonObject cred = couch.getJsonObject("credentials");
         couchdb.getSession(
                 cred.getString("name"),
                 cred.getString("password") )
+        .compose( token -> store.load().map(token) )
         .onSuccess( token -> { // TODO really the user should log in with their own credentials.
 
-            // Build the routes if we can authenticate
+            // Build the routes if we can authenticate, timing everything but the long lived sockets
+            RouteMetrics metrics = new RouteMetrics();
             router.route()
                     .path("/api/missions")
+                    .handler( metrics )
                     .handler( this::getMissions );
+            router.route()
+                    .path("/api/missions/product/:product")
+                    .handler( metrics )
+                    .handler( this::getMerged );
             router.route()
                     .path("/api/mission/:mission")
+                    .handler( metrics )
                     .handler( this::getProducts );
             router.route()
                     .path("/api/mission/:mission/event/:event")
+                    .handler( metrics )
                     .handler( this::getEvent );
             router.route()
                     .path("/api/mission/:mission/product/:product")
+                    .handler( metrics )
                     .handler( this::getEvents );
+            router.route()
+                    .path("/api/mission/:mission/product/:product/window")
+                    .handler( metrics )
+                    .handler( this::getRecent );
+            router.route()
+                    .method(HttpMethod.POST)
+                    .path("/api/mission/:mission/import")
+                    .handler( metrics )
+                    .handler( this::postImport );
+            router.route()
+                    .method(HttpMethod.GET)
+                    .path("/api/mission/:mission/export")
+                    .handler( metrics )
+                    .handler( this::getExport );
+            router.route()
+                    .method(HttpMethod.POST)
+                    .path("/api/mission/:mission/archive")
+                    .handler( metrics )
+                    .handler( this::postArchive );
+            router.route()
+                    .path("/api/mission/:mission/live")
+                    .handler( this::getLive );
+            router.route()
+                    .path("/api/mission/:mission/replay")
+                    .handler( this::getReplay );
+
+            router.route()
+                    .path("/metrics")
+                    .handler( PrometheusScrapingHandler.create() );
 
             // pass every other get request to the static handler
             StaticHandler handler = StaticHandler.create()
@@ -72,9 +214,12 @@ public class CaveServer extends AbstractVerticle {
                     .setIncludeHidden(false)
                     .setFilesReadOnly(false);
             router.route().method(HttpMethod.GET).handler(handler);
-            server.requestHandler(router).listen(43210); // TODO put this in the configuration
-
-            promise.complete();
+            server.requestHandler(router).listen(config().getInteger("port", 43210), listening -> {
+                if (listening.succeeded())
+                    promise.complete();
+                else
+                    promise.fail( listening.cause() );
+            });
         })
 
         // TODO add a Error page with Admin/Developer contacts
@@ -87,7 +232,7 @@ public class CaveServer extends AbstractVerticle {
         response.putHeader("content-type", "Application/json");
 
         // get a list of missions and send it to the client
-        couchdb.getDatabases().onSuccess(json -> response.end(json.toString()) )
+        couchdb.getDatabases().onSuccess( missions -> writer.send(response, missions) )
 
         // or tell the client what went wrong.
         .onFailure( error -> response.end(error.getMessage()) ); // context.fail( error );
@@ -103,7 +248,7 @@ public class CaveServer extends AbstractVerticle {
 
         Database mission = new Database(couchdb, umi);
         mission.getDesigns()
-        .onSuccess( json -> response.end(json.toString()) )
+        .onSuccess( designs -> writer.send(response, designs) )
         .onFailure( error -> response.end(error.getMessage()) );
     }
 
@@ -117,7 +262,7 @@ public class CaveServer extends AbstractVerticle {
 
         Database mission = new Database(couchdb, umi);
         mission.getDoc( event )
-                .onSuccess( json -> response.end(json.toString()) )
+                .onSuccess( doc -> writer.send(response, doc) )
                 .onFailure( error -> response.end(error.getMessage()) );
     }
 
@@ -129,17 +274,511 @@ public class CaveServer extends AbstractVerticle {
         String umi = request.getParam("mission");
         String product = request.getParam("product");
 
-        Database mission = new Database(couchdb, umi);
-        Design design = new Design(couchdb, mission.getName(), product);
-        View view = design.getView(DefaultView);
-        view.getDocs( "\"\"", 10 )
-        .onSuccess( json -> response.end(json.toString()) )
-        .onFailure( error -> {
+        // a time window is streamed in its entirety
+        if (request.getParam("from")!=null || request.getParam("to")!=null) {
+            getWindow( context );
+            return;
+        }
+
+        // otherwise parse the paging parameters
+        Cursor after;
+        int limit;
+        try {
+            String token = request.getParam("after");
+            after = (token==null) ? null : Cursor.decode(token);
+            String count = request.getParam("limit");
+            limit = (count==null) ? DefaultLimit : Integer.parseInt(count);
+            if (limit < 1 || MaxLimit < limit)
+                throw new IllegalArgumentException("limit must be between 1 and "+MaxLimit);
+        } catch (IllegalArgumentException error) {
+            response.setStatusCode(400).end(error.getMessage());
+            return;
+        }
+
+        View view = getEventView(umi, product);
+        if (limit > SharedLimit) {
+            streamRows( view.streamPage( after, limit ), limit, context );
+            return;
+        }
+
+        // the page may be shared with other requests for it, so it is copied into the response rather than modified
+        response.putHeader("Vary", "Accept");
+        view.getPage( after, limit )
+                .onSuccess( page -> {
+                    JsonArray rows = page.getJsonArray("rows", new JsonArray());
+                    JsonObject json;
+                    if (Columns.accepts(request)) {
+                        response.putHeader("content-type", Columns.MediaType);
+                        json = Columns.of(rows);
+                    } else
+                        json = new JsonObject().put("rows", rows);
+                    if (page.containsKey("next"))
+                        json.put("next", page.getString("next"));
+                    writer.send(response, json);
+                })
+                .onFailure( error -> response.end(error.getMessage()) );
+    }
+
+    /** Streams all events of a product between the 'from' and 'to' epoch milliseconds, optionally only from one 'source'.
+     * An archived mission is read from its local log, found by a binary search of the mapped times, rather than CouchDB,
+     * as long as the window ends within the log; a window reaching past it is read from the view. */
+    public void getWindow( RoutingContext context ) {
+        HttpServerResponse response = context.response();
+        response.putHeader( "content-type", "Application/json");
+
+        HttpServerRequest request = context.request();
+        String umi = request.getParam("mission");
+        String product = request.getParam("product");
+
+        TimeRange range;
+        try {
+            String from = request.getParam("from");
+            String to = request.getParam("to");
+            if (from==null || to==null)
+                throw new IllegalArgumentException("a time window needs both 'from' and 'to'");
+            range = new TimeRange( Long.parseLong(from), Long.parseLong(to), request.getParam("source") );
+        } catch (IllegalArgumentException error) {
+            response.setStatusCode(400).end(error.getMessage());
+            return;
+        }
+
+        getEventLog(umi, product).onSuccess( log -> {
+            if (log!=null && range.getTo() <= log.getLast()) {
+                sendEvents( log.read( range.getFrom(), range.getTo(), range.getSource() ), context );
+                return;
+            }
+
+            View view = getEventView(umi, product);
+            streamRows( range.stream(view), Integer.MAX_VALUE, context );
+        });
+    }
+
+    /** Merges the events of several missions in a time window into one list in [stamp, source] order.
+     * The missions are a comma separated 'missions' parameter, and the window is 'from' and 'to' epoch milliseconds
+     * with an optional 'source', as for a single mission. Each row says which 'mission' it came from.
+     * The missions are queried at the same time, a bounded number at once, so it takes about as long as the slowest.
+     * A mission which can't be read doesn't spoil the rest, it is listed in 'errors' instead. */
+    public void getMerged( RoutingContext context ) {
+        HttpServerResponse response = context.response();
+        response.putHeader( "content-type", "Application/json");
+
+        HttpServerRequest request = context.request();
+        String product = request.getParam("product");
+
+        List<String> missions;
+        TimeRange range;
+        try {
+            String list = request.getParam("missions");
+            String from = request.getParam("from");
+            String to = request.getParam("to");
+            if (list==null || from==null || to==null)
+                throw new IllegalArgumentException("merging needs 'missions', 'from' and 'to'");
+            missions = new ArrayList<>( new LinkedHashSet<>( Arrays.asList( list.split(",") ) ) );
+            missions.removeIf( String::isEmpty );
+            if (missions.isEmpty() || missions.size() > MaxMissions)
+                throw new IllegalArgumentException("between 1 and "+MaxMissions+" missions can be merged");
+            range = new TimeRange( Long.parseLong(from), Long.parseLong(to), request.getParam("source") );
+        } catch (IllegalArgumentException error) {
+            response.setStatusCode(400).end(error.getMessage());
+            return;
+        }
+
+        List<Supplier<Future<JsonObject>>> queries = new ArrayList<>();
+        for (String umi : missions)
+            queries.add( () -> range.query( getEventView(umi, product) ) );
+
+        FanOut.bounded( queries, config().getInteger("fanOut", DefaultFanOut) ).onSuccess( results -> {
+            List<JsonArray> sorted = new ArrayList<>();
+            JsonObject errors = new JsonObject();
+            for (int n = 0; n < results.size(); n++) {
+                String umi = missions.get(n);
+                Future<JsonObject> result = results.get(n);
+                if (result.failed())
+                    errors.put( umi, String.valueOf( result.cause().getMessage() ) );
+                else if (result.result().containsKey("error"))
+                    errors.put( umi, result.result().getString("error") );
+                else {
+                    // the rows may be shared with other requests for the same page, so each is tagged on a copy
+                    // of its top level, leaving the key and value it shares unchanged
+                    JsonArray rows = new JsonArray();
+                    result.result().getJsonArray("rows", new JsonArray()).forEach( row -> rows.add(
+                            new JsonObject( new LinkedHashMap<>( ((JsonObject)row).getMap() ) ).put("mission", umi) ) );
+                    sorted.add( rows );
+                }
+            }
+
+            response.setChunked(true);
+            response.write("{\"rows\":[");
+            writeRows( FanOut.merge( sorted, FanOut.ByKey ), response, true, () ->
+                    response.end( "],\"errors\":" + errors.encode() + "}" ) );
+        });
+    }
+
+    /** Writes the rows as a comma separated list, waiting for the client whenever it falls behind */
+    void writeRows( Iterator<JsonObject> rows, HttpServerResponse response, boolean first, Runnable done ) {
+        if (response.closed())
+            return;
+        while (rows.hasNext()) {
+            response.write( first ? "" : "," );
+            response.write( rows.next().encode() );
+            first = false;
+            if (response.writeQueueFull()) {
+                response.drainHandler( v -> writeRows( rows, response, false, done ) );
+                return;
+            }
+        }
+        done.run();
+    }
+
+    /** Gets the events in the window ending at 'time' and lasting 'duration' milliseconds.
+     * Recent windows are served from the server's buffered timeline, and anything older comes from the mission's
+     * local log if it has been archived, or CouchDB if it hasn't. */
+    public void getRecent( RoutingContext context ) {
+        HttpServerResponse response = context.response();
+        response.putHeader( "content-type", "Application/json");
+
+        HttpServerRequest request = context.request();
+        String umi = request.getParam("mission");
+        String product = request.getParam("product");
+
+        long time, duration;
+        try {
+            String t = request.getParam("time");
+            String d = request.getParam("duration");
+            if (t==null || d==null)
+                throw new IllegalArgumentException("a window needs both 'time' and 'duration'");
+            time = Long.parseLong(t);
+            duration = Long.parseLong(d);
+            if (duration < 0)
+                throw new IllegalArgumentException("duration can't be negative");
+        } catch (IllegalArgumentException error) {
+            response.setStatusCode(400).end(error.getMessage());
+            return;
+        }
+
+        // use the buffer if it has everything in the window
+        Timeline timeline = timelines.get(umi, product);
+        if (timeline!=null && timeline.covers(time - duration)) {
+            JsonArray rows = timeline.window(time, duration);
+            response.putHeader("Vary", "Accept");
+            if (Columns.accepts(request))
+                writer.send( response.putHeader("content-type", Columns.MediaType), Columns.of(rows) );
+            else
+                writer.send( response, new JsonObject().put("rows", rows) );
+            return;
+        }
+
+        getEventLog(umi, product).onSuccess( log -> {
+            if (log!=null && time <= log.getLast()) {
+                sendEvents( log.read( time - duration, time, null ), context );
+                return;
+            }
+
+            View view = getEventView(umi, product);
+            TimeRange range = new TimeRange(time - duration, time);
+            streamRows( range.stream(view), Integer.MAX_VALUE, context );
+        });
+    }
+
+    /** Upgrades the request to a WebSocket, then pushes every event added to the mission to the client as it happens.
+     * Each message is a single event document. Every socket watching a mission shares the same changes feed, so a
+     * slow client can't hold the others up; events are dropped while its socket is backed up. */
+    public void getLive( RoutingContext context ) {
+        HttpServerRequest request = context.request();
+        String umi = request.getParam("mission");
+
+        ServerWebSocket socket = request.upgrade();
+        MessageConsumer<JsonObject> consumer = changes.subscribe( umi, message -> {
+            JsonObject change = message.body();
+
+            // only forward events, not design documents or deletions
+            JsonObject doc = change.getJsonObject("doc");
+            if (doc==null || change.getBoolean("deleted", false) || change.getString("id").startsWith("_design/"))
+                return;
+
+            if (!socket.writeQueueFull())
+                socket.writeTextMessage( doc.encode() );
+        });
+        socket.closeHandler( v -> changes.unsubscribe( umi, consumer ) );
+    }
+
+    /** Upgrades the request to a WebSocket, then plays the mission's network events back in [stamp, source] order.
+     * Each event is sent as its view row once the playhead reaches it, and every change in playback is sent as a
+     * message with a 'type' of 'status' giving the playhead 'time', 'speed', and whether it is 'paused' or 'ended'.
+     * Playback starts at the 'from' epoch milliseconds or the first event, at 'speed' times real time, which is a
+     * positive number or 'max' for as fast as the client takes them, and held if 'paused' is true. The client controls
+     * it with messages of the same 'type's:
+     * <pre>
+     *   {"type":"play"}  {"type":"pause"}  {"type":"seek","time":1600000000000}  {"type":"speed","speed":10}
+     * </pre>
+     * An archived mission is read from its local log, then from the view past the log's last event, and anything else
+     * a page of the view at a time. */
+    public void getReplay( RoutingContext context ) {
+        HttpServerRequest request = context.request();
+        String umi = request.getParam("mission");
+
+        Long from;
+        double speed;
+        try {
+            String f = request.getParam("from");
+            from = f==null ? null : Long.parseLong(f);
+            speed = speed( request.getParam("speed") );
+        } catch (IllegalArgumentException error) {
+            context.response().setStatusCode(400).end(error.getMessage());
+            return;
+        }
+
+        int pageSize = config().getInteger("replayPageSize", Replay.DefaultPageSize);
+        // an archived mission plays from its log, then from the view for anything added since it was archived
+        Future<EventLog> archived = getEventLog(umi, Network.DESIGN_NAME);
+        ReplaySource view = ReplaySource.of( getEventView(umi, Network.DESIGN_NAME), pageSize );
+        ReplaySource source = time -> archived.compose( log -> log==null
+                ? view.seek(time)
+                : ReplaySource.of( log, view, pageSize ).seek(time) );
+
+        ServerWebSocket socket = request.upgrade();
+        Replay replay = new Replay( vertx, source, new TextMessages(socket) ).speed(speed);
+        if ("true".equals( request.getParam("paused") ))
+            replay.pause();
+        replay.seek(from);
+
+        socket.textMessageHandler( text -> {
+            try {
+                JsonObject message = new JsonObject(text);
+                switch (message.getString("type", "")) {
+                    case "play":
+                        replay.play();
+                        break;
+                    case "pause":
+                        replay.pause();
+                        break;
+                    case "seek":
+                        Long time = message.getLong("time");
+                        if (time==null)
+                            throw new IllegalArgumentException("seek needs a 'time'");
+                        replay.seek(time);
+                        break;
+                    case "speed":
+                        Object value = message.getValue("speed");
+                        replay.speed( speed( value==null ? null : value.toString() ) );
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown message type '" + message.getString("type") + "'");
+                }
+            } catch (RuntimeException error) {
+                socket.writeTextMessage( new JsonObject()
+                        .put("type", "error")
+                        .put("message", String.valueOf( error.getMessage() ))
+                        .encode() );
+            }
+        });
+        socket.closeHandler( v -> replay.close() );
+    }
+
+    /** @return a replay speed, which is a positive multiple of real time or 'max', and real time when missing */
+    static double speed( String speed ) {
+        if (speed==null)
+            return 1;
+        if ("max".equals(speed))
+            return Replay.Max;
+        double value = Double.parseDouble(speed);
+        if (!(value > 0) || Double.isInfinite(value))
+            throw new IllegalArgumentException("speed must be a positive number or 'max'");
+        return value;
+    }
+
+    /** Forwards view rows to the client as they are parsed, wrapped in an object like the CouchDB response.
+     * Any row past the limit is withheld, and instead given to the client as the 'next' cursor.
+     * The view stream is paused whenever the client can't keep up. */
+    void streamRows( RowStream rows, int limit, RoutingContext context ) {
+        HttpServerResponse response = context.response();
+        response.putHeader("Vary", "Accept");
+        if (Columns.accepts( context.request() )) {
+            packRows( rows, limit, response );
+            return;
+        }
+        response.setChunked(true);
+
+        // we don't write anything until the first row so we can still report errors from couch
+        boolean[] started = {false};
+        int[] count = {0};
+        String[] next = {null};
+        rows.handler( row -> {
+            if (count[0]++ >= limit) {
+                next[0] = Cursor.of(row).encode();
+                return;
+            }
+
+            response.write( started[0] ? "," : "{\"rows\":[" );
+            response.write( row.encode() );
+            started[0] = true;
+
+            if (response.writeQueueFull()) {
+                rows.pause();
+                response.drainHandler( v -> rows.resume() );
+            }
+        });
+        rows.endHandler( v -> {
+            response.write( started[0] ? "]" : "{\"rows\":[]" );
+            if (next[0]!=null)
+                response.write( ",\"next\":\"" + next[0] + "\"" );
+            response.end( "}" );
+        });
+        rows.exceptionHandler( error -> {
+            if (!started[0])
                 response.end(error.getMessage());
-        } );
+            else
+                response.close(); // the client will see a truncated response
+        });
+    }
+
+    /** Loads newline delimited JSON documents into a mission, creating it if need be, e.g. an export of another one.
+     * The body is parsed as it arrives and written in batches, and reading it is paused whenever CouchDB falls behind.
+     * Documents keep the revisions they have unless 'new_edits' is true, which is needed for documents without one.
+     * Responds with how many documents were written and rejected, e.g. for conflicts, once the whole body is loaded. */
+    public void postImport( RoutingContext context ) {
+        HttpServerRequest request = context.request();
+        HttpServerResponse response = context.response();
+        response.putHeader( "content-type", "Application/json");
+        String umi = request.getParam("mission");
+        boolean newEdits = "true".equals( request.getParam("new_edits") );
+
+        // hold the body until the mission is ready for it
+        request.pause();
+        couchdb.getDatabase(umi)
+                .recover( missing -> couchdb.putDatabase(umi) )
+                .onFailure( error -> {
+                    discard(request);
+                    response.setStatusCode(502).end(error.getMessage());
+                })
+                .onSuccess( mission -> {
+                    BulkWriter bulk = mission.getWriter().setNewEdits(newEdits);
+                    Ingest.run( new JsonLines(request), bulk ).onComplete( imported -> {
+                        if (imported.succeeded()) {
+                            writer.send(response, imported.result());
+                            return;
+                        }
+                        // a bad line is the client's fault, anything else is CouchDB's
+                        discard(request);
+                        response.setStatusCode( imported.cause() instanceof IllegalArgumentException ? 400 : 502 )
+                                .end( bulk.toJson().put("error", imported.cause().getMessage()).encode() );
+                    });
+                });
+    }
+
+    /** Reads and drops the rest of a request body we've stopped reading, so the connection can be reused */
+    static void discard( HttpServerRequest request ) {
+        if (request.isEnded())
+            return;
+        request.handler( buffer -> {} );
+        request.resume();
+    }
+
+    /** Streams every document in a mission as newline delimited JSON, which postImport can load into another.
+     * The documents are read a page at a time only as fast as the client takes them. If reading fails part way the
+     * connection is closed, so a truncated export can't be mistaken for a complete one. */
+    public void getExport( RoutingContext context ) {
+        HttpServerResponse response = context.response();
+        String umi = context.request().getParam("mission");
+
+        couchdb.getDatabase(umi)
+                .onFailure( error -> response.setStatusCode(404).end(error.getMessage()) )
+                .onSuccess( mission -> {
+                    response.putHeader("content-type", JsonLines.MediaType)
+                            .putHeader("content-disposition", "attachment; filename=\"" + umi + ".ndjson\"")
+                            .setChunked(true);
+                    new ExportStream(mission).pipe().endOnFailure(false).to( response, exported -> {
+                        if (exported.succeeded())
+                            return;
+                        if (!response.headWritten())
+                            response.setStatusCode(502).end(exported.cause().getMessage());
+                        else
+                            response.close();
+                    });
+                });
+    }
+
+    /** @return the events view of a mission's product, which doesn't wait on index updates if 'lazyViews' is set.
+     * Viewers get the newest events from the changes feed, so it's better to answer quickly from the index as it
+     * stands than to hold them up while CouchDB indexes a bulk load. */
+    View getEventView(String umi, String product) {
+        View view = new Design(couchdb, umi, product).getView(DefaultView);
+        return lazyViews ? view.lazy() : view;
+    }
+
+    /** @return the mission's archived events if it has been archived and the product is the network events, or null.
+     * Events added since the mission was archived aren't in the log, so only requests ending by its last event are
+     * answered from it. A log which can't be opened is left to the view as well. */
+    Future<EventLog> getEventLog(String umi, String product) {
+        if (!Network.DESIGN_NAME.equals(product))
+            return Future.succeededFuture();
+        return store.get(umi).recover( unreadable -> Future.succeededFuture() );
+    }
+
+    /** Sends archived events as view rows, in columns or as a list written as fast as the client takes it */
+    void sendEvents( Iterator<Event> events, RoutingContext context ) {
+        HttpServerResponse response = context.response();
+        response.putHeader("Vary", "Accept");
+        Iterator<JsonObject> rows = new Iterator<JsonObject>() {
+            @Override
+            public boolean hasNext() { return events.hasNext(); }
+
+            @Override
+            public JsonObject next() { return events.next().toRow(); }
+        };
+
+        if (Columns.accepts( context.request() )) {
+            Columns columns = new Columns();
+            rows.forEachRemaining( columns::add );
+            writer.send( response.putHeader("content-type", Columns.MediaType), columns.toJson() );
+            return;
+        }
+        response.setChunked(true);
+        response.write("{\"rows\":[");
+        writeRows( rows, response, true, () -> response.end("]}") );
+    }
+
+    /** Copies the mission's network events into a local log, which time windows are then served from.
+     * Responds with the number of events and the times they span once the log is complete, or 409 if the mission is
+     * already being archived. */
+    public void postArchive( RoutingContext context ) {
+        HttpServerResponse response = context.response();
+        response.putHeader( "content-type", "Application/json");
+        String umi = context.request().getParam("mission");
+
+        store.archive( couchdb, umi ).onComplete( archived -> {
+            if (archived.succeeded())
+                writer.send( response, archived.result() );
+            else
+                response.setStatusCode( archived.cause() instanceof IllegalStateException ? 409 : 502 )
+                        .end( String.valueOf( archived.cause().getMessage() ) );
+        });
+    }
+
+    /** Collects the view rows into columns, then sends them all at once, since no column is complete until the end.
+     * As with streamRows, any row past the limit is given to the client as the 'next' cursor. */
+    void packRows( RowStream rows, int limit, HttpServerResponse response ) {
+        Columns columns = new Columns();
+        String[] next = {null};
+        rows.handler( row -> {
+            if (columns.size() >= limit)
+                next[0] = Cursor.of(row).encode();
+            else
+                columns.add(row);
+        });
+        rows.endHandler( v -> {
+            JsonObject json = columns.toJson();
+            if (next[0]!=null)
+                json.put("next", next[0]);
+            writer.send( response.putHeader("content-type", Columns.MediaType), json );
+        });
+        rows.exceptionHandler( error -> response.end(error.getMessage()) );
     }
 
     public void stop(Promise<Void> promise) {
+        this.timelines.close();
+        this.changes.close();
+        this.store.close();
         this.couchdb.deleteSession()
                 .onSuccess( promise::complete )
                 .onFailure( promise::fail );
@@ -0,0 +1,39 @@
+package server;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonObject;
+import server.couch.ChangeHub;
+import server.couch.Couch;
+import server.couch.CouchOptions;
+
+/** Owns the one ChangeHub of the Vert.x instance, so each mission being watched has a single changes feed however
+ * many CaveServer instances are serving it. It is deployed once, before the servers, which subscribe through
+ * ChangeFeeds. It takes the same config as the servers, and shares their CouchDB session.
+ * @author casey */
+public class ChangeVerticle extends AbstractVerticle {
+
+    Couch couchdb;
+    ChangeHub hub;
+
+    @Override
+    public void start(Promise<Void> promise) {
+        JsonObject couch = config().getJsonObject("couchdb");
+        this.couchdb = new Couch( vertx, new CouchOptions(couch) );
+        JsonObject cred = couch.getJsonObject("credentials");
+        couchdb.getSession(
+                cred.getString("name"),
+                cred.getString("password") )
+        .onSuccess( token -> {
+            this.hub = new ChangeHub(couchdb).listen();
+            promise.complete();
+        })
+        .onFailure( promise::fail );
+    }
+
+    @Override
+    public void stop() {
+        if (hub!=null)
+            hub.close();
+    }
+}
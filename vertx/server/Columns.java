@@ -0,0 +1,152 @@
+package server;
+
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import server.couch.designs.network.TimeRange;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Packs view rows into columns, for clients which would rather not download every field name with every event.
+ * Clients ask for it with an Accept header of application/vnd.cave.columns+json, or a format=columns parameter.
+ * The result is still JSON, but each field of the row values becomes one array:
+ * <pre>
+ * { "count": 3,
+ *   "id": ["...", "...", "..."],
+ *   "time": { "base": 1596240000000, "delta": [0, 250, 1000] },
+ *   "stamp": [null, null, "00100"],
+ *   "source": { "dict": ["s1", "s2"], "index": [0, 1, 0] },
+ *   "angle": [92.5, 45, null], ... }
+ * </pre>
+ * Each time is given as the difference from the previous one. Stamps are null when they are just the ISO string of
+ * the time, as the simulator makes them. The repetitive source, target and class fields are indexes into a dictionary,
+ * and any other field gets a plain array with null where a row doesn't have it.
+ * @author casey */
+public class Columns {
+
+    public static final String MediaType = "application/vnd.cave.columns+json";
+
+    /** The fields with few distinct values, which are sent as indexes into a dictionary */
+    static final String[] Dictionary = { "source", "target", "class" };
+
+    int count = 0;
+    JsonArray ids = new JsonArray();
+    Long base = null;
+    long last = 0;
+    JsonArray deltas = new JsonArray();
+    JsonArray stamps = new JsonArray();
+    boolean stamped = false;
+    Map<String, Dict> dicts = new LinkedHashMap<>();
+    Map<String, JsonArray> values = new LinkedHashMap<>();
+
+    /** the distinct values of a field, and the index of each row's value */
+    static class Dict {
+        Map<Object, Integer> indexes = new HashMap<>();
+        JsonArray dict = new JsonArray();
+        JsonArray index = new JsonArray();
+
+        void add(Object value) {
+            if (value==null) {
+                index.addNull();
+                return;
+            }
+            Integer at = indexes.get(value);
+            if (at==null) {
+                at = dict.size();
+                indexes.put(value, at);
+                dict.add(value);
+            }
+            index.add(at);
+        }
+    }
+
+    public Columns() {
+        for (String field : Dictionary)
+            dicts.put(field, new Dict());
+    }
+
+    /** @return whether the client asked for columns rather than rows */
+    public static boolean accepts(HttpServerRequest request) {
+        if ("columns".equals( request.getParam("format") ))
+            return true;
+        String accept = request.getHeader("Accept");
+        return accept!=null && accept.contains(MediaType);
+    }
+
+    /** @return the rows packed into columns */
+    public static JsonObject of(JsonArray rows) {
+        Columns columns = new Columns();
+        rows.forEach( row -> columns.add( (JsonObject)row ) );
+        return columns.toJson();
+    }
+
+    /** Adds a view row to the bottom of the columns */
+    public void add(JsonObject row) {
+        JsonObject value = row.getJsonObject("value", new JsonObject());
+        ids.add( row.getValue("id") );
+
+        Object time = value.getValue("time");
+        if (time instanceof Number) {
+            long t = ((Number)time).longValue();
+            if (base==null)
+                base = last = t;
+            deltas.add( t - last );
+            last = t;
+        } else
+            deltas.addNull();
+
+        // only send stamps which can't be made from the time
+        Object stamp = value.getValue("stamp");
+        if (stamp!=null && time instanceof Number && stamp.equals( TimeRange.stamp(((Number)time).longValue()) ))
+            stamps.addNull();
+        else {
+            stamps.add( stamp );
+            stamped |= stamp!=null;
+        }
+
+        for (Map.Entry<String, Dict> dict : dicts.entrySet())
+            dict.getValue().add( value.getValue(dict.getKey()) );
+
+        for (Map.Entry<String, Object> field : value) {
+            String name = field.getKey();
+            if (name.equals("time") || name.equals("stamp") || dicts.containsKey(name))
+                continue;
+            JsonArray column = values.get(name);
+            if (column==null) {
+                // fill in the rows before the first one with this field
+                column = new JsonArray();
+                for (int n = 0; n<count; n++)
+                    column.addNull();
+                values.put(name, column);
+            }
+            column.add( field.getValue() );
+        }
+
+        count++;
+        // and fill in this row for the fields it doesn't have
+        values.values().forEach( column -> {
+            if (column.size() < count)
+                column.addNull();
+        });
+    }
+
+    public int size() { return count; }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject()
+                .put("count", count)
+                .put("id", ids)
+                .put("time", new JsonObject()
+                        .put("base", base)
+                        .put("delta", deltas));
+        if (stamped)
+            json.put("stamp", stamps);
+        dicts.forEach( (name, dict) -> json.put(name, new JsonObject()
+                .put("dict", dict.dict)
+                .put("index", dict.index)) );
+        values.forEach( json::put );
+        return json;
+    }
+}
@@ -0,0 +1,107 @@
+package server;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/** Helpers for asking several missions the same question at once and combining the answers.
+ * @author casey */
+public class FanOut {
+
+    /** Runs the tasks with no more than the given number in flight at once, starting the next as each one finishes.
+     * @param tasks each starts a request when called
+     * @param concurrency the most requests in flight at a time
+     * @return the outcome of every task in the order given, which always succeeds; check each for failure */
+    public static <T> Future<List<Future<T>>> bounded(List<Supplier<Future<T>>> tasks, int concurrency) {
+        Promise<List<Future<T>>> promise = Promise.promise();
+        List<Future<T>> results = new ArrayList<>( Collections.nCopies(tasks.size(), null) );
+        int[] started = {0};
+        int[] finished = {0};
+
+        if (tasks.isEmpty()) {
+            promise.complete(results);
+            return promise.future();
+        }
+
+        Runnable[] next = new Runnable[1];
+        next[0] = () -> {
+            int n = started[0]++;
+            Future<T> result;
+            try {
+                result = tasks.get(n).get();
+            } catch (RuntimeException error) {
+                result = Future.failedFuture(error);
+            }
+            results.set(n, result);
+            result.onComplete( done -> {
+                if (++finished[0]==tasks.size())
+                    promise.complete(results);
+                else if (started[0] < tasks.size())
+                    next[0].run();
+            });
+        };
+        for (int n = 0; n < Math.min(concurrency, tasks.size()); n++)
+            next[0].run();
+        return promise.future();
+    }
+
+    /** Merges lists of rows which are each already in order, into one ordered sequence, a row at a time.
+     * @param sorted the rows of each list, in order
+     * @param order the order all the lists are in
+     * @return the rows of every list, lazily merged in order; ties go to the earlier list */
+    public static Iterator<JsonObject> merge(List<JsonArray> sorted, Comparator<JsonObject> order) {
+        // the heads of the lists, as [list, position] pairs ordered by their rows
+        PriorityQueue<int[]> heads = new PriorityQueue<>( (a, b) -> {
+            int compared = order.compare( sorted.get(a[0]).getJsonObject(a[1]), sorted.get(b[0]).getJsonObject(b[1]) );
+            return compared!=0 ? compared : Integer.compare(a[0], b[0]);
+        });
+        for (int n = 0; n < sorted.size(); n++)
+            if (!sorted.get(n).isEmpty())
+                heads.add( new int[] {n, 0} );
+
+        return new Iterator<JsonObject>() {
+            @Override
+            public boolean hasNext() { return !heads.isEmpty(); }
+
+            @Override
+            public JsonObject next() {
+                int[] head = heads.poll();
+                if (head==null)
+                    throw new NoSuchElementException();
+                JsonArray list = sorted.get(head[0]);
+                JsonObject row = list.getJsonObject(head[1]);
+                if (++head[1] < list.size())
+                    heads.add(head);
+                return row;
+            }
+        };
+    }
+
+    /** Orders view rows by their [stamp, source] keys like CouchDB does, then by id */
+    public static final Comparator<JsonObject> ByKey = (a, b) -> {
+        int compared = compareKeys( a.getJsonArray("key"), b.getJsonArray("key") );
+        return compared!=0 ? compared : compare( a.getString("id"), b.getString("id") );
+    };
+
+    static int compareKeys(JsonArray a, JsonArray b) {
+        if (a==null || b==null)
+            return a==b ? 0 : a==null ? -1 : 1;
+        for (int n = 0; n < Math.min(a.size(), b.size()); n++) {
+            Object x = a.getValue(n), y = b.getValue(n);
+            int compared = compare( x==null ? null : x.toString(), y==null ? null : y.toString() );
+            if (compared!=0)
+                return compared;
+        }
+        return Integer.compare(a.size(), b.size());
+    }
+
+    static int compare(String a, String b) {
+        if (a==null || b==null)
+            return a==b ? 0 : a==null ? -1 : 1;
+        return a.compareTo(b);
+    }
+}
@@ -0,0 +1,102 @@
+package server;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Map;
+
+/** Sends JSON responses without holding up the event loop on large payloads.
+ * Small documents are encoded in place. Anything with more elements than the threshold is encoded on a worker thread,
+ * then written to the client in chunks as fast as it can take them, so a big export doesn't stall every other request
+ * sharing the event loop.
+ * @author casey */
+public class JsonWriter {
+
+    /** The number of array elements above which a payload is encoded off the event loop */
+    public static final int DefaultThreshold = 1000;
+
+    /** The size in bytes of each chunk written to the client */
+    public static final int ChunkSize = 64 * 1024;
+
+    Vertx vertx;
+    int threshold;
+
+    public JsonWriter(Vertx vertx) {
+        this(vertx, DefaultThreshold);
+    }
+
+    /** @param vertx used to run the encoding on a worker
+     * @param threshold the number of array elements above which a payload is encoded off the event loop */
+    public JsonWriter(Vertx vertx, int threshold) {
+        this.vertx = vertx;
+        this.threshold = threshold;
+    }
+
+    public void send(HttpServerResponse response, JsonObject json) {
+        send(response, json, weigh(json));
+    }
+
+    public void send(HttpServerResponse response, JsonArray json) {
+        send(response, json, weigh(json));
+    }
+
+    private void send(HttpServerResponse response, Object json, int weight) {
+        if (weight <= threshold) {
+            response.end( encode(json) );
+            return;
+        }
+
+        // the payload mustn't be modified until it has been encoded, we only read it here
+        vertx.<Buffer>executeBlocking( promise -> promise.complete( encode(json) ), false, encoded -> {
+            if (encoded.succeeded())
+                write(response, encoded.result(), 0);
+            else
+                response.setStatusCode(500).end(encoded.cause().getMessage());
+        });
+    }
+
+    /** Writes the rest of the buffer in chunks, waiting for the client whenever the write queue fills up */
+    private void write(HttpServerResponse response, Buffer buffer, int offset) {
+        if (response.closed())
+            return;
+        if (offset==0)
+            response.setChunked(true);
+
+        while (offset < buffer.length()) {
+            int end = Math.min(offset + ChunkSize, buffer.length());
+            response.write( buffer.slice(offset, end) );
+            offset = end;
+
+            if (response.writeQueueFull() && offset < buffer.length()) {
+                int resume = offset;
+                response.drainHandler( v -> write(response, buffer, resume) );
+                return;
+            }
+        }
+        response.end();
+    }
+
+    private static Buffer encode(Object json) {
+        return json instanceof JsonObject ? ((JsonObject)json).toBuffer() : ((JsonArray)json).toBuffer();
+    }
+
+    /** @return a rough measure of the work it takes to encode the json, the number of elements in its arrays */
+    static int weigh(Object json) {
+        int weight = 0;
+        if (json instanceof JsonArray) {
+            JsonArray array = (JsonArray)json;
+            weight += array.size();
+            // rows are usually all the same shape, so only look inside the first
+            if (!array.isEmpty())
+                weight += array.size() * weigh( array.getValue(0) );
+        }
+        else if (json instanceof JsonObject) {
+            for (Map.Entry<String, Object> field : (JsonObject)json)
+                weight += weigh( field.getValue() );
+        }
+        return weight;
+    }
+}
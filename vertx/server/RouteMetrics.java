@@ -0,0 +1,43 @@
+package server;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.vertx.core.Handler;
+import io.vertx.ext.web.Route;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.micrometer.backends.BackendRegistries;
+
+/** Times each request to a route, from when it is routed until the response has been written.
+ * It's added ahead of the route's own handler, and tags the latency with the route's path pattern rather than the
+ * actual path, so there is one series per route instead of one per mission and event.
+ * @author casey */
+public class RouteMetrics implements Handler<RoutingContext> {
+
+    /** The latency of requests to the server, tagged by 'route', 'method' and response 'status' */
+    public static final String Requests = "cave.requests";
+
+    MeterRegistry registry;
+
+    /** Records to the Vert.x registry if metrics are enabled, or the global registry otherwise */
+    public RouteMetrics() {
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        this.registry = registry!=null ? registry : Metrics.globalRegistry;
+    }
+
+    @Override
+    public void handle(RoutingContext context) {
+        Route route = context.currentRoute();
+        String path = route!=null && route.getPath()!=null ? route.getPath() : "other";
+        String method = context.request().rawMethod();
+
+        Timer.Sample sample = Timer.start(registry);
+        context.addBodyEndHandler( v -> sample.stop( Timer.builder(Requests)
+                .tag("route", path)
+                .tag("method", method)
+                .tag("status", Integer.toString( context.response().getStatusCode() ))
+                .publishPercentileHistogram()
+                .register(registry) ) );
+        context.next();
+    }
+}
@@ -0,0 +1,22 @@
+package server.bench;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Runs the benchmarks, all of them or those matching the regular expression given as the first argument.
+ * None of them need a CouchDB instance, so the numbers can be compared before and after a change on any machine. */
+public class Benchmarks {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : Benchmarks.class.getPackage().getName() + ".*";
+        Options options = new OptionsBuilder()
+                .include( include )
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .forks(1)
+                .build();
+        new Runner(options).run();
+    }
+}
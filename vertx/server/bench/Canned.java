@@ -0,0 +1,49 @@
+package server.bench;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/** Canned CouchDB documents and responses, shaped like the ones the tests put in a real database. */
+public class Canned {
+
+    /** A typical session cookie as CouchDB sends it */
+    public static final String SetCookie = "AuthSession=YWRtaW46NUY4QjY0RTA6zqmG1e5lMrWjGgfOHEQ2GJIHw3s; Version=1; "
+            + "Expires=Sat, 17-Oct-2026 21:45:36 GMT; Max-Age=600; Path=/; HttpOnly";
+
+    /** @return an event like the ones created in TestCouchEvents */
+    public static JsonObject event(int n) {
+        String stamp = String.format("%05d", n*100);
+        return new JsonObject()
+                .put("_id", stamp+"-sim")
+                .put("time", n*100)
+                .put("stamp", stamp)
+                .put("source", "sim")
+                .put("target", "test")
+                .put("class", "strobe")
+                .put("sic", "a")
+                .put("tap", "b")
+                .put("angle", n * 2.5 / Math.PI);
+    }
+
+    /** @return the view row CouchDB would emit for the event */
+    public static JsonObject row(int n) {
+        JsonObject event = event(n);
+        return new JsonObject()
+                .put("id", event.getString("_id"))
+                .put("key", new JsonArray().add( event.getString("stamp") ).add( event.getString("source") ))
+                .put("value", event);
+    }
+
+    /** @return a view response with the given number of rows, as CouchDB would send it */
+    public static Buffer view(int rows) {
+        JsonArray array = new JsonArray();
+        for (int n = 0; n<rows; n++)
+            array.add( row(n) );
+        return new JsonObject()
+                .put("total_rows", rows)
+                .put("offset", 0)
+                .put("rows", array)
+                .toBuffer();
+    }
+}
@@ -0,0 +1,73 @@
+package server.bench;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Just enough of CouchDB to log in and query views, answering with canned responses.
+ * It never touches a disk, so benchmarks through it measure our side of the conversation. */
+public class CannedCouch {
+
+    Vertx vertx;
+    HttpServer server;
+    Map<Integer, Buffer> views = new HashMap<>();
+
+    public CannedCouch(Vertx vertx) {
+        this.vertx = vertx;
+    }
+
+    /** @return the port the stub is listening on, chosen by the operating system */
+    public Future<Integer> listen() {
+        Promise<Integer> promise = Promise.promise();
+        server = vertx.createHttpServer().requestHandler( this::handle );
+        server.listen(0, "localhost", result -> {
+            if (result.succeeded())
+                promise.complete( result.result().actualPort() );
+            else
+                promise.fail( result.cause() );
+        });
+        return promise.future();
+    }
+
+    public Future<Void> close() {
+        Promise<Void> promise = Promise.promise();
+        server.close( promise );
+        return promise.future();
+    }
+
+    void handle(HttpServerRequest request) {
+        request.response().putHeader("Content-Type", "application/json");
+        String path = request.path();
+
+        if (path.equals("/_session") && request.method()==HttpMethod.POST) {
+            request.response()
+                    .putHeader("Set-Cookie", Canned.SetCookie)
+                    .end( new JsonObject()
+                            .put("ok", true)
+                            .put("name", "admin")
+                            .put("roles", new JsonArray().add("_admin"))
+                            .toBuffer() );
+        }
+        else if (path.equals("/_session")) {
+            request.response().end( new JsonObject().put("ok", true).toBuffer() );
+        }
+        else if (path.contains("/_view/")) {
+            String limit = request.getParam("limit");
+            int rows = limit==null ? 100 : Integer.parseInt(limit);
+            request.response().end( views.computeIfAbsent( rows, Canned::view ) );
+        }
+        else {
+            request.response().setStatusCode(404)
+                    .end( new JsonObject().put("error", "not_found").put("reason", "missing").toBuffer() );
+        }
+    }
+}
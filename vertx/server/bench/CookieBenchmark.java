@@ -0,0 +1,19 @@
+package server.bench;
+
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import server.couch.Couch;
+
+import java.util.concurrent.TimeUnit;
+
+/** Measures parsing the session cookie, which happens on every login and cookie refresh. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CookieBenchmark {
+
+    @Benchmark
+    public JsonObject parseCookie() {
+        return Couch.parseCookie( Canned.SetCookie );
+    }
+}
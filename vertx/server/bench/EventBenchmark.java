@@ -0,0 +1,39 @@
+package server.bench;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Measures building, encoding and decoding a single event, the unit of work for ingesting and serving events. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EventBenchmark {
+
+    JsonObject event;
+    Buffer encoded;
+    int n = 0;
+
+    @Setup
+    public void setup() {
+        event = Canned.event(42);
+        encoded = event.toBuffer();
+    }
+
+    @Benchmark
+    public JsonObject construct() {
+        return Canned.event(n++ & 0xffff);
+    }
+
+    @Benchmark
+    public Buffer encode() {
+        return event.toBuffer();
+    }
+
+    @Benchmark
+    public JsonObject decode() {
+        return encoded.toJsonObject();
+    }
+}
@@ -0,0 +1,86 @@
+package server.bench;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import org.openjdk.jmh.annotations.*;
+import server.CaveServer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/** Pages of events requested from a running CaveServer, which queries a canned CouchDB on the same machine.
+ * This covers routing, the view request and the streaming of rows back to the client. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GetEventsBenchmark {
+
+    static final int ServerPort = 43211;
+
+    @Param({"10", "1000"})
+    int limit;
+
+    Vertx vertx;
+    CannedCouch couch;
+    WebClient client;
+    String uri;
+
+    @Setup
+    public void setup() throws Exception {
+        vertx = Vertx.vertx();
+        couch = new CannedCouch(vertx);
+        CompletableFuture<Integer> listening = new CompletableFuture<>();
+        couch.listen()
+                .onSuccess( listening::complete )
+                .onFailure( listening::completeExceptionally );
+        int port = listening.get(10, TimeUnit.SECONDS);
+
+        JsonObject config = new JsonObject()
+                .put("port", ServerPort)
+                .put("couchdb", new JsonObject()
+                        .put("host", "localhost")
+                        .put("port", port)
+                        .put("credentials", new JsonObject()
+                                .put("name", "admin")
+                                .put("password", "admin")));
+        CompletableFuture<String> deployed = new CompletableFuture<>();
+        vertx.deployVerticle( CaveServer.class.getName(), new DeploymentOptions().setConfig(config), result -> {
+            if (result.succeeded())
+                deployed.complete( result.result() );
+            else
+                deployed.completeExceptionally( result.cause() );
+        });
+        deployed.get(10, TimeUnit.SECONDS);
+
+        client = WebClient.create(vertx);
+        uri = "/api/mission/bench/product/network?limit=" + limit;
+    }
+
+    @TearDown
+    public void teardown() throws Exception {
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        vertx.close( v -> closed.complete(null) );
+        closed.get(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public Buffer getEvents() throws Exception {
+        CompletableFuture<Buffer> body = new CompletableFuture<>();
+        client.get(ServerPort, "localhost", uri).send( result -> {
+            if (!result.succeeded()) {
+                body.completeExceptionally( result.cause() );
+                return;
+            }
+            HttpResponse<Buffer> response = result.result();
+            if (response.statusCode()==200)
+                body.complete( response.body() );
+            else
+                body.completeExceptionally( new IllegalStateException( response.bodyAsString() ) );
+        });
+        return body.get(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,48 @@
+package server.bench;
+
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import server.couch.RowStream;
+
+import java.util.concurrent.TimeUnit;
+
+/** Compares decoding a whole view response at once against streaming its rows with RowStream. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RowDecodingBenchmark {
+
+    @Param({"10", "1000"})
+    int rows;
+
+    Buffer response;
+
+    @Setup
+    public void setup() {
+        response = Canned.view(rows);
+    }
+
+    @Benchmark
+    public void decodeWhole(Blackhole blackhole) {
+        blackhole.consume( response.toJsonObject().getJsonArray("rows") );
+    }
+
+    @Benchmark
+    public void streamRows(Blackhole blackhole) {
+        RowStream stream = new RowStream();
+        stream.handler( blackhole::consume );
+        stream.sink().write( response );
+        stream.sink().end();
+    }
+
+    /** Streams the response as it would arrive off the network, in 8KB pieces */
+    @Benchmark
+    public void streamChunks(Blackhole blackhole) {
+        RowStream stream = new RowStream();
+        stream.handler( blackhole::consume );
+        for (int start = 0; start < response.length(); start += 8192)
+            stream.sink().write( response.slice(start, Math.min(start + 8192, response.length())) );
+        stream.sink().end();
+    }
+}
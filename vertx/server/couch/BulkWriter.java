@@ -0,0 +1,238 @@
+package server.couch;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.WriteStream;
+
+import java.util.ArrayDeque;
+
+/** Writes a stream of documents to a database through the bulk document API, e.g. piped from a simulator or a file.
+ * Documents are collected into batches which are sent once they are full, or once the oldest document in them has
+ * waited long enough, so a slow source still gets written promptly. Only a few batches are sent at once, and once
+ * there are more documents waiting than that the stream reports it is full, which pauses whatever is piping into it
+ * until CouchDB catches up. Memory use is bounded by the queue size however long the stream runs.
+ * Only counts of the results are kept; documents CouchDB rejects, e.g. for a conflict, are counted but don't fail
+ * the stream, while a batch that couldn't be sent at all does.
+ * @author casey */
+public class BulkWriter implements WriteStream<JsonObject> {
+
+    /** The most _bulk_docs requests in flight at once, when not specified */
+    public static final int DefaultMaxInFlight = 4;
+
+    /** How long in milliseconds a partial batch waits for more documents before it is sent anyway */
+    public static final long DefaultLinger = 500;
+
+    Vertx vertx;
+    Database db;
+    int batchSize;
+    int maxInFlight;
+    long linger;
+    int maxQueueSize;
+    boolean newEdits = true;
+
+    JsonArray batch = new JsonArray();
+    ArrayDeque<JsonArray> ready = new ArrayDeque<>();
+    long timer = -1;
+    int inFlight = 0;
+    int queued = 0;
+
+    long written = 0;
+    long rejected = 0;
+    long requests = 0;
+    Throwable failure;
+    boolean ending = false;
+    Handler<AsyncResult<Void>> endHandler;
+
+    Handler<Throwable> exceptionHandler;
+    Handler<Void> drainHandler;
+
+    /** Writes batches of the default size, with the default number in flight */
+    public BulkWriter(Database db) {
+        this(db, Database.DefaultBatchSize, DefaultMaxInFlight, DefaultLinger);
+    }
+
+    /** @param db the database the documents are written to
+     * @param batchSize the most documents sent in each request
+     * @param maxInFlight the most requests sent at once
+     * @param linger how long in milliseconds a partial batch waits for more documents before it is sent anyway */
+    public BulkWriter(Database db, int batchSize, int maxInFlight, long linger) {
+        if (batchSize < 1 || maxInFlight < 1)
+            throw new IllegalArgumentException("The batch size and requests in flight must be positive");
+        this.vertx = db.client.vertx;
+        this.db = db;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+        this.linger = linger;
+        this.maxQueueSize = batchSize * (maxInFlight + 1);
+    }
+
+    /** Stores each document at the '_rev' it has rather than as a new revision, e.g. to import an export.
+     * @param newEdits false to keep the documents' revisions */
+    public BulkWriter setNewEdits(boolean newEdits) {
+        this.newEdits = newEdits;
+        return this;
+    }
+
+    /** @return the number of documents CouchDB has accepted */
+    public long getWritten() { return written; }
+
+    /** @return the number of documents CouchDB rejected, or which were in a batch that couldn't be sent */
+    public long getRejected() { return rejected; }
+
+    /** @return the number of _bulk_docs requests sent */
+    public long getRequests() { return requests; }
+
+    /** @return the number of _bulk_docs requests waiting for CouchDB to answer */
+    public int getInFlight() { return inFlight; }
+
+    /** @return the number of documents written to the stream which CouchDB hasn't answered for yet */
+    public int getQueued() { return queued; }
+
+    /** @return a summary of the results, e.g. for the response to an import */
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject()
+                .put("written", written)
+                .put("rejected", rejected)
+                .put("requests", requests);
+        if (failure!=null)
+            json.put("error", failure.getMessage());
+        return json;
+    }
+
+    @Override
+    public BulkWriter write(JsonObject doc) {
+        return write( doc, null );
+    }
+
+    @Override
+    public BulkWriter write(JsonObject doc, Handler<AsyncResult<Void>> handler) {
+        if (ending)
+            throw new IllegalStateException("The stream has ended");
+
+        batch.add( doc );
+        queued++;
+        if (batch.size() >= batchSize)
+            seal();
+        else if (timer==-1)
+            timer = vertx.setTimer( linger, id -> {
+                timer = -1;
+                seal();
+                dispatch();
+            });
+        dispatch();
+
+        if (handler!=null)
+            handler.handle( failure==null ? Future.succeededFuture() : Future.failedFuture(failure) );
+        return this;
+    }
+
+    /** Moves the batch being collected to the queue of batches ready to send */
+    private void seal() {
+        if (timer!=-1) {
+            vertx.cancelTimer(timer);
+            timer = -1;
+        }
+        if (!batch.isEmpty()) {
+            ready.add( batch );
+            batch = new JsonArray();
+        }
+    }
+
+    /** Sends ready batches while there's room in flight */
+    private void dispatch() {
+        while (inFlight < maxInFlight && !ready.isEmpty()) {
+            JsonArray docs = ready.poll();
+            inFlight++;
+            requests++;
+            db.bulkDocs( docs, newEdits ).onComplete( sent -> {
+                inFlight--;
+                queued -= docs.size();
+                if (sent.succeeded()) {
+                    // without new edits CouchDB only lists the failures, so count those and assume the rest were written
+                    int errors = 0;
+                    for (Object result : sent.result())
+                        if (((JsonObject)result).containsKey("error"))
+                            errors++;
+                    rejected += errors;
+                    written += docs.size() - errors;
+                } else {
+                    rejected += docs.size();
+                    if (failure==null)
+                        failure = sent.cause();
+                    if (exceptionHandler!=null)
+                        exceptionHandler.handle( sent.cause() );
+                }
+                dispatch();
+                drained();
+            });
+        }
+        finished();
+    }
+
+    /** Lets the source resume once half the queue has been written */
+    private void drained() {
+        if (drainHandler!=null && queued <= maxQueueSize/2) {
+            Handler<Void> drained = drainHandler;
+            drainHandler = null;
+            drained.handle(null);
+        }
+    }
+
+    /** Completes the end of the stream once every batch has been answered */
+    private void finished() {
+        if (!ending || inFlight > 0 || !ready.isEmpty() || endHandler==null)
+            return;
+        Handler<AsyncResult<Void>> ended = endHandler;
+        endHandler = null;
+
+        // everything is loaded, so start indexing it rather than leaving it for the first viewer
+        if (written > 0)
+            db.warm();
+        ended.handle( failure==null ? Future.succeededFuture() : Future.failedFuture(failure) );
+    }
+
+    @Override
+    public void end() {
+        end( (Handler<AsyncResult<Void>>) null );
+    }
+
+    @Override
+    public void end(Handler<AsyncResult<Void>> handler) {
+        if (ending)
+            return;
+        ending = true;
+        endHandler = handler!=null ? handler : result -> {};
+        seal();
+        dispatch();
+    }
+
+    @Override
+    public BulkWriter exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    /** @param maxSize the most documents waiting to be written before the stream reports it is full,
+     * by default enough for every request in flight and another batch */
+    @Override
+    public BulkWriter setWriteQueueMaxSize(int maxSize) {
+        this.maxQueueSize = maxSize;
+        return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        return queued >= maxQueueSize;
+    }
+
+    @Override
+    public BulkWriter drainHandler(Handler<Void> handler) {
+        this.drainHandler = handler;
+        drained();
+        return this;
+    }
+}
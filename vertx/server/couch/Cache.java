@@ -0,0 +1,107 @@
+package server.couch;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A size bounded cache of CouchDB responses keyed by request URI.
+ * The least recently used entry is evicted once the cache is full. Entries stay fresh for their time to live,
+ * after which they can still be revalidated against CouchDB using their ETag, rather than fetched again.
+ * This isn't thread safe, it should only be used from the context of the Couch client which owns it.
+ * @author casey */
+public class Cache {
+
+    /** The number of responses a Couch client caches by default */
+    public static final int DefaultSize = 1024;
+
+    int size;
+    LinkedHashMap<String, Entry> entries;
+    long hits = 0;
+    long misses = 0;
+
+    /** @param size the maximum number of cached responses */
+    public Cache(int size) {
+        this.size = size;
+        // access ordered, so iteration starts with the least recently used entry
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > Cache.this.size;
+            }
+        };
+    }
+
+    /** A cached response body, along with what we need to decide if it can still be used. */
+    public static class Entry {
+        Buffer body;
+        String etag;
+        long expires;
+
+        Entry(Buffer body, String etag, long expires) {
+            this.body = body;
+            this.etag = etag;
+            this.expires = expires;
+        }
+
+        public Buffer getBody() { return body; }
+
+        /** @return the ETag CouchDB sent with the response, or null if it didn't */
+        public String getETag() { return etag; }
+
+        /** @return whether the entry can be used without asking CouchDB */
+        public boolean isFresh() { return System.currentTimeMillis() < expires; }
+    }
+
+    /** @return the cached entry, fresh or not, or null if nothing is cached for the URI */
+    public Entry get(String uri) {
+        Entry entry = entries.get(uri);
+        if (entry!=null && entry.isFresh())
+            hits++;
+        else
+            misses++;
+        return entry;
+    }
+
+    /** Caches a response body
+     * @param uri the request URI, including the database
+     * @param body the body of a successful response
+     * @param etag the ETag header of the response, may be null
+     * @param ttl how long in milliseconds the body can be used before it must be revalidated */
+    public void put(String uri, Buffer body, String etag, long ttl) {
+        entries.put( uri, new Entry(body, etag, System.currentTimeMillis() + ttl) );
+    }
+
+    /** Extends the life of an entry after CouchDB tells us it hasn't changed.
+     * @return the refreshed entry, or null if it has since been evicted */
+    public Entry refresh(String uri, long ttl) {
+        Entry entry = entries.get(uri);
+        if (entry!=null)
+            entry.expires = System.currentTimeMillis() + ttl;
+        return entry;
+    }
+
+    /** Drop the response for the given URI, usually because we just changed it. */
+    public void invalidate(String uri) {
+        entries.remove(uri);
+    }
+
+    /** Drop every response whose URI starts with the prefix, e.g. every document in a database which was deleted. */
+    public void invalidatePrefix(String prefix) {
+        Iterator<String> keys = entries.keySet().iterator();
+        while (keys.hasNext())
+            if (keys.next().startsWith(prefix))
+                keys.remove();
+    }
+
+    public void clear() { entries.clear(); }
+
+    public int size() { return entries.size(); }
+
+    /** @return the number of lookups which found a fresh entry */
+    public long getHits() { return hits; }
+
+    /** @return the number of lookups which had to go to CouchDB, whether or not the entry could be revalidated */
+    public long getMisses() { return misses; }
+}
@@ -0,0 +1,71 @@
+package server.couch;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonObject;
+import server.events.Event;
+import server.events.EventCodec;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Subscribes a verticle to the changes feeds of the ChangeHub listening elsewhere in the Vert.x instance.
+ * Consumers are registered on the hub's fixed addresses, and each subscription is counted by the hub over the event
+ * bus, so a database has one feed however many verticles are watching it, closed once the last of them leaves.
+ * This isn't thread safe, it should be owned by a single verticle.
+ * @author casey */
+public class ChangeFeeds {
+
+    Vertx vertx;
+    Map<MessageConsumer<?>, String> subscriptions = new LinkedHashMap<>();
+
+    public ChangeFeeds(Vertx vertx) {
+        this.vertx = vertx;
+        EventCodec.register(vertx);
+    }
+
+    /** Start receiving changes to the database, as ChangeHub.subscribe does.
+     * @return the registered consumer, which should be handed back to unsubscribe() when done */
+    public MessageConsumer<JsonObject> subscribe(String db, Handler<Message<JsonObject>> handler) {
+        MessageConsumer<JsonObject> consumer = vertx.eventBus().consumer( ChangeHub.address(db), handler );
+        subscribed( db, consumer, false );
+        return consumer;
+    }
+
+    /** Start receiving the events added to or updated in the database, as ChangeHub.subscribeEvents does.
+     * @return the registered consumer, which should be handed back to unsubscribe() when done */
+    public MessageConsumer<Event> subscribeEvents(String db, Handler<Message<Event>> handler) {
+        MessageConsumer<Event> consumer = vertx.eventBus().consumer( ChangeHub.events(db), handler );
+        subscribed( db, consumer, true );
+        return consumer;
+    }
+
+    /** Stop receiving changes, letting the hub close the feed if this was its last consumer.
+     * @param db the name of the database
+     * @param consumer the consumer returned by subscribe() */
+    public void unsubscribe(String db, MessageConsumer<?> consumer) {
+        consumer.unregister();
+        if (subscriptions.remove(consumer)!=null)
+            tell( ChangeHub.Unsubscribe, db, consumer.address().equals( ChangeHub.events(db) ) );
+    }
+
+    /** @return the number of consumers subscribed through this verticle */
+    public int size() { return subscriptions.size(); }
+
+    /** Unsubscribes every consumer, e.g. when the verticle stops, so the hub doesn't keep their feeds open */
+    public void close() {
+        new ArrayList<>( subscriptions.entrySet() ).forEach( entry -> unsubscribe( entry.getValue(), entry.getKey() ) );
+    }
+
+    private void subscribed(String db, MessageConsumer<?> consumer, boolean events) {
+        subscriptions.put( consumer, db );
+        tell( ChangeHub.Subscribe, db, events );
+    }
+
+    private void tell(String address, String db, boolean events) {
+        vertx.eventBus().send( address, new JsonObject().put("db", db).put("events", events) );
+    }
+}
@@ -0,0 +1,249 @@
+package server.couch;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonObject;
+import server.events.Event;
+import server.events.EventCodec;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Shares a single continuous changes feed per database between any number of local consumers.
+ * Changes are published on the event bus, so the number of connections to CouchDB depends on how many missions are
+ * being watched rather than how many people are watching them. If a feed drops it is reopened after a back off,
+ * starting from the last sequence it saw so no changes are missed. A new feed starts from the database's update_seq
+ * when it opens, so that holds even if it drops before the first change arrives.
+ * Each database's changes are published on a fixed address, so there should be one hub in the Vert.x instance, which
+ * verticles other than its own subscribe to through ChangeFeeds once it is listening.
+ * This should only be used from the context of the Couch client which owns it.
+ * @author casey */
+public class ChangeHub {
+
+    /** The delay before the first attempt to reopen a dropped feed, doubling on each failure */
+    public static final long MinRetry = 1000;
+
+    /** The longest we'll wait between attempts to reopen a dropped feed */
+    public static final long MaxRetry = 30000;
+
+    /** Where the changes to a database are published, followed by its name */
+    public static final String Address = "couch.changes.";
+
+    /** Where a listening hub is asked to count a subscriber to a database's feed, given as {"db":..., "events":...} */
+    public static final String Subscribe = "couch.hub.subscribe";
+
+    /** Where a listening hub is told a subscriber has left, in the same form */
+    public static final String Unsubscribe = "couch.hub.unsubscribe";
+
+    Couch client;
+    Vertx vertx;
+    Map<String, Feed> feeds = new HashMap<>();
+    List<MessageConsumer<JsonObject>> controls = new ArrayList<>();
+
+    /** The shared feed and bookkeeping for one database */
+    class Feed {
+        String db;
+        String address;
+        String events;
+        ChangeStream stream;
+        Future<Void> opened;
+        Object lastSeq = "now";
+        int consumers = 0;
+        int eventConsumers = 0;
+        long retry = MinRetry;
+        long timer = -1;
+
+        Feed(String db) {
+            this.db = db;
+            this.address = address(db);
+            this.events = events(db);
+        }
+    }
+
+    /** @param client the CouchDB client used to open the feeds */
+    public ChangeHub(Couch client) {
+        this.client = client;
+        this.vertx = client.vertx;
+        EventCodec.register(vertx);
+    }
+
+    /** @return the address the database's changes are published on */
+    public static String address(String db) { return Address + db; }
+
+    /** @return the address the database's events are published on */
+    public static String events(String db) { return Address + db + ".events"; }
+
+    /** Counts the subscribers in other verticles, so they share this hub's feeds rather than opening their own.
+     * @return this hub, which should be the only one listening in the Vert.x instance */
+    public ChangeHub listen() {
+        controls.add( vertx.eventBus().<JsonObject>consumer( Subscribe, message ->
+                add( message.body().getString("db"), message.body().getBoolean("events", false) ) ) );
+        controls.add( vertx.eventBus().<JsonObject>consumer( Unsubscribe, message ->
+                remove( message.body().getString("db"), message.body().getBoolean("events", false) ) ) );
+        return this;
+    }
+
+    /** Start receiving changes to the database, opening the feed if nobody else is already watching it.
+     * @param db the name of the database
+     * @param handler receives each change, including its document, in the order CouchDB reports them
+     * @return the registered consumer, which should be handed back to unsubscribe() when done */
+    public MessageConsumer<JsonObject> subscribe(String db, Handler<Message<JsonObject>> handler) {
+        return vertx.eventBus().consumer( add(db, false).address, handler );
+    }
+
+    /** Start receiving the events added to or updated in the database, rather than raw changes.
+     * Design documents, deletions and documents without a time are left out, and every consumer shares the same Event instance, without the
+     * copy each consumer of a JsonObject change gets.
+     * @param db the name of the database
+     * @param handler receives each event in the order CouchDB reports them
+     * @return the registered consumer, which should be handed back to unsubscribe() when done */
+    public MessageConsumer<Event> subscribeEvents(String db, Handler<Message<Event>> handler) {
+        return vertx.eventBus().consumer( add(db, true).events, handler );
+    }
+
+    /** Stop receiving changes, closing the feed once the last consumer leaves.
+     * @param db the name of the database
+     * @param consumer the consumer returned by subscribe() */
+    public void unsubscribe(String db, MessageConsumer<?> consumer) {
+        consumer.unregister();
+        remove( db, consumer.address().equals( events(db) ) );
+    }
+
+    /** @return the number of databases which currently have an open, or reopening, feed */
+    public int size() { return feeds.size(); }
+
+    /** @return the number of consumers of the database's feed, in this verticle or any other */
+    public int getConsumers(String db) {
+        Feed feed = feeds.get(db);
+        return feed==null ? 0 : feed.consumers;
+    }
+
+    /** @return completes once the database's feed is open, so changes made from then on will be heard, or fails if it
+     * isn't being watched or the current attempt to open it fails */
+    public Future<Void> opened(String db) {
+        Feed feed = feeds.get(db);
+        if (feed==null || feed.opened==null)
+            return Future.failedFuture( db + " isn't being watched" );
+        return feed.opened;
+    }
+
+    /** @return the last sequence seen on the database's feed, or null if it isn't being watched */
+    public Object getLastSeq(String db) {
+        Feed feed = feeds.get(db);
+        return feed==null ? null : feed.lastSeq;
+    }
+
+    /** Close every feed, e.g. when the server is shutting down. Consumers are left registered but won't hear anything. */
+    public void close() {
+        controls.forEach( MessageConsumer::unregister );
+        controls.clear();
+        feeds.values().forEach( this::close );
+        feeds.clear();
+    }
+
+    /** Counts a consumer of the database's feed, opening it if nobody else is already watching */
+    private Feed add(String db, boolean events) {
+        Feed feed = feeds.get(db);
+        if (feed==null) {
+            feed = new Feed(db);
+            feeds.put(db, feed);
+            open(feed);
+        }
+        feed.consumers++;
+        if (events)
+            feed.eventConsumers++;
+        return feed;
+    }
+
+    /** Stops counting a consumer of the database's feed, closing it once the last one leaves */
+    private void remove(String db, boolean events) {
+        Feed feed = feeds.get(db);
+        if (feed==null)
+            return;
+        if (events)
+            feed.eventConsumers--;
+        if (--feed.consumers <= 0) {
+            feeds.remove(db);
+            close(feed);
+        }
+    }
+
+    /** Opens the feed from its last sequence, or from the database's current one if it has yet to see any */
+    private void open(Feed feed) {
+        feed.timer = -1;
+        if (!"now".equals(feed.lastSeq)) {
+            follow(feed);
+            return;
+        }
+
+        // since=now would be re-read on every reopen, losing whatever changed while the feed was down
+        Promise<Void> opened = Promise.promise();
+        feed.opened = opened.future();
+        client.getDatabaseInfo(feed.db).onComplete( info -> {
+            if (feeds.get(feed.db)!=feed || feed.opened!=opened.future())
+                opened.tryFail("the feed was closed");
+            else if (info.failed()) {
+                opened.fail( info.cause() );
+                retry(feed);
+            }
+            else {
+                feed.lastSeq = info.result().getValue("update_seq");
+                follow(feed).opened().onComplete( opened );
+            }
+        });
+    }
+
+    private ChangeStream follow(Feed feed) {
+        Database database = new Database(client, feed.db);
+        ChangeStream stream = database.getChanges( feed.lastSeq.toString() );
+        feed.stream = stream;
+        feed.opened = stream.opened();
+
+        stream.handler( change -> {
+            feed.lastSeq = stream.getLastSeq();
+            feed.retry = MinRetry;
+            vertx.eventBus().publish( feed.address, change );
+
+            // only bother making events if someone wants them
+            if (feed.eventConsumers > 0) {
+                JsonObject doc = change.getJsonObject("doc");
+                if (doc!=null && !change.getBoolean("deleted", false) && !change.getString("id").startsWith("_design/")
+                        && doc.getValue("time") instanceof Number)
+                    vertx.eventBus().publish( feed.events, Event.fromJson(doc) );
+            }
+        });
+        stream.exceptionHandler( error -> reopen(feed, stream) );
+        stream.endHandler( v -> reopen(feed, stream) );
+        return stream;
+    }
+
+    /** Schedules another attempt to open the feed, unless it has been closed or replaced in the meantime. */
+    private void reopen(Feed feed, ChangeStream stream) {
+        if (feeds.get(feed.db)!=feed || feed.stream!=stream || feed.timer!=-1)
+            return;
+        if (stream.getLastSeq()!=null)
+            feed.lastSeq = stream.getLastSeq();
+        retry(feed);
+    }
+
+    private void retry(Feed feed) {
+        feed.timer = vertx.setTimer( feed.retry, id -> open(feed) );
+        feed.retry = Math.min( feed.retry*2, MaxRetry );
+    }
+
+    private void close(Feed feed) {
+        if (feed.timer!=-1)
+            vertx.cancelTimer(feed.timer);
+        feed.timer = -1;
+        if (feed.stream!=null)
+            feed.stream.close();
+        feed.stream = null;
+        feed.opened = null;
+    }
+}
@@ -0,0 +1,83 @@
+package server.couch;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.RecordParser;
+
+/** Parses a continuous CouchDB changes feed, which is a never ending response with one JSON change per line.
+ * Blank heartbeat lines are skipped, and the sequence of the latest change is remembered so a feed can be resumed.
+ * CouchDB answers as soon as the feed starts, so opened() says when changes made from then on will be seen.
+ * https://docs.couchdb.org/en/stable/api/database/changes.html#continuous
+ * @author casey */
+public class ChangeStream extends ParsingStream {
+
+    RecordParser parser;
+    Object lastSeq;
+    Runnable closer;
+    Promise<Void> opened = Promise.promise();
+
+    public ChangeStream() {
+        this.parser = RecordParser.newDelimited("\n", this::onLine);
+    }
+
+    @Override
+    protected void parse(Buffer data) {
+        parser.handle( data );
+    }
+
+    @Override
+    protected void finish() {}
+
+    /** Each line is either a change, a heartbeat, or the last sequence number when CouchDB ends the feed. */
+    private void onLine(Buffer line) {
+        if (line.length()==0)
+            return;
+
+        JsonObject change;
+        try {
+            change = line.toJsonObject();
+        } catch (DecodeException error) {
+            fail( error );
+            return;
+        }
+
+        if (change.containsKey("last_seq"))
+            lastSeq = change.getValue("last_seq");
+        else if (change.containsKey("error"))
+            fail( new IllegalStateException( change.toString() ) );
+        else {
+            lastSeq = change.getValue("seq");
+            emit( change );
+        }
+    }
+
+    /** @return completes once CouchDB has answered and the feed is being read, or fails if it never is */
+    public Future<Void> opened() { return opened.future(); }
+
+    /** Called once CouchDB has accepted the request for the feed */
+    void open() { opened.tryComplete(); }
+
+    @Override
+    public void fail(Throwable cause) {
+        opened.tryFail( cause );
+        super.fail( cause );
+    }
+
+    /** @return the sequence of the last change read from the feed, which can be used as 'since' when reopening it */
+    public Object getLastSeq() { return lastSeq; }
+
+    /** Set how the underlying http request is cancelled */
+    void onClose(Runnable closer) { this.closer = closer; }
+
+    /** Stops the feed by abandoning the http request. No more changes or end will be delivered. */
+    public void close() {
+        opened.tryFail("the feed was closed");
+        closed = true;
+        queue.clear();
+        if (closer!=null)
+            closer.run();
+    }
+}
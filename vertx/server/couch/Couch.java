@@ -1,9 +1,13 @@
 package server.couch;
 
 import io.vertx.core.*;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Lock;
 import io.vertx.ext.web.client.HttpRequest;
 import io.vertx.ext.web.client.HttpResponse;
 import io.vertx.ext.web.client.WebClient;
@@ -11,6 +15,7 @@ import io.vertx.ext.web.client.predicate.ResponsePredicate;
 import io.vertx.ext.web.codec.BodyCodec;
 
 import java.util.Arrays;
+import java.util.function.Function;
 
 // todo LightCouch is a project with a very clean api that reflects the rest api very well. It would introduce about 5 more dependencies for GSON, apache commons, http client, etc. Might be worth adding if we start adding many more use cases.
 
@@ -19,27 +24,104 @@ import java.util.Arrays;
 public class Couch {
 
     Vertx vertx;
+    HttpClient http;
     WebClient client;
+    CouchMetrics metrics;
     JsonObject token;
+    String user;
+    String password;
+    Future<JsonObject> reauthenticating;
     String host;
     int port;
+    Cache cache;
+    SingleFlight<Buffer> fetches = new SingleFlight<>();
+    SingleFlight<JsonObject> queries = new SingleFlight<>();
+
+    /** How long in milliseconds the list of databases can be served from the cache before asking CouchDB again */
+    public static final long DatabasesTTL = 10000;
+
+    /** Session cookies are shared through this local map by every client in the Vert.x instance logged in as the same
+     * user, e.g. one per verticle instance, so they don't each have to log in separately. */
+    public static final String SessionMap = "couch.sessions";
+
+    /** The most times an idempotent request is retried after a network or server error */
+    public static final int MaxRetries = 3;
+
+    /** The delay before the first retry of a failed request, doubling with each attempt */
+    public static final long MinRetry = 100;
+
+    /** The longest delay between retries of a failed request */
+    public static final long MaxRetry = 2000;
     // todo eventually things like current mission and roles should be stored in a user session...
 
-    /** Initializes a client but does not connect
+    /** Initializes a client with the default connection options, but does not connect
      * @param vertx a Vert.x context
      * @param host the ip or url of the CouchDB instance
      * @param port the CouchDB REST API port. Usually http is on 5984, and https is on 6984 */
     public Couch(Vertx vertx, String host, int port) {
+        this(vertx, new CouchOptions().setHost(host).setPort(port));
+    }
+
+    /** Initializes a client but does not connect
+     * @param vertx a Vert.x context
+     * @param options the CouchDB instance and how to pool connections to it */
+    public Couch(Vertx vertx, CouchOptions options) {
         this.vertx = vertx; //Vertx.currentContext().owner();
-        this.client = WebClient.create(vertx);
-        this.host = host;
-        this.port = port;
+        // change feeds get their own client, since they hold their connections open and the web client can't cancel them
+        this.http = vertx.createHttpClient( options.toFeedOptions() );
+        this.client = WebClient.wrap( vertx.createHttpClient( options.toHttpClientOptions() ) );
+        this.host = options.getHost();
+        this.port = options.getPort();
+        this.cache = new Cache( Cache.DefaultSize );
+        this.metrics = CouchMetrics.create();
     }
 
+    /** @return the latency, size and error metrics of the requests made by this client */
+    public CouchMetrics getMetrics() { return metrics; }
+
+    /** @return the view queries currently in flight, which identical queries share rather than repeat */
+    public SingleFlight<JsonObject> getQueries() { return queries; }
+
+    /** @return the cache of responses shared by all the databases, designs and views of this client */
+    public Cache getCache() { return cache; }
+
     /** Obtain a session cookie and caches them in the client.
+     * If another client in this Vert.x instance has already logged in as the same user, its session is reused.
      * https://docs.couchdb.org/en/stable/api/server/authn.html#cookie-authentication */
     public Future<JsonObject> getSession(String name, String password) {
         Promise<JsonObject> promise = Promise.promise();
+        this.user = name;
+        this.password = password;
+
+        // only let one client log in at a time, so the rest can pick up its session
+        vertx.sharedData().getLocalLock( SessionMap + "." + sessionKey(), locked -> {
+            if (!locked.succeeded()) {
+                promise.fail( locked.cause() );
+                return;
+            }
+            Lock lock = locked.result();
+
+            String shared = sessions().get( sessionKey() );
+            if (shared!=null) {
+                this.token = new JsonObject().put("AuthSession", shared);
+                lock.release();
+                promise.complete( token );
+                return;
+            }
+
+            login(name, password).onComplete( result -> {
+                if (result.succeeded())
+                    sessions().put( sessionKey(), result.result().getString("AuthSession") );
+                lock.release();
+                promise.handle( result );
+            });
+        });
+        return promise.future();
+    }
+
+    /** Posts the credentials to CouchDB and keeps the session cookie it responds with. */
+    private Future<JsonObject> login(String name, String password) {
+        Promise<JsonObject> promise = Promise.promise();
 
         JsonObject credentials = new JsonObject()
                 .put("name", name)
@@ -53,19 +135,25 @@ public class Couch {
                 .expect(ResponsePredicate.JSON)
                 .as(BodyCodec.jsonObject());
 
-        session.sendJsonObject(credentials, request -> {
+        session.sendJsonObject(credentials, metrics.time("session", request -> {
 
-            if (!request.succeeded())
+            if (!request.succeeded()) {
                 promise.fail(request.cause());
+                return;
+            }
             HttpResponse<JsonObject> response = request.result();
 //            printResponse( response );
 
             // make sure we have admin role
             JsonObject body = response.body();
-            if (body.containsKey("error"))
+            if (body.containsKey("error")) {
                 promise.fail(body.getString("error"));
-            if (!body.getJsonArray("roles").contains("_admin"))
+                return;
+            }
+            if (!body.getJsonArray("roles").contains("_admin")) {
                 promise.fail("not an administrator");
+                return;
+            }
             // TODO hmm, will I eventually need any of the role information?
 
             // parse and return the session cookie as a JsonObject
@@ -73,16 +161,177 @@ public class Couch {
             JsonObject token = parseCookie(cookie);
             this.token = token;
             promise.complete( token );
+        }));
+        return promise.future();
+    }
+
+    /** @return the sessions shared by all the clients in this Vert.x instance */
+    LocalMap<String, String> sessions() {
+        return vertx.sharedData().getLocalMap( SessionMap );
+    }
+
+    /** @return identifies the user and CouchDB instance a session belongs to */
+    String sessionKey() {
+        return user + "@" + host + ":" + port;
+    }
+
+    /** Logs in again after CouchDB has rejected the session cookie, typically because it expired.
+     * Concurrent callers share one attempt, and if another client in this Vert.x instance has already replaced the
+     * rejected cookie we just pick up the new one, so crossing an expiry doesn't set off a stampede of logins.
+     * @param rejected the cookie CouchDB refused */
+    Future<JsonObject> reauthenticate(String rejected) {
+        if (reauthenticating!=null)
+            return reauthenticating;
+        if (user==null)
+            return Future.failedFuture("not logged in");
+
+        Promise<JsonObject> promise = Promise.promise();
+        reauthenticating = promise.future();
+        vertx.sharedData().getLocalLock( SessionMap + "." + sessionKey(), locked -> {
+            if (!locked.succeeded()) {
+                reauthenticating = null;
+                promise.fail( locked.cause() );
+                return;
+            }
+            Lock lock = locked.result();
+
+            String shared = sessions().get( sessionKey() );
+            if (shared!=null && !rejected.equals("AuthSession=" + shared)) {
+                this.token = new JsonObject().put("AuthSession", shared);
+                reauthenticating = null;
+                lock.release();
+                promise.complete( token );
+                return;
+            }
+
+            login(user, password).onComplete( result -> {
+                if (result.succeeded())
+                    sessions().put( sessionKey(), result.result().getString("AuthSession") );
+                reauthenticating = null;
+                lock.release();
+                promise.handle( result );
+            });
         });
         return promise.future();
     }
 
+    /** CouchDB sends a fresh cookie before the old one expires, so keep it for every client sharing the session */
+    void refreshCookie(HttpResponse<?> response) {
+        refreshCookie( response.getHeader("Set-Cookie") );
+    }
+
+    /** @param header the Set-Cookie header of a response, or null if it didn't have one */
+    void refreshCookie(String header) {
+        if (header==null)
+            return;
+        String session = parseCookie(header).getString("AuthSession");
+        if (session==null || session.isEmpty())
+            return;
+        this.token = new JsonObject().put("AuthSession", session);
+        if (user!=null)
+            sessions().put( sessionKey(), session );
+    }
+
+    /** Sends a request, logging in again and resending it once if CouchDB says the session has expired.
+     * Idempotent requests are also retried with an exponential back off when CouchDB can't be reached or has an
+     * internal error, and the delays are randomized so many clients failing together don't all retry together.
+     * @param operation names the kind of request for the metrics
+     * @param request builds the request, which is called again for each attempt so it picks up the current cookie
+     * @param idempotent whether the request can safely be sent more than once
+     * @return the response, whatever its status, unless every attempt failed */
+    Future<HttpResponse<Buffer>> send(String operation, Function<String, HttpRequest<Buffer>> request, boolean idempotent) {
+        return send(operation, request, null, idempotent);
+    }
+
+    /** Sends a request with a body, which is encoded once and resent as is on every attempt
+     * @param body the request body, or null for none */
+    Future<HttpResponse<Buffer>> send(String operation, Function<String, HttpRequest<Buffer>> request, Buffer body, boolean idempotent) {
+        Promise<HttpResponse<Buffer>> promise = Promise.promise();
+        send(operation, request, body, idempotent, 0, false, promise);
+        return promise.future();
+    }
+
+    private void send(String operation, Function<String, HttpRequest<Buffer>> request, Buffer body, boolean idempotent,
+                      int attempt, boolean renewed, Promise<HttpResponse<Buffer>> promise) {
+        String cookie = cookie();
+        Handler<AsyncResult<HttpResponse<Buffer>>> handler = metrics.time(operation, result -> {
+            if (result.succeeded()) {
+                HttpResponse<Buffer> response = result.result();
+                refreshCookie(response);
+
+                // a request without a valid session was never carried out, so it is safe to send again
+                if (response.statusCode()==401 && !renewed && user!=null) {
+                    reauthenticate(cookie).onComplete( auth -> {
+                        if (auth.succeeded())
+                            send(operation, request, body, idempotent, attempt, true, promise);
+                        else
+                            promise.complete( response );
+                    });
+                    return;
+                }
+                if (response.statusCode() < 500 || !idempotent || attempt >= MaxRetries) {
+                    promise.complete( response );
+                    return;
+                }
+            } else if (!idempotent || attempt >= MaxRetries) {
+                promise.fail( result.cause() );
+                return;
+            }
+
+            long delay = Math.min( MinRetry << attempt, MaxRetry );
+            delay = delay/2 + (long)(Math.random() * delay/2);
+            vertx.setTimer( delay, id -> send(operation, request, body, idempotent, attempt+1, renewed, promise) );
+        });
+
+        if (body!=null)
+            request.apply( cookie ).sendBuffer( body, handler );
+        else
+            request.apply( cookie ).send( handler );
+    }
+
+    /** Sends a request whose response body is piped into the stream as it arrives, e.g. a view too big to buffer.
+     * Like send(), if CouchDB says the session has expired it logs in again and resends the request once. The status
+     * is checked before any of the body is read, so a rejected attempt never reaches the stream.
+     * @param operation names the kind of request for the metrics
+     * @param request builds the request, which is called again for a second attempt so it picks up the new cookie
+     * @param rows where the response body is parsed, which fails if CouchDB can't be reached or responds with an error */
+    void stream(String operation, Function<String, HttpRequest<Buffer>> request, ParsingStream rows) {
+        stream(operation, request, rows, false);
+    }
+
+    private void stream(String operation, Function<String, HttpRequest<Buffer>> request, ParsingStream rows,
+                        boolean renewed) {
+        String cookie = cookie();
+        int[] status = {0};
+        request.apply( cookie )
+                .expect( ResponsePredicate.create( response -> {
+                    status[0] = response.statusCode();
+                    refreshCookie(response);
+                    return ResponsePredicate.SC_SUCCESS.apply(response);
+                }))
+                .as( BodyCodec.pipe( rows.sink() ) )
+                .send( metrics.time(operation, result -> {
+                    if (result.succeeded())
+                        return;
+                    if (status[0]==401 && !renewed && user!=null) {
+                        reauthenticate(cookie).onComplete( auth -> {
+                            if (auth.succeeded())
+                                stream(operation, request, rows, true);
+                            else
+                                rows.fail( result.cause() );
+                        });
+                        return;
+                    }
+                    rows.fail( result.cause() );
+                }));
+    }
+
     /** https://docs.couchdb.org/en/stable/api/server/authn.html#delete--_session */
     public Future<Void> deleteSession() {
         return Future.future( promise -> {
             request(HttpMethod.DELETE, "/_session")
             .as(BodyCodec.jsonObject())
-            .send( request -> {
+            .send( metrics.time("session.delete", request -> {
                 if (!request.succeeded())
                     promise.fail(request.cause());
                 HttpResponse<JsonObject> response = request.result();
@@ -91,8 +340,9 @@ public class Couch {
                 if (!body.getBoolean("ok"))
                     promise.fail(body.getString("error"));
 
+                sessions().remove( sessionKey() );
                 promise.complete();
-            });
+            }));
         });
     }
 
@@ -100,15 +350,8 @@ public class Couch {
      * https://docs.couchdb.org/en/stable/api/server/common.html#all-dbs
      * @return A json array of available databases as specified in CouchDB API. */
     public Future<JsonArray> getDatabases() {
-        Promise<JsonArray> promise = Promise.promise();
-        request(HttpMethod.GET, "/_all_dbs")
-        .as(BodyCodec.jsonArray())
-        .send( request -> {
-            if (!request.succeeded())
-                promise.fail( request.cause() );
-
-            HttpResponse<JsonArray> response = request.result();
-            JsonArray databases = response.body();
+        return fetch("all_dbs", "/_all_dbs", DatabasesTTL).map( body -> {
+            JsonArray databases = body.toJsonArray();
 
             JsonArray missions = new JsonArray();
             databases.forEach( name -> {
@@ -116,10 +359,8 @@ public class Couch {
                     missions.add( name.toString() );
             }); // todo probably should only return the ones that have valid umi's as names
 
-            //client.printResponse(response);
-            promise.complete(missions);
+            return missions;
         });
-        return promise.future();
     }
 
     /** @return a Future producing the Database if it is found, and otherwise fails. */
@@ -156,7 +397,7 @@ public class Couch {
 
         request(HttpMethod.GET, "/"+db)
                 .as(BodyCodec.jsonObject())
-                .send( request -> {
+                .send( metrics.time("db.get", request -> {
 
                     if (!request.succeeded())
                         promise.fail( request.cause() );
@@ -167,7 +408,7 @@ public class Couch {
                         promise.fail( body.toString() );
                     else
                         promise.complete( body );
-                });
+                }));
         return promise.future();
     }
 
@@ -179,7 +420,7 @@ public class Couch {
 
         request(HttpMethod.DELETE, "/"+db)
                 .as(BodyCodec.jsonObject())
-                .send( request-> {
+                .send( metrics.time("db.delete", request-> {
                     if (!request.succeeded())
                         promise.fail(request.cause());
 
@@ -187,22 +428,66 @@ public class Couch {
                     JsonObject msg = response.body();
                     if (msg.containsKey("error"))
                         promise.fail( msg.toString() );
-                    else
+                    else {
+                        cache.invalidate("/_all_dbs");
+                        cache.invalidatePrefix("/"+db+"/");
                         promise.complete();
-                });
+                    }
+                }));
         return promise.future();
     }
     
     HttpRequest<?> request(HttpMethod method, String uri) {
-        String cookie = "AuthSession=" + token.getString("AuthSession");
         return client.request(method, port, host, uri)
                 .putHeader("Accept", "application/json")
-                .putHeader("Cookie", cookie)
+                .putHeader("Cookie", cookie())
                 .expect(ResponsePredicate.JSON);
     }
 
+    /** @return a request without any response predicates, so the caller sees every status, e.g. for send() */
+    HttpRequest<Buffer> request(HttpMethod method, String uri, String cookie) {
+        return client.request(method, port, host, uri)
+                .putHeader("Accept", "application/json")
+                .putHeader("Cookie", cookie);
+    }
+
+    /** Gets a response body from the cache, revalidating it with CouchDB once it is stale.
+     * If we have an ETag, CouchDB can answer with a bodiless 304 instead of sending the whole thing again.
+     * @param operation names the kind of request for the metrics
+     * @param uri the resource to get, which is also the cache key
+     * @param ttl how long in milliseconds a new or revalidated response can be used without asking CouchDB
+     * @return the body of the response, which fails if CouchDB sends anything other than a 200 or 304 */
+    Future<Buffer> fetch(String operation, String uri, long ttl) {
+        Cache.Entry cached = cache.get(uri);
+        if (cached!=null && cached.isFresh())
+            return Future.succeededFuture( cached.getBody() );
+
+        // everyone who misses the cache while it is being filled waits for the same request
+        return fetches.run( uri, () -> send( operation, cookie -> {
+            HttpRequest<Buffer> request = request(HttpMethod.GET, uri, cookie);
+            if (cached!=null && cached.getETag()!=null)
+                request.putHeader("If-None-Match", cached.getETag());
+            return request;
+        }, true).compose( response -> {
+            if (response.statusCode()==304 && cached!=null) {
+                cache.refresh(uri, ttl);
+                return Future.succeededFuture( cached.getBody() );
+            } else if (response.statusCode()==200) {
+                cache.put(uri, response.body(), response.getHeader("ETag"), ttl);
+                return Future.succeededFuture( response.body() );
+            } else
+                return Future.failedFuture( response.bodyAsString() );
+        }) );
+    }
+
+    /** @return the session cookie header for authenticating requests, preferring the one shared by all clients */
+    String cookie() {
+        String shared = sessions().get( sessionKey() );
+        return "AuthSession=" + (shared!=null ? shared : token.getString("AuthSession"));
+    }
+
     /** The CouchDB authorization cookie is a semicolon delimited set of name value pairs. */
-    private JsonObject parseCookie (String cookie) {
+    public static JsonObject parseCookie (String cookie) {
         String[] entries = cookie.split(";");
         JsonObject token = new JsonObject();
         Arrays.stream(entries).forEach(entry->{
@@ -0,0 +1,88 @@
+package server.couch;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.micrometer.backends.BackendRegistries;
+
+import java.util.concurrent.TimeUnit;
+
+/** Records the latency, response size and errors of each kind of CouchDB request.
+ * Metrics go to the Vert.x Micrometer registry when metrics are enabled, so they are scraped along with the built in
+ * http client metrics like bytes sent and received and the time spent waiting for a pooled connection. Otherwise
+ * they go to the global registry, which discards them unless someone has added a registry to it.
+ * @author casey */
+public class CouchMetrics {
+
+    /** The latency of CouchDB requests, tagged by 'operation' and response 'status' */
+    public static final String Requests = "couch.requests";
+
+    /** The size in bytes of CouchDB responses, tagged by 'operation' */
+    public static final String ResponseSize = "couch.response.size";
+
+    /** The number of CouchDB requests which failed or returned an error status, tagged by 'operation' and 'status' */
+    public static final String Errors = "couch.errors";
+
+    MeterRegistry registry;
+
+    public CouchMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /** @return metrics recorded to the Vert.x registry if there is one, or the global registry otherwise */
+    public static CouchMetrics create() {
+        MeterRegistry registry = BackendRegistries.getDefaultNow();
+        return new CouchMetrics( registry!=null ? registry : Metrics.globalRegistry );
+    }
+
+    /** Wraps the handler of a web client request so the request is timed from now until its response arrives.
+     * @param operation names the kind of request, e.g. "doc.get" or "view" */
+    public <T> Handler<AsyncResult<HttpResponse<T>>> time(String operation, Handler<AsyncResult<HttpResponse<T>>> handler) {
+        long start = System.nanoTime();
+        return result -> {
+            record(operation, start, result);
+            handler.handle(result);
+        };
+    }
+
+    <T> void record(String operation, long start, AsyncResult<HttpResponse<T>> result) {
+        String status = result.succeeded() ? Integer.toString( result.result().statusCode() ) : "error";
+
+        Timer.builder(Requests)
+                .tag("operation", operation)
+                .tag("status", status)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+        if (!result.succeeded() || result.result().statusCode() >= 400) {
+            registry.counter(Errors, "operation", operation, "status", status).increment();
+            return;
+        }
+
+        long size = size( result.result() );
+        if (size >= 0)
+            DistributionSummary.builder(ResponseSize)
+                    .tag("operation", operation)
+                    .baseUnit("bytes")
+                    .register(registry)
+                    .record(size);
+    }
+
+    /** @return the size of the response body, or -1 if it was streamed and didn't declare a length */
+    static long size(HttpResponse<?> response) {
+        String length = response.getHeader("Content-Length");
+        if (length!=null) {
+            try {
+                return Long.parseLong(length);
+            } catch (NumberFormatException ignored) {}
+        }
+        Object body = response.body();
+        return body instanceof Buffer ? ((Buffer)body).length() : -1;
+    }
+}
@@ -0,0 +1,143 @@
+package server.couch;
+
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+
+/** Connection settings for a Couch client, read from the "couchdb" section of server/config/server.json.
+ * The defaults are sized for a server watching a handful of missions at once: every open changes feed holds a
+ * connection for as long as it runs, so the pool has to be large enough for the feeds and the ordinary requests.
+ * @author casey */
+public class CouchOptions {
+
+    /** The number of connections kept to CouchDB, shared by ordinary requests */
+    public static final int DefaultMaxPoolSize = 32;
+
+    /** The number of requests which can wait for a connection before new ones are refused, -1 is unbounded */
+    public static final int DefaultMaxWaitQueueSize = 1024;
+
+    /** How long in seconds an unused connection is kept open */
+    public static final int DefaultKeepAliveTimeout = 60;
+
+    /** How many requests can be pipelined on one connection, when pipelining is enabled */
+    public static final int DefaultPipeliningLimit = 10;
+
+    /** How long in milliseconds to wait for a connection to CouchDB */
+    public static final int DefaultConnectTimeout = 5000;
+
+    /** How long in seconds a connection can go without any data before it is closed.
+     * This needs to be longer than the changes feed heartbeat, or idle feeds will be dropped. */
+    public static final int DefaultIdleTimeout = 60;
+
+    String host = "localhost";
+    int port = 5984;
+    int maxPoolSize = DefaultMaxPoolSize;
+    int maxWaitQueueSize = DefaultMaxWaitQueueSize;
+    boolean keepAlive = true;
+    int keepAliveTimeout = DefaultKeepAliveTimeout;
+    boolean pipelining = false;
+    int pipeliningLimit = DefaultPipeliningLimit;
+    int connectTimeout = DefaultConnectTimeout;
+    int idleTimeout = DefaultIdleTimeout;
+    boolean http2 = false;
+
+    public CouchOptions() {}
+
+    /** @param json the "couchdb" section of the server configuration, any missing settings keep their defaults */
+    public CouchOptions(JsonObject json) {
+        this.host = json.getString("host", host);
+        this.port = json.getInteger("port", port);
+        this.maxPoolSize = json.getInteger("maxPoolSize", maxPoolSize);
+        this.maxWaitQueueSize = json.getInteger("maxWaitQueueSize", maxWaitQueueSize);
+        this.keepAlive = json.getBoolean("keepAlive", keepAlive);
+        this.keepAliveTimeout = json.getInteger("keepAliveTimeout", keepAliveTimeout);
+        this.pipelining = json.getBoolean("pipelining", pipelining);
+        this.pipeliningLimit = json.getInteger("pipeliningLimit", pipeliningLimit);
+        this.connectTimeout = json.getInteger("connectTimeout", connectTimeout);
+        this.idleTimeout = json.getInteger("idleTimeout", idleTimeout);
+        this.http2 = json.getBoolean("http2", http2);
+    }
+
+    public String getHost() { return host; }
+    public CouchOptions setHost(String host) { this.host = host; return this; }
+
+    public int getPort() { return port; }
+    public CouchOptions setPort(int port) { this.port = port; return this; }
+
+    public int getMaxPoolSize() { return maxPoolSize; }
+    public CouchOptions setMaxPoolSize(int maxPoolSize) { this.maxPoolSize = maxPoolSize; return this; }
+
+    public int getMaxWaitQueueSize() { return maxWaitQueueSize; }
+    public CouchOptions setMaxWaitQueueSize(int maxWaitQueueSize) { this.maxWaitQueueSize = maxWaitQueueSize; return this; }
+
+    public boolean isKeepAlive() { return keepAlive; }
+    public CouchOptions setKeepAlive(boolean keepAlive) { this.keepAlive = keepAlive; return this; }
+
+    public int getKeepAliveTimeout() { return keepAliveTimeout; }
+    public CouchOptions setKeepAliveTimeout(int keepAliveTimeout) { this.keepAliveTimeout = keepAliveTimeout; return this; }
+
+    public boolean isPipelining() { return pipelining; }
+    public CouchOptions setPipelining(boolean pipelining) { this.pipelining = pipelining; return this; }
+
+    public int getPipeliningLimit() { return pipeliningLimit; }
+    public CouchOptions setPipeliningLimit(int pipeliningLimit) { this.pipeliningLimit = pipeliningLimit; return this; }
+
+    public int getConnectTimeout() { return connectTimeout; }
+    public CouchOptions setConnectTimeout(int connectTimeout) { this.connectTimeout = connectTimeout; return this; }
+
+    public int getIdleTimeout() { return idleTimeout; }
+    public CouchOptions setIdleTimeout(int idleTimeout) { this.idleTimeout = idleTimeout; return this; }
+
+    public boolean isHttp2() { return http2; }
+    public CouchOptions setHttp2(boolean http2) { this.http2 = http2; return this; }
+
+    /** @return the settings for the client used by ordinary requests */
+    HttpClientOptions toHttpClientOptions() {
+        HttpClientOptions options = new HttpClientOptions()
+                .setDefaultHost(host)
+                .setDefaultPort(port)
+                .setMaxPoolSize(maxPoolSize)
+                .setMaxWaitQueueSize(maxWaitQueueSize)
+                .setKeepAlive(keepAlive)
+                .setKeepAliveTimeout(keepAliveTimeout)
+                .setPipelining(pipelining)
+                .setPipeliningLimit(pipeliningLimit)
+                .setConnectTimeout(connectTimeout)
+                .setIdleTimeout(idleTimeout)
+                .setIdleTimeoutUnit(TimeUnit.SECONDS);
+
+        // CouchDB is usually plain http, so negotiate http/2 with an upgrade rather than ALPN
+        if (http2)
+            options.setProtocolVersion(HttpVersion.HTTP_2)
+                    .setHttp2ClearTextUpgrade(true)
+                    .setHttp2MaxPoolSize(Math.max(1, maxPoolSize/8));
+        return options;
+    }
+
+    /** @return the settings for the client used by changes feeds, which each hold a connection open indefinitely.
+     * They are never pipelined, since anything queued behind a continuous feed would wait forever. */
+    HttpClientOptions toFeedOptions() {
+        return new HttpClientOptions( toHttpClientOptions() )
+                .setPipelining(false)
+                .setProtocolVersion(HttpVersion.HTTP_1_1)
+                .setMaxPoolSize(maxPoolSize)
+                .setMaxWaitQueueSize(-1);
+    }
+
+    public JsonObject toJson() {
+        return new JsonObject()
+                .put("host", host)
+                .put("port", port)
+                .put("maxPoolSize", maxPoolSize)
+                .put("maxWaitQueueSize", maxWaitQueueSize)
+                .put("keepAlive", keepAlive)
+                .put("keepAliveTimeout", keepAliveTimeout)
+                .put("pipelining", pipelining)
+                .put("pipeliningLimit", pipeliningLimit)
+                .put("connectTimeout", connectTimeout)
+                .put("idleTimeout", idleTimeout)
+                .put("http2", http2);
+    }
+}
@@ -0,0 +1,62 @@
+package server.couch;
+
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/** Marks the first row of a page in a view, so the next page can be fetched with a key range rather than an offset.
+ * Since many rows can share a key, the document id is also needed to pick out a unique row.
+ * https://docs.couchdb.org/en/stable/ddocs/views/pagination.html#paging-alternate-method
+ * @author casey */
+public class Cursor {
+
+    Object key;
+    String id;
+
+    /** @param key the view key of the row, such as the [stamp, source] array of the network events view
+     * @param id the id of the document which emitted the row, or null for the first row with the key */
+    public Cursor(Object key, String id) {
+        this.key = key;
+        this.id = id;
+    }
+
+    /** @return a cursor pointing at the given view row */
+    public static Cursor of(JsonObject row) {
+        return new Cursor( row.getValue("key"), row.getString("id") );
+    }
+
+    public Object getKey() { return key; }
+
+    public String getId() { return id; }
+
+    /** @return the key encoded as JSON, for use as a 'startkey' query parameter */
+    public String getKeyJson() { return Json.encode(key); }
+
+    /** @return an opaque, url safe token which clients can hand back to get the next page */
+    public String encode() {
+        String json = new JsonArray().add(key).add(id).encode();
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString( json.getBytes(StandardCharsets.UTF_8) );
+    }
+
+    /** Parses a token produced by encode()
+     * @throws IllegalArgumentException if the token is malformed */
+    public static Cursor decode(String token) {
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode(token);
+            JsonArray json = new JsonArray( new String(bytes, StandardCharsets.UTF_8) );
+            if (json.size()!=2 || !(json.getValue(1) instanceof String))
+                throw new IllegalArgumentException("Invalid cursor: "+token);
+            return new Cursor( json.getValue(0), json.getString(1) );
+        } catch (DecodeException | ClassCastException error) {
+            throw new IllegalArgumentException("Invalid cursor: "+token, error);
+        }
+    }
+
+    @Override
+    public String toString() { return encode(); }
+}
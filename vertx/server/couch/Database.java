@@ -2,12 +2,20 @@ package server.couch;
 
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.client.HttpResponse;
 import io.vertx.ext.web.codec.BodyCodec;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 /** Represents a database in CouchDB and provides operations for documents and views.
  * @author casey */
 public class Database {
@@ -15,6 +23,18 @@ public class Database {
     Couch client;
     String db;
 
+    /** The number of documents sent in each _bulk_docs request when a batch size isn't specified. */
+    public static final int DefaultBatchSize = 1000;
+
+    /** How long in milliseconds a document can be served from the cache before it is revalidated with CouchDB */
+    public static final long DocumentTTL = 60000;
+
+    /** How often in milliseconds CouchDB sends a blank line on an idle change feed, so we know the connection is alive */
+    public static final int Heartbeat = 10000;
+
+    /** How long in milliseconds the list of designs can be served from the cache before asking CouchDB again */
+    public static final long DesignsTTL = 10000;
+
     /** Creates a Database client, without actually checking CouchDB for a corresponding database.
      * @param client The client which will perform all http requests
      * @param db the name of the database */
@@ -31,20 +51,14 @@ public class Database {
      * https://docs.couchdb.org/en/stable/api/database/common.html#head--db
      * @return whether the database exists*/
     public Future<Boolean> exists() {
-        Promise<Boolean> promise = Promise.promise();
-        client.request(HttpMethod.HEAD, "/"+db)
-        .send( request -> {
-            if (!request.succeeded())
-                promise.fail( request.cause() );
-
-            HttpResponse response = request.result();
+        return client.send( "db.head", cookie -> client.request(HttpMethod.HEAD, "/"+db, cookie), true )
+        .compose( response -> {
             if (response.statusCode()==200)
-                promise.complete(true);
+                return Future.succeededFuture(true);
             else if (response.statusCode()==404)
-                promise.complete(false); // should I fail? prob should be distinct from a network error...
-            else promise.fail("Invalid Status Code");
+                return Future.succeededFuture(false); // should I fail? prob should be distinct from a network error...
+            else return Future.failedFuture("Invalid Status Code");
         });
-        return promise.future();
     }
 
     /** Creates a new CouchDB database corresponding to the given mission umi using a HTTP Put request.
@@ -55,7 +69,7 @@ public class Database {
 
         client.request(HttpMethod.PUT, "/" + db)
                 .as(BodyCodec.jsonObject())
-                .send( request -> {
+                .send( client.metrics.time("db.put", request -> {
                     if (!request.succeeded())
                         promise.fail( request.cause() );
 
@@ -64,8 +78,9 @@ public class Database {
                     if (body.containsKey("error"))
                         promise.fail( body.toString() );
 
+                    client.cache.invalidate("/_all_dbs");
                     promise.complete();
-                });
+                }));
 
         return promise.future();
     }
@@ -79,42 +94,164 @@ public class Database {
 
         client.request(HttpMethod.PUT, "/"+ db +"/"+id)
                 .as(BodyCodec.jsonObject())
-                .sendJsonObject( doc, request -> {
+                .sendJsonObject( doc, client.metrics.time("doc.put", request -> {
 
                     if (!request.succeeded())
                         promise.fail( request.cause() );
 
                     HttpResponse<JsonObject> response = request.result();
                     JsonObject body = response.body();
+                    client.cache.invalidate("/"+ db +"/"+id);
                     if (body.containsKey("error"))
                         promise.fail( body.toString() );
                     else
                         promise.complete(body);
-                });
+                }));
         return promise.future();
     }
 
+    /** Add many events to the Mission database using as few requests as possible.
+     * @param docs the documents to be added, each should contain a unique "_id"
+     * @return the CouchDB result of each document, in the same order they were given */
+    public Future<JsonArray> putDocs(List<JsonObject> docs) {
+        return putDocs(docs.iterator(), DefaultBatchSize);
+    }
+
+    /** Add a sequence of events to the Mission database by sending consecutive batches to the bulk document API.
+     * Only one batch is in flight at a time, so the documents can be produced lazily by the iterator.
+     * https://docs.couchdb.org/en/stable/api/database/bulk-api.html#db-bulk-docs
+     * @param docs the documents to be added, each should contain a unique "_id"
+     * @param batchSize the maximum number of documents sent in each request
+     * @return A JsonArray with the result of each document in order; either {ok, id, rev} or {id, error, reason} */
+    public Future<JsonArray> putDocs(Iterator<JsonObject> docs, int batchSize) {
+        // once everything is loaded, start indexing it rather than leaving it for the first viewer
+        return putDocs(docs, batchSize, new JsonArray())
+                .onSuccess( results -> warm() );
+    }
+
+    /** Sends the next batch from the iterator, then recurses until it is exhausted. */
+    private Future<JsonArray> putDocs(Iterator<JsonObject> docs, int batchSize, JsonArray results) {
+        if (!docs.hasNext())
+            return Future.succeededFuture( results );
+
+        JsonArray batch = new JsonArray();
+        while (docs.hasNext() && batch.size() < batchSize)
+            batch.add( docs.next() );
+
+        return bulkDocs( batch ).compose( json -> {
+            results.addAll( json );
+            return putDocs( docs, batchSize, results );
+        });
+    }
+
+    /** Posts a single batch of documents to the bulk document API.
+     * Individual documents may fail, e.g. with an update conflict, without failing the whole request.
+     * https://docs.couchdb.org/en/stable/api/database/bulk-api.html#post--db-_bulk_docs
+     * @param docs the documents to be created or updated
+     * @return A JsonArray with the result of each document */
+    public Future<JsonArray> bulkDocs(JsonArray docs) {
+        return bulkDocs(docs, true);
+    }
+
+    /** Posts a single batch of documents to the bulk document API, optionally keeping the revisions they already have.
+     * That's how replication copies documents, so importing an export of another database reproduces it exactly,
+     * and importing it again changes nothing. CouchDB then only answers for the documents it couldn't store.
+     * @param docs the documents to be created or updated
+     * @param newEdits false to store each document at the '_rev' it has, rather than as a new revision
+     * @return A JsonArray with the result of each document, or with new edits off, of each document which failed */
+    public Future<JsonArray> bulkDocs(JsonArray docs, boolean newEdits) {
+        // a long import can outlive the session, so this goes through send() to log in again if it expires
+        JsonObject json = new JsonObject().put("docs", docs);
+        if (!newEdits)
+            json.put("new_edits", false);
+        Buffer body = json.toBuffer();
+        return client.send( "bulk_docs", cookie -> client.request(HttpMethod.POST, "/"+ db +"/_bulk_docs", cookie)
+                .putHeader("Content-Type", "application/json"), body, false )
+                .compose( response -> {
+                    // a successful request returns an array, otherwise we get an error object
+                    if (response.statusCode()!=201 && response.statusCode()!=202)
+                        return Future.failedFuture( response.bodyAsString() );
+
+                    // without new edits only the failures are listed, so drop every document sent from the cache
+                    docs.forEach( doc -> {
+                        String id = ((JsonObject)doc).getString("_id");
+                        if (id!=null)
+                            client.cache.invalidate("/"+ db +"/"+ id);
+                    });
+                    return Future.succeededFuture( response.bodyAsJsonArray() );
+                });
+    }
+
     /** Get a specific document by it's id.
      * https://docs.couchdb.org/en/stable/api/document/common.html#get--db-docid
      * @param id the key provided when the document was added to the database
      * @return The document with the requested id in a JsonObject. */
     public Future<JsonObject> getDoc(String id) {
-        Promise<JsonObject> promise = Promise.promise();
-        client.request(HttpMethod.GET, "/"+ db +"/"+id)
-                .as(BodyCodec.jsonObject())
-                .send( request -> {
+        return client.fetch("doc.get", "/"+ db +"/"+id, DocumentTTL)
+                .map( Buffer::toJsonObject );
+    }
 
-                    if (!request.succeeded())
-                        promise.fail( request.cause() );
+    /** Follow the changes to this database as they happen, including the changed documents.
+     * https://docs.couchdb.org/en/stable/api/database/changes.html
+     * @param since the sequence to start after, or "now" to only see changes made from here on
+     * @return a never ending stream of changes, which only ends if CouchDB closes the feed. Close it when done. */
+    public ChangeStream getChanges(String since) {
+        ChangeStream changes = new ChangeStream();
 
-                    HttpResponse<JsonObject> response = request.result();
-                    JsonObject body = response.body();
-                    if (body.containsKey("error"))
-                        promise.fail( body.toString() );
+        String uri;
+        try {
+            uri = "/" + db + "/_changes?feed=continuous&include_docs=true"
+                    + "&heartbeat=" + Heartbeat
+                    + "&since=" + URLEncoder.encode(since, "UTF-8");
+        } catch (UnsupportedEncodingException error) {
+            changes.fail( error );
+            return changes;
+        }
+
+        follow( uri, changes, false );
+        return changes;
+    }
+
+    /** Opens the feed, logging in again and reopening it once if CouchDB says the session has expired.
+     * Every way of getting the response from the core http client is deprecated in Vert.x 3.9 in favour of the 4.0
+     * Future API, which 3.9 doesn't have yet, so that warning is suppressed here. */
+    @SuppressWarnings("deprecation")
+    private void follow(String uri, ChangeStream changes, boolean renewed) {
+        if (changes.closed)
+            return;
+        // the web client can't abandon a request, so we use the underlying http client for this one
+        String cookie = client.cookie();
+        HttpClientRequest request = client.http.request(HttpMethod.GET, client.port, client.host, uri, response -> {
+            client.refreshCookie( response.getHeader("Set-Cookie") );
+            if (response.statusCode()==401 && !renewed && client.user!=null) {
+                response.request().reset();
+                client.reauthenticate(cookie).onComplete( auth -> {
+                    if (auth.succeeded())
+                        follow( uri, changes, true );
                     else
-                        promise.complete( body );
+                        changes.fail( auth.cause() );
                 });
-        return promise.future();
+                return;
+            }
+            if (response.statusCode()!=200) {
+                changes.fail( new IllegalStateException( "Changes feed for \""+db+"\" failed: "
+                        + response.statusCode() + " " + response.statusMessage() ) );
+                response.request().reset();
+                return;
+            }
+            changes.open();
+            response.pipeTo( changes.sink() );
+        })
+                .putHeader("Accept", "application/json")
+                .putHeader("Cookie", cookie);
+        request.exceptionHandler( changes::fail );
+        changes.onClose( request::reset );
+        request.end();
+    }
+
+    /** @return a stream which writes documents to this database in batches, for loads too big to hold in memory */
+    public BulkWriter getWriter() {
+        return new BulkWriter(this);
     }
 
     /** @return a client View object for the default view of the database */
@@ -125,31 +262,23 @@ public class Database {
     /** Get a list of all available views of the database
      * @return a JsonArray containing the names of all design documents added to this database */
     public Future<JsonArray> getDesigns() {
-        Promise<JsonArray> promise = Promise.promise();
-        client.request( HttpMethod.GET, "/"+ db +"/_design_docs")
-                .as(BodyCodec.jsonObject())
-                .send( request -> {
-                    if (request.succeeded()) {
-                        HttpResponse<JsonObject> response = request.result();
-                        JsonObject body = response.body();
-                        JsonArray products = new JsonArray();
-
-                        // get the list of design documents
-                        JsonArray rows = body.getJsonArray("rows");
-                        rows.forEach( row -> {
-
-                            // trim the conventional design document prefix
-                            String id = ((JsonObject)row).getString("id");
-                            String view = id.substring( 1 + id.lastIndexOf("/") );
-
-                            // the views correspond to data products
-                            products.add( view );
-                        });
-                        promise.complete(products);
-                    } else
-                        promise.fail( request.cause() );
-                } );
-        return promise.future();
+        return client.fetch("design_docs", "/"+ db +"/_design_docs", DesignsTTL).map( buffer -> {
+            JsonObject body = buffer.toJsonObject();
+            JsonArray products = new JsonArray();
+
+            // get the list of design documents
+            JsonArray rows = body.getJsonArray("rows");
+            rows.forEach( row -> {
+
+                // trim the conventional design document prefix
+                String id = ((JsonObject)row).getString("id");
+                String view = id.substring( 1 + id.lastIndexOf("/") );
+
+                // the views correspond to data products
+                products.add( view );
+            });
+            return products;
+        });
     }
 
     /** Creates a design doc and adds it to the database
@@ -160,9 +289,25 @@ public class Database {
         Promise<Design> promise = Promise.promise();
         Design design = new Design(client, db, name);
         design.create( name, designDocument )
-                .onSuccess( v -> promise.complete( design ) )
+                .onSuccess( v -> {
+                    // a new design has no indexes at all, so build them in the background before anyone asks
+                    design.warm();
+                    promise.complete( design );
+                })
                 .onFailure( promise::fail );
         return promise.future();
     }
 
+    /** Brings the indexes of every design in the database up to date, e.g. after a bulk load.
+     * Failures are recorded by the 'view.warm' metrics and otherwise ignored, a view which couldn't be warmed will
+     * just be slow to read the first time.
+     * @return a future that completes when all the designs have been warmed */
+    public Future<Void> warm() {
+        return getDesigns().compose( names -> {
+            List<Future<Void>> warming = new ArrayList<>();
+            names.forEach( name -> warming.add( new Design(client, db, (String)name).warm() ) );
+            return Design.join( warming );
+        });
+    }
+
 }
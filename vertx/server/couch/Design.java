@@ -7,6 +7,9 @@ import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.client.HttpResponse;
 import io.vertx.ext.web.codec.BodyCodec;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /** A client for CouchDB Design Documents */
 public class Design {
 
@@ -33,7 +36,7 @@ public class Design {
         String uri = "/" + db + "/_design/" + name;
         client.request(HttpMethod.PUT, uri)
                 .as(BodyCodec.jsonObject())
-                .sendJsonObject(design, request -> {
+                .sendJsonObject(design, client.metrics.time("design.put", request -> {
 
                     if (!request.succeeded())
                         promise.fail(request.cause());
@@ -44,8 +47,10 @@ public class Design {
                     if (message.containsKey("error"))
                         promise.fail(message.toString());
 
+                    client.cache.invalidate("/" + db + "/_design_docs");
+                    client.cache.invalidate(uri);
                     promise.complete();
-                });
+                }));
 
         return promise.future();
     }
@@ -57,7 +62,7 @@ public class Design {
         String uri = "/" + db + "/_design/" + name;
         client.request(HttpMethod.GET, uri)
                 .as( BodyCodec.jsonObject() )
-                .send( request -> {
+                .send( client.metrics.time("design.get", request -> {
 
                     if (!request.succeeded())
                         promise.fail( request.cause() );
@@ -66,10 +71,44 @@ public class Design {
                     JsonObject body = response.body();
 
                     promise.complete( body );
-                });
+                }));
         return promise.future();
     } // TODO add a variant that uses a HTTP Head command for 'has' predicates...
 
+    /** Builds the indexes of every view in this design, so the first viewer doesn't have to wait for them.
+     * CouchDB only updates a view's index when the view is read, so after a bulk load the next query waits while
+     * every new document is indexed. This reads each view for no rows, paying that cost up front instead.
+     * @return a future that completes when every view is up to date, or fails if any of them couldn't be read */
+    public Future<Void> warm() {
+        return getDesignDocument().compose( ddoc -> {
+            JsonObject views = ddoc.getJsonObject("views", new JsonObject());
+            List<Future<Void>> warming = new ArrayList<>();
+            views.fieldNames().forEach( view -> warming.add( getView(view).warm() ) );
+            return join( warming );
+        });
+    }
+
+    /** Waits for every one of the futures, like CompositeFuture.join but typed, so the list needn't be of raw Futures.
+     * @return completes once they all have, failing with the first failure if any of them failed */
+    static Future<Void> join(List<Future<Void>> futures) {
+        if (futures.isEmpty())
+            return Future.succeededFuture();
+        Promise<Void> promise = Promise.promise();
+        int[] pending = { futures.size() };
+        Throwable[] failure = { null };
+        futures.forEach( future -> future.onComplete( done -> {
+            if (done.failed() && failure[0]==null)
+                failure[0] = done.cause();
+            if (--pending[0] > 0)
+                return;
+            if (failure[0]==null)
+                promise.complete();
+            else
+                promise.fail( failure[0] );
+        }));
+        return promise.future();
+    }
+
     public View getView(String name) {
         View view = new View(client, db, this.name, name);
         // todo do we verify the view exists in the database?
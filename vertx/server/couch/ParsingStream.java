@@ -0,0 +1,194 @@
+package server.couch;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.core.streams.WriteStream;
+
+import java.util.ArrayDeque;
+import java.util.function.Predicate;
+
+/** Parses JSON objects out of a CouchDB response as it arrives, emitting each one as soon as it is read.
+ * The response body is written to the sink, and parsed objects are queued until the consumer asks for them.
+ * When the queue fills up the sink reports it is full, which pauses the http response until the consumer catches up.
+ * Subclasses decide how the body is broken up into objects.
+ * @author casey */
+public abstract class ParsingStream implements ReadStream<JsonObject> {
+
+    /** The number of parsed objects which can be queued before the http response is paused. */
+    public static final int DefaultQueueSize = 256;
+
+    Sink sink = new Sink();
+    ArrayDeque<JsonObject> queue = new ArrayDeque<>();
+    int maxQueueSize = DefaultQueueSize;
+    Predicate<JsonObject> filter;
+
+    long demand = Long.MAX_VALUE;
+    boolean ended = false;
+    boolean closed = false;
+    Throwable failure;
+
+    Handler<JsonObject> handler;
+    Handler<Void> endHandler;
+    Handler<Throwable> exceptionHandler;
+    Handler<Void> drainHandler;
+
+    /** @return a write stream which accepts the raw response, e.g. for use with BodyCodec.pipe */
+    public WriteStream<Buffer> sink() { return sink; }
+
+    /** Parse the next chunk of the response, calling emit() for each complete object */
+    protected abstract void parse(Buffer data);
+
+    /** Called once the whole response has been written */
+    protected abstract void finish();
+
+    /** Only emit objects which pass the given test, for conditions the CouchDB query can't express.
+     * Rejected objects are dropped as they are parsed, so they never take up room in the queue. */
+    public ParsingStream filter(Predicate<JsonObject> filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /** Queue a parsed object then deliver whatever the consumer has asked for. */
+    protected void emit(JsonObject object) {
+        if (failure!=null || closed)
+            return;
+        if (filter!=null && !filter.test(object))
+            return;
+        queue.add( object );
+        drain();
+    }
+
+    /** Deliver queued objects while there is demand, then signal the sink or the end of the stream. */
+    private void drain() {
+        while (demand > 0 && handler!=null && !queue.isEmpty()) {
+            if (demand != Long.MAX_VALUE)
+                demand--;
+            handler.handle( queue.poll() );
+        }
+
+        // let the http response resume once we've worked off half the queue
+        if (drainHandler!=null && queue.size() <= maxQueueSize/2) {
+            Handler<Void> drained = drainHandler;
+            drainHandler = null;
+            drained.handle(null);
+        }
+
+        // only end once every object has been delivered
+        if (ended && queue.isEmpty() && !closed && failure==null) {
+            closed = true;
+            if (endHandler!=null)
+                endHandler.handle(null);
+        }
+    }
+
+    /** Fails the stream, discarding any undelivered objects. Usually due to a network or parsing error. */
+    public void fail(Throwable cause) {
+        if (failure!=null || closed)
+            return;
+        failure = cause;
+        queue.clear();
+        if (exceptionHandler!=null)
+            exceptionHandler.handle( cause );
+    }
+
+    @Override
+    public ParsingStream exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        if (handler!=null && failure!=null)
+            handler.handle( failure );
+        return this;
+    }
+
+    @Override
+    public ParsingStream handler(Handler<JsonObject> handler) {
+        this.handler = handler;
+        drain();
+        return this;
+    }
+
+    @Override
+    public ParsingStream pause() {
+        demand = 0;
+        return this;
+    }
+
+    @Override
+    public ParsingStream resume() {
+        return fetch( Long.MAX_VALUE );
+    }
+
+    @Override
+    public ParsingStream fetch(long amount) {
+        demand += amount;
+        if (demand < 0)
+            demand = Long.MAX_VALUE;
+        drain();
+        return this;
+    }
+
+    @Override
+    public ParsingStream endHandler(Handler<Void> endHandler) {
+        this.endHandler = endHandler;
+        drain();
+        return this;
+    }
+
+    /** Receives the raw response body, and applies back pressure to it. */
+    class Sink implements WriteStream<Buffer> {
+
+        @Override
+        public Sink exceptionHandler(Handler<Throwable> handler) {
+            return this;
+        }
+
+        @Override
+        public Sink write(Buffer data) {
+            return write( data, null );
+        }
+
+        @Override
+        public Sink write(Buffer data, Handler<AsyncResult<Void>> handler) {
+            if (failure==null)
+                parse( data );
+            if (handler!=null)
+                handler.handle( failure==null ? Future.succeededFuture() : Future.failedFuture(failure) );
+            return this;
+        }
+
+        @Override
+        public void end() {
+            end( (Handler<AsyncResult<Void>>) null );
+        }
+
+        @Override
+        public void end(Handler<AsyncResult<Void>> handler) {
+            if (failure==null)
+                finish();
+            ended = true;
+            drain();
+            if (handler!=null)
+                handler.handle( failure==null ? Future.succeededFuture() : Future.failedFuture(failure) );
+        }
+
+        @Override
+        public Sink setWriteQueueMaxSize(int maxSize) {
+            maxQueueSize = maxSize;
+            return this;
+        }
+
+        @Override
+        public boolean writeQueueFull() {
+            return queue.size() >= maxQueueSize;
+        }
+
+        @Override
+        public Sink drainHandler(Handler<Void> handler) {
+            drainHandler = handler;
+            return this;
+        }
+    }
+}
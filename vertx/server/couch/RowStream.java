@@ -0,0 +1,66 @@
+package server.couch;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.parsetools.JsonEvent;
+import io.vertx.core.parsetools.JsonEventType;
+import io.vertx.core.parsetools.JsonParser;
+
+/** Incrementally parses the 'rows' array of a CouchDB view response, emitting each row as soon as it is read.
+ * The response body is written to the sink, and rows are queued until the consumer asks for them.
+ * When the queue fills up the sink reports it is full, which pauses the http response until the consumer catches up.
+ * @author casey */
+public class RowStream extends ParsingStream {
+
+    JsonParser parser;
+
+    // nesting depth of the response and whether we are inside the 'rows' array
+    int depth = 0;
+    boolean inRows = false;
+
+    public RowStream() {
+        this.parser = JsonParser.newParser();
+        parser.handler( this::onEvent );
+        parser.exceptionHandler( this::fail );
+    }
+
+    @Override
+    protected void parse(Buffer data) {
+        parser.handle( data );
+    }
+
+    @Override
+    protected void finish() {
+        parser.end();
+    }
+
+    /** Tracks the structure of the response, switching to object value mode while inside the rows array. */
+    private void onEvent(JsonEvent event) {
+        switch (event.type()) {
+            case START_OBJECT:
+            case START_ARRAY:
+                if (depth==1 && event.type()==JsonEventType.START_ARRAY
+                        && "rows".equals(event.fieldName())) {
+                    inRows = true;
+                    parser.objectValueMode();
+                }
+                depth++;
+                break;
+
+            case END_OBJECT:
+            case END_ARRAY:
+                depth--;
+                if (inRows && depth==1) {
+                    inRows = false;
+                    parser.objectEventMode();
+                }
+                break;
+
+            case VALUE:
+                if (inRows)
+                    emit( event.objectValue() );
+                else if (depth==1 && "error".equals(event.fieldName()))
+                    fail( new IllegalStateException( event.stringValue() ) );
+                break;
+        }
+    }
+}
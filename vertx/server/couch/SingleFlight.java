@@ -0,0 +1,47 @@
+package server.couch;
+
+import io.vertx.core.Future;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/** Collapses concurrent identical requests into one, so a burst of clients asking the same question at the same time
+ * costs CouchDB a single query. Everyone asking while a request is in flight gets that request's future, and the next
+ * one to ask after it completes starts a new request. Results are shared, so callers mustn't modify them.
+ * This isn't thread safe, it should be owned by a single verticle like the Couch client it belongs to.
+ * @author casey */
+public class SingleFlight<T> {
+
+    Map<String, Future<T>> flights = new HashMap<>();
+    long calls = 0;
+    long shared = 0;
+
+    /** @param key identifies the request, e.g. its method, uri and query parameters
+     * @param request starts the request, only called if an identical one isn't already in flight
+     * @return the future of the request already in flight, or of the new one */
+    public Future<T> run(String key, Supplier<Future<T>> request) {
+        calls++;
+        Future<T> flight = flights.get(key);
+        if (flight!=null) {
+            shared++;
+            return flight;
+        }
+
+        flight = request.get();
+        if (flight.isComplete())
+            return flight;
+        flights.put(key, flight);
+        flight.onComplete( result -> flights.remove(key) );
+        return flight;
+    }
+
+    /** @return the number of requests currently in flight */
+    public int size() { return flights.size(); }
+
+    /** @return the number of times a request was asked for */
+    public long getCalls() { return calls; }
+
+    /** @return the number of times a request was answered by one already in flight */
+    public long getShared() { return shared; }
+}
@@ -1,11 +1,12 @@
 package server.couch;
 
 import io.vertx.core.Future;
-import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpRequest;
 import io.vertx.ext.web.client.HttpResponse;
-import io.vertx.ext.web.codec.BodyCodec;
 
 /** Provides a client for a CouchDB Views, which allow you to fetch contiguous key intervals of documents from the database.
  * @author casey */
@@ -14,6 +15,8 @@ public class View {
     Couch client;
     String db;
     String view;
+    boolean lazy = false;
+    boolean includeDocs = false;
 
     /** All CouchDB databases provide a default view of all documents keyed by their IDs. */
     public static final String DefaultView = "/_all_docs";
@@ -38,55 +41,173 @@ public class View {
         this.view = "/_design/" + design + "/_view/" + view;
     }
 
-    /** Get documents from the default view of this design
+    /** Reads of this view which don't wait for CouchDB to bring the index up to date, for interactive viewers.
+     * CouchDB answers from the index as it stands and updates it afterwards, so the first query after a bulk load is
+     * as fast as any other, but may be missing the newest documents. Readers who need those should follow the
+     * changes feed, which has them anyway. The answers come from a stable set of shard replicas, so consecutive pages
+     * don't disagree.
+     * https://docs.couchdb.org/en/stable/api/ddoc/views.html#db-design-design-doc-view-view-name
+     * @return a client for the same view whose queries are all lazy */
+    public View lazy() {
+        View lazy = copy();
+        lazy.lazy = true;
+        return lazy;
+    }
+
+    public boolean isLazy() { return lazy; }
+
+    /** Reads of this view which include the whole document in each row as 'doc', e.g. to export a database.
+     * @return a client for the same view whose rows all include their documents */
+    public View includeDocs() {
+        View docs = copy();
+        docs.includeDocs = true;
+        return docs;
+    }
+
+    public boolean isIncludeDocs() { return includeDocs; }
+
+    private View copy() {
+        View copy = new View(client, db);
+        copy.view = view;
+        copy.lazy = lazy;
+        copy.includeDocs = includeDocs;
+        return copy;
+    }
+
+    /** Builds the index of this view if it isn't already, and waits until it is up to date.
+     * Querying for no rows costs nothing once the index is built, but otherwise it makes CouchDB catch the index up
+     * with every document added since, which is what the first viewer after a bulk load would be waiting on.
+     * @return a future that completes when the index is up to date */
+    public Future<Void> warm() {
+        String uri = '/' + db + view;
+        return client.queries.run( uri + "?limit=0", () -> client.send( "view.warm",
+                cookie -> client.request(HttpMethod.GET, uri, cookie).addQueryParam("limit", "0"), true )
+                .compose( response -> response.statusCode()==200
+                        ? Future.succeededFuture( response.bodyAsJsonObject() )
+                        : Future.failedFuture( response.bodyAsString() ) ) )
+                .mapEmpty();
+    }
+
+    /** Get documents from the default view of this design.
+     * Identical queries asked for at the same time share one request, so the response mustn't be modified.
      * @param startkey the minimum key in lexical order, inclusive
      * @param endkey the maximum key in lexical order, inclusive
      * */
     public Future<JsonObject> getDocs(String startkey, String endkey) {
-        Promise<JsonObject> promise = Promise.promise();
-
         // assemble the URI and arguments for the specified page
         String uri = '/' + db + view;
-        client.request(HttpMethod.GET, uri)
+        String key = uri + "?startkey=" + startkey + "&endkey=" + endkey + options();
+        return client.queries.run( key, () -> client.send( "view", cookie -> get(cookie)
                 .addQueryParam("startkey", startkey)
-                .addQueryParam("endkey", endkey)
-                .as(BodyCodec.jsonObject())
-                .send(request -> {
-                    if (request.succeeded()) {
-                        HttpResponse<JsonObject> response = request.result();
-//                printResponse(response);
-                        promise.complete( response.body() );
-                    } else
-                        promise.fail( request.cause() );
-                });
-
-        return promise.future();
+                .addQueryParam("endkey", endkey), true )
+                .map( HttpResponse::bodyAsJsonObject ) );
     } // TODO maybe figure out a more fluent way to set query parameters...
 
+    /** Stream documents from the view between the two keys, rather than buffering the entire response.
+     * @param startkey the minimum key in lexical order, inclusive
+     * @param endkey the maximum key in lexical order, inclusive
+     * @return a stream of view rows, which fails if CouchDB can't be reached or responds with an error */
+    public RowStream streamDocs(String startkey, String endkey) {
+        RowStream rows = new RowStream();
+        client.stream( "view", cookie -> get(cookie)
+                .addQueryParam("startkey", startkey)
+                .addQueryParam("endkey", endkey), rows );
+        return rows;
+    }
+
     /** Get documents from th e default view of this design
      * @param startkey the minimum key in lexical order, inclusive
      * @param limit the maximum key in lexical order, inclusive
      * */
     public Future<JsonObject> getDocs(String startkey, Integer limit) {
-        Promise<JsonObject> promise = Promise.promise();
-
         // assemble the URI and arguments for the specified page
         String uri = '/' + db + view;
-        client.request(HttpMethod.GET, uri)
+        String key = uri + "?startkey=" + startkey + "&limit=" + limit + options();
+        return client.queries.run( key, () -> client.send( "view", cookie -> get(cookie)
                 .addQueryParam("startkey", startkey)
-                .addQueryParam("limit", limit.toString() )
-                //.addQueryParam("endkey", end)
-                .as(BodyCodec.jsonObject())
-                .send(request -> {
-                    if (request.succeeded()) {
-                        HttpResponse<JsonObject> response = request.result();
-//                printResponse(response);
-                        promise.complete( response.body() );
-                    } else
-                        promise.fail( request.cause() );
-                });
-
-        return promise.future();
+                .addQueryParam("limit", limit.toString() ), true )
+                .map( HttpResponse::bodyAsJsonObject ) );
+    }
+
+    /** Stream documents from the view, rather than buffering the entire response.
+     * Rows are parsed and emitted as they arrive, and the response is paused whenever the consumer falls behind.
+     * @param startkey the minimum key in lexical order, inclusive
+     * @param limit the maximum number of rows to return
+     * @return a stream of view rows, which fails if CouchDB can't be reached or responds with an error */
+    public RowStream streamDocs(String startkey, Integer limit) {
+        RowStream rows = new RowStream();
+        client.stream( "view", cookie -> get(cookie)
+                .addQueryParam("startkey", startkey)
+                .addQueryParam("limit", limit.toString() ), rows );
+        return rows;
+    }
+
+    /** Get a page of documents, starting at the cursor rather than skipping an offset so deep pages are as cheap as the first.
+     * One extra row is requested to find the start of the following page.
+     * https://docs.couchdb.org/en/stable/ddocs/views/pagination.html#paging-alternate-method
+     * @param after the first row of the page, or null for the first page of the view
+     * @param limit the maximum number of rows in the page
+     * Identical pages asked for at the same time share one query, so the response mustn't be modified.
+     * @return the view response, with at most 'limit' rows and a 'next' cursor token if there are more rows */
+    public Future<JsonObject> getPage(Cursor after, int limit) {
+        String uri = '/' + db + view;
+        String key = uri + "?limit=" + (limit+1) + (after==null ? "" : "&after=" + after.encode()) + options();
+        return client.queries.run( key, () -> client.send( "view", cookie -> page(get(cookie), after, limit), true )
+                .compose( response -> {
+                    if (response.statusCode()!=200)
+                        return Future.failedFuture( response.bodyAsString() );
+                    JsonObject body = response.bodyAsJsonObject();
+
+                    // the extra row isn't part of this page, it just marks where the next one starts
+                    JsonArray rows = body.getJsonArray("rows");
+                    if (rows.size() > limit) {
+                        JsonObject next = (JsonObject) rows.remove(limit);
+                        body.put("next", Cursor.of(next).encode());
+                    }
+                    return Future.succeededFuture( body );
+                }) );
+    }
+
+    /** Stream a page of documents starting at the cursor.
+     * Note the stream includes the extra row marking the start of the next page, if there is one.
+     * @param after the first row of the page, or null for the first page of the view
+     * @param limit the maximum number of rows in the page */
+    public RowStream streamPage(Cursor after, int limit) {
+        RowStream rows = new RowStream();
+        client.stream( "view", cookie -> page(get(cookie), after, limit), rows );
+        return rows;
+    }
+
+    /** @return a query of this view with the given session cookie, e.g. for send() or stream() */
+    private HttpRequest<Buffer> get(String cookie) {
+        return options(client.request(HttpMethod.GET, '/' + db + view, cookie));
+    }
+
+    /** adds the query parameters every query of this view has */
+    private <T> HttpRequest<T> options(HttpRequest<T> request) {
+        if (lazy)
+            request.addQueryParam("update", "lazy")
+                    .addQueryParam("stable", "true");
+        if (includeDocs)
+            request.addQueryParam("include_docs", "true");
+        return request;
+    }
+
+    /** @return the query parameters every query of this view has, to tell single flight keys apart */
+    private String options() {
+        return (lazy ? "&lazy" : "") + (includeDocs ? "&docs" : "");
+    }
+
+    /** assembles the query for a keyset page */
+    private static <T> HttpRequest<T> page(HttpRequest<T> request, Cursor after, int limit) {
+        request.addQueryParam("limit", Integer.toString(limit+1) );
+        if (after!=null) {
+            request.addQueryParam("startkey", after.getKeyJson());
+            // without an id the page starts at the first row with the key, e.g. to seek to a time
+            if (after.getId()!=null)
+                request.addQueryParam("startkey_docid", after.getId());
+        }
+        return request;
     }
 
     // todo add methods for document update and delete that only works in the default view?
@@ -3,6 +3,7 @@ package server.couch.designs.network;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
 /** Provides a CouchDB Design Document for the Network visualization data product.
@@ -21,6 +22,34 @@ public class Network {
 
     public String getName() { return DESIGN_NAME; }
 
+    /** Does what the events.map.js map function does, for when we have an event document but not its view row.
+     * @param doc an event document, as it is stored in the mission database
+     * @return a row as it would appear in the events view, with the [stamp, source] key and the class specific fields */
+    public static JsonObject toRow(JsonObject doc) {
+        JsonObject prep = new JsonObject();
+        copy(doc, prep, "time", "stamp", "source", "target", "class", "sic", "tap");
+
+        String type = doc.getString("class");
+        if ("strobe".equals(type))
+            copy(doc, prep, "angle");
+        else if ("track".equals(type))
+            copy(doc, prep, "angle", "range", "lat", "lon", "glyph");
+        else if ("plot".equals(type))
+            copy(doc, prep, "angle", "range", "lat", "lon", "glyph", "power");
+
+        return new JsonObject()
+                .put("id", doc.getString("_id"))
+                .put("key", new JsonArray().add(doc.getValue("stamp")).add(doc.getValue("source")))
+                .put("value", prep);
+    }
+
+    /** copies the fields which are present, like javascript leaves out undefined fields */
+    private static void copy(JsonObject from, JsonObject to, String... fields) {
+        for (String field : fields)
+            if (from.containsKey(field))
+                to.put(field, from.getValue(field));
+    }
+
     public Future<JsonObject> getDesignDocument() {
         Vertx vertx = Vertx.currentContext().owner();
         Promise<JsonObject> promise = Promise.promise();
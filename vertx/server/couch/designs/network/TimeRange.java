@@ -0,0 +1,106 @@
+package server.couch.designs.network;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import server.couch.RowStream;
+import server.couch.View;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/** A time window of the network events view, optionally restricted to a single source.
+ * The events view is keyed by [stamp, source], so the window is a contiguous range of keys starting at [stamp(from)]
+ * and ending just before [stamp(to)]. A source can't be expressed as part of that range, so it is filtered as rows arrive. */
+public class TimeRange {
+
+    /** The same ISO 8601 format javascript's Date.toISOString() produces, which is how the simulator stamps events. */
+    static final DateTimeFormatter STAMP = DateTimeFormatter
+            .ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    long from;
+    long to;
+    String source;
+
+    /** @param from the earliest event time in epoch milliseconds, inclusive
+     * @param to the latest event time in epoch milliseconds, exclusive */
+    public TimeRange(long from, long to) {
+        this(from, to, null);
+    }
+
+    /** @param from the earliest event time in epoch milliseconds, inclusive
+     * @param to the latest event time in epoch milliseconds, exclusive
+     * @param source only include events from this source, or null for all sources */
+    public TimeRange(long from, long to, String source) {
+        if (to < from)
+            throw new IllegalArgumentException("time range ends before it starts");
+        this.from = from;
+        this.to = to;
+        this.source = source;
+    }
+
+    public long getFrom() { return from; }
+
+    public long getTo() { return to; }
+
+    public String getSource() { return source; }
+
+    /** @return the event stamp corresponding to the given epoch milliseconds */
+    public static String stamp(long time) {
+        return STAMP.format( Instant.ofEpochMilli(time) );
+    }
+
+    /** @return the JSON start key; a one element array sorts before every [stamp, source] key with the same stamp */
+    public String getStartKey() {
+        return new JsonArray().add( stamp(from) ).encode();
+    }
+
+    /** @return the JSON end key; inclusive, but like the start key it sorts before any event stamped at 'to' */
+    public String getEndKey() {
+        return new JsonArray().add( stamp(to) ).encode();
+    }
+
+    /** @return whether the view row belongs to the requested source */
+    public boolean matches(JsonObject row) {
+        if (source==null)
+            return true;
+        JsonArray key = row.getJsonArray("key");
+        return key!=null && source.equals( key.getString(1) );
+    }
+
+    /** Fetch every event in the window
+     * @param view the network events view of a mission
+     * @return the view response, with rows from other sources removed */
+    public Future<JsonObject> query(View view) {
+        return view.getDocs( getStartKey(), getEndKey() ).map( json -> {
+            if (source!=null && json.containsKey("rows")) {
+                JsonArray rows = new JsonArray();
+                json.getJsonArray("rows").forEach( row -> {
+                    if (matches((JsonObject)row))
+                        rows.add( row );
+                });
+                // the response may be shared with other queries of the same window, so filter a copy
+                JsonObject filtered = new JsonObject();
+                json.forEach( field -> filtered.put(field.getKey(), field.getValue()) );
+                return filtered.put("rows", rows);
+            }
+            return json;
+        });
+    }
+
+    /** Stream every event in the window
+     * @param view the network events view of a mission */
+    public RowStream stream(View view) {
+        RowStream rows = view.streamDocs( getStartKey(), getEndKey() );
+        if (source!=null)
+            rows.filter( this::matches );
+        return rows;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + stamp(from) + ", " + stamp(to) + ")" + (source==null ? "" : " from " + source);
+    }
+}
@@ -0,0 +1,112 @@
+package server.events;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/** A typed event, with the fields events.map.js puts in the network view.
+ * Events of an unknown class are plain Events; strobes, tracks and plots add the fields their class carries, each
+ * extending the last as in the map function. Missing numbers are NaN, missing everything else is null.
+ * Events are handed between verticles without copying, so they mustn't be modified once they have been sent.
+ * @author casey */
+public class Event {
+
+    public static final String STROBE = "strobe";
+    public static final String TRACK = "track";
+    public static final String PLOT = "plot";
+
+    String id;
+    long time;
+    String stamp;
+    String source;
+    String target;
+    String type;
+    Object sic;
+    Object tap;
+
+    Event() {}
+
+    /** Reads an event document, picking the class of event from its 'class' field.
+     * @param doc an event document as it is stored in the mission database
+     * @return a Strobe, Track, Plot, or plain Event for any other class */
+    public static Event fromJson(JsonObject doc) {
+        Event event;
+        String type = doc.getString("class");
+        if (STROBE.equals(type))
+            event = new Strobe();
+        else if (TRACK.equals(type))
+            event = new Track();
+        else if (PLOT.equals(type))
+            event = new Plot();
+        else
+            event = new Event();
+        event.read(doc);
+        return event;
+    }
+
+    public String getId() { return id; }
+    public long getTime() { return time; }
+    public String getStamp() { return stamp; }
+    public String getSource() { return source; }
+    public String getTarget() { return target; }
+    public String getType() { return type; }
+    public Object getSic() { return sic; }
+    public Object getTap() { return tap; }
+
+    /** @return the fields events.map.js emits as the view value, leaving out any which are missing */
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        write(json);
+        return json;
+    }
+
+    /** @return the row the network events view has for this event, keyed by [stamp, source] */
+    public JsonObject toRow() {
+        return new JsonObject()
+                .put("id", id)
+                .put("key", new JsonArray().add(stamp).add(source))
+                .put("value", toJson());
+    }
+
+    /** Copies the fields of this class of event from the document */
+    void read(JsonObject doc) {
+        id = doc.getString("_id");
+        Object t = doc.getValue("time");
+        time = t instanceof Number ? ((Number)t).longValue() : 0;
+        stamp = doc.getString("stamp");
+        source = string( doc.getValue("source") );
+        target = string( doc.getValue("target") );
+        type = doc.getString("class");
+        sic = doc.getValue("sic");
+        tap = doc.getValue("tap");
+    }
+
+    /** Puts the fields of this class of event in the json, like the map function leaves out undefined fields */
+    void write(JsonObject json) {
+        json.put("time", time);
+        put(json, "stamp", stamp);
+        put(json, "source", source);
+        put(json, "target", target);
+        put(json, "class", type);
+        put(json, "sic", sic);
+        put(json, "tap", tap);
+    }
+
+    static void put(JsonObject json, String field, Object value) {
+        if (value!=null)
+            json.put(field, value);
+    }
+
+    static void put(JsonObject json, String field, double value) {
+        if (!Double.isNaN(value))
+            json.put(field, value);
+    }
+
+    static double number(JsonObject doc, String field) {
+        Object value = doc.getValue(field);
+        return value instanceof Number ? ((Number)value).doubleValue() : Double.NaN;
+    }
+
+    static String string(Object value) {
+        return value==null ? null : value.toString();
+    }
+}
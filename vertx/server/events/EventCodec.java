@@ -0,0 +1,216 @@
+package server.events;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.MessageCodec;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+
+/** Sends events over the event bus without turning them back into JSON.
+ * Locally the event itself is delivered, since events aren't modified once sent. Over the wire an event is a fixed
+ * layout of its numbers followed by its strings:
+ * <pre>
+ *   int    length of the rest of the message
+ *   byte   kind: 0 event, 1 strobe, 2 track, 3 plot
+ *   long   time
+ *   double angle, range, lat, lon, power, as far as the kind has them (NaN when missing)
+ *   string id, stamp, source, target, class: an int byte length, -1 for null, then UTF-8
+ *   value  sic, tap, and glyph for tracks and plots: a type byte, then a string, long, double or boolean
+ * </pre>
+ * @author casey */
+public class EventCodec implements MessageCodec<Event, Event> {
+
+    public static final String NAME = "event";
+
+    static final byte EVENT = 0, STROBE = 1, TRACK = 2, PLOT = 3;
+    static final byte NULL = 0, STRING = 1, LONG = 2, DOUBLE = 3, BOOLEAN = 4, JSON = 5;
+
+    /** Makes this the codec for every class of event on the Vert.x event bus, unless it already is.
+     * Registering is global to the Vert.x instance, so it only needs doing once however many verticles send events. */
+    public static void register(Vertx vertx) {
+        if (vertx.sharedData().getLocalMap("server.events").putIfAbsent("codec", true)!=null)
+            return;
+        EventBus bus = vertx.eventBus();
+        bus.registerDefaultCodec(Event.class, new EventCodec());
+        bus.registerDefaultCodec(Strobe.class, new Typed<>(Strobe.class));
+        bus.registerDefaultCodec(Track.class, new Typed<>(Track.class));
+        bus.registerDefaultCodec(Plot.class, new Typed<>(Plot.class));
+    }
+
+    /** The codec for a subclass of event. The event bus keys codecs by name and types them by the class they send,
+     * so each class needs its own, though they all write the same format.
+     * @param <T> the class of event sent */
+    static class Typed<T extends Event> implements MessageCodec<T, T> {
+        final EventCodec codec = new EventCodec();
+        final Class<T> type;
+
+        Typed(Class<T> type) {
+            this.type = type;
+        }
+
+        @Override
+        public void encodeToWire(Buffer buffer, T event) {
+            codec.encodeToWire(buffer, event);
+        }
+
+        @Override
+        public T decodeFromWire(int pos, Buffer buffer) {
+            return type.cast( codec.decodeFromWire(pos, buffer) );
+        }
+
+        @Override
+        public T transform(T event) {
+            return event;
+        }
+
+        @Override
+        public String name() { return NAME + "." + type.getSimpleName().toLowerCase(); }
+
+        @Override
+        public byte systemCodecID() { return -1; }
+    }
+
+    @Override
+    public void encodeToWire(Buffer buffer, Event event) {
+        int start = buffer.length();
+        buffer.appendInt(0); // filled in at the end
+
+        byte kind = event instanceof Plot ? PLOT : event instanceof Track ? TRACK : event instanceof Strobe ? STROBE : EVENT;
+        buffer.appendByte(kind);
+        buffer.appendLong(event.time);
+        if (kind >= STROBE)
+            buffer.appendDouble(((Strobe)event).angle);
+        if (kind >= TRACK) {
+            Track track = (Track)event;
+            buffer.appendDouble(track.range).appendDouble(track.lat).appendDouble(track.lon);
+        }
+        if (kind >= PLOT)
+            buffer.appendDouble(((Plot)event).power);
+
+        appendString(buffer, event.id);
+        appendString(buffer, event.stamp);
+        appendString(buffer, event.source);
+        appendString(buffer, event.target);
+        appendString(buffer, event.type);
+        appendValue(buffer, event.sic);
+        appendValue(buffer, event.tap);
+        if (kind >= TRACK)
+            appendValue(buffer, ((Track)event).glyph);
+
+        buffer.setInt(start, buffer.length() - start - 4);
+    }
+
+    @Override
+    public Event decodeFromWire(int pos, Buffer buffer) {
+        int[] at = {pos + 4};
+        byte kind = buffer.getByte(at[0]++);
+        Event event = kind==PLOT ? new Plot() : kind==TRACK ? new Track() : kind==STROBE ? new Strobe() : new Event();
+
+        event.time = buffer.getLong(at[0]);
+        at[0] += 8;
+        if (kind >= STROBE)
+            ((Strobe)event).angle = getDouble(buffer, at);
+        if (kind >= TRACK) {
+            Track track = (Track)event;
+            track.range = getDouble(buffer, at);
+            track.lat = getDouble(buffer, at);
+            track.lon = getDouble(buffer, at);
+        }
+        if (kind >= PLOT)
+            ((Plot)event).power = getDouble(buffer, at);
+
+        event.id = getString(buffer, at);
+        event.stamp = getString(buffer, at);
+        event.source = getString(buffer, at);
+        event.target = getString(buffer, at);
+        event.type = getString(buffer, at);
+        event.sic = getValue(buffer, at);
+        event.tap = getValue(buffer, at);
+        if (kind >= TRACK)
+            ((Track)event).glyph = getValue(buffer, at);
+        return event;
+    }
+
+    /** Events are never modified once sent, so local consumers can all share the one instance */
+    @Override
+    public Event transform(Event event) {
+        return event;
+    }
+
+    @Override
+    public String name() { return NAME; }
+
+    @Override
+    public byte systemCodecID() { return -1; }
+
+    static void appendString(Buffer buffer, String value) {
+        if (value==null) {
+            buffer.appendInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.appendInt(bytes.length).appendBytes(bytes);
+    }
+
+    static String getString(Buffer buffer, int[] at) {
+        int length = buffer.getInt(at[0]);
+        at[0] += 4;
+        if (length < 0)
+            return null;
+        String value = buffer.getString(at[0], at[0] + length, "UTF-8");
+        at[0] += length;
+        return value;
+    }
+
+    static double getDouble(Buffer buffer, int[] at) {
+        double value = buffer.getDouble(at[0]);
+        at[0] += 8;
+        return value;
+    }
+
+    /** sic, tap and glyph are numbers in some missions and strings in others, so they carry their type */
+    static void appendValue(Buffer buffer, Object value) {
+        if (value==null)
+            buffer.appendByte(NULL);
+        else if (value instanceof String) {
+            buffer.appendByte(STRING);
+            appendString(buffer, (String)value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+            buffer.appendByte(LONG).appendLong(((Number)value).longValue());
+        else if (value instanceof Number)
+            buffer.appendByte(DOUBLE).appendDouble(((Number)value).doubleValue());
+        else if (value instanceof Boolean)
+            buffer.appendByte(BOOLEAN).appendByte((byte)((Boolean)value ? 1 : 0));
+        else {
+            buffer.appendByte(JSON);
+            appendString(buffer, value instanceof JsonObject ? ((JsonObject)value).encode()
+                    : value instanceof JsonArray ? ((JsonArray)value).encode() : value.toString());
+        }
+    }
+
+    static Object getValue(Buffer buffer, int[] at) {
+        byte type = buffer.getByte(at[0]++);
+        switch (type) {
+            case STRING:
+                return getString(buffer, at);
+            case LONG: {
+                long value = buffer.getLong(at[0]);
+                at[0] += 8;
+                return value;
+            }
+            case DOUBLE:
+                return getDouble(buffer, at);
+            case BOOLEAN:
+                return buffer.getByte(at[0]++)==1;
+            case JSON: {
+                String json = getString(buffer, at);
+                return json.startsWith("[") ? new JsonArray(json) : new JsonObject(json);
+            }
+            default:
+                return null;
+        }
+    }
+}
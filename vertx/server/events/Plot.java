@@ -0,0 +1,25 @@
+package server.events;
+
+import io.vertx.core.json.JsonObject;
+
+/** A track which also measured the power of the source */
+public class Plot extends Track {
+
+    double power = Double.NaN;
+
+    Plot() {}
+
+    public double getPower() { return power; }
+
+    @Override
+    void read(JsonObject doc) {
+        super.read(doc);
+        power = number(doc, "power");
+    }
+
+    @Override
+    void write(JsonObject json) {
+        super.write(json);
+        put(json, "power", power);
+    }
+}
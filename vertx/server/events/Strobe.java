@@ -0,0 +1,25 @@
+package server.events;
+
+import io.vertx.core.json.JsonObject;
+
+/** A bearing to a source, without a range */
+public class Strobe extends Event {
+
+    double angle = Double.NaN;
+
+    Strobe() {}
+
+    public double getAngle() { return angle; }
+
+    @Override
+    void read(JsonObject doc) {
+        super.read(doc);
+        angle = number(doc, "angle");
+    }
+
+    @Override
+    void write(JsonObject json) {
+        super.write(json);
+        put(json, "angle", angle);
+    }
+}
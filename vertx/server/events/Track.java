@@ -0,0 +1,37 @@
+package server.events;
+
+import io.vertx.core.json.JsonObject;
+
+/** A located source, with its bearing, range, position and the glyph it is drawn with */
+public class Track extends Strobe {
+
+    double range = Double.NaN;
+    double lat = Double.NaN;
+    double lon = Double.NaN;
+    Object glyph;
+
+    Track() {}
+
+    public double getRange() { return range; }
+    public double getLat() { return lat; }
+    public double getLon() { return lon; }
+    public Object getGlyph() { return glyph; }
+
+    @Override
+    void read(JsonObject doc) {
+        super.read(doc);
+        range = number(doc, "range");
+        lat = number(doc, "lat");
+        lon = number(doc, "lon");
+        glyph = doc.getValue("glyph");
+    }
+
+    @Override
+    void write(JsonObject json) {
+        super.write(json);
+        put(json, "range", range);
+        put(json, "lat", lat);
+        put(json, "lon", lon);
+        put(json, "glyph", glyph);
+    }
+}
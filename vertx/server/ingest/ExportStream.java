@@ -0,0 +1,135 @@
+package server.ingest;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import server.couch.Cursor;
+import server.couch.Database;
+import server.couch.RowStream;
+import server.couch.View;
+
+/** Reads every document in a database as newline delimited JSON, including design documents and revisions, so
+ * importing it elsewhere without new edits reproduces the database.
+ * The documents are read a page of _all_docs at a time and parsed as they arrive, and a page is only read as fast as
+ * the consumer takes its documents, so a database of any size is exported with no more than a page of it in memory.
+ * @author casey */
+public class ExportStream implements ReadStream<Buffer> {
+
+    /** The number of documents read in each request */
+    public static final int DefaultPageSize = 1000;
+
+    View view;
+    int pageSize;
+
+    RowStream page;
+    int rows;
+    JsonObject next;
+    long exported = 0;
+    boolean paused = false;
+    boolean ended = false;
+    boolean failed = false;
+
+    Handler<Buffer> handler;
+    Handler<Void> endHandler;
+    Handler<Throwable> exceptionHandler;
+
+    public ExportStream(Database db) {
+        this(db, DefaultPageSize);
+    }
+
+    public ExportStream(Database db, int pageSize) {
+        this.view = db.getDefaultView().includeDocs();
+        this.pageSize = pageSize;
+    }
+
+    /** @return the number of documents read so far */
+    public long getExported() { return exported; }
+
+    /** Streams the page starting at the cursor, keeping its extra row as the start of the one after */
+    private void read(Cursor after) {
+        rows = 0;
+        next = null;
+        page = view.streamPage(after, pageSize);
+        if (paused)
+            page.pause();
+        page.exceptionHandler( this::fail );
+        page.endHandler( v -> {
+            if (failed)
+                return;
+            if (next!=null)
+                read( Cursor.of(next) );
+            else {
+                ended = true;
+                if (endHandler!=null)
+                    endHandler.handle(null);
+            }
+        });
+        page.handler( this::emit );
+    }
+
+    private void emit(JsonObject row) {
+        if (rows++ >= pageSize) {
+            next = row;
+            return;
+        }
+        JsonObject doc = row.getJsonObject("doc");
+        if (doc==null)
+            return;
+        exported++;
+        handler.handle( doc.toBuffer().appendString("\n") );
+    }
+
+    private void fail(Throwable cause) {
+        if (failed)
+            return;
+        failed = true;
+        if (exceptionHandler!=null)
+            exceptionHandler.handle(cause);
+    }
+
+    @Override
+    public ExportStream exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    /** Starts reading the database once there's someone to read it to */
+    @Override
+    public ExportStream handler(Handler<Buffer> handler) {
+        this.handler = handler;
+        if (handler!=null && page==null)
+            read(null);
+        return this;
+    }
+
+    @Override
+    public ExportStream pause() {
+        paused = true;
+        if (page!=null)
+            page.pause();
+        return this;
+    }
+
+    @Override
+    public ExportStream resume() {
+        paused = false;
+        if (page!=null)
+            page.resume();
+        return this;
+    }
+
+    @Override
+    public ExportStream fetch(long amount) {
+        paused = false;
+        if (page!=null)
+            page.fetch(amount);
+        return this;
+    }
+
+    @Override
+    public ExportStream endHandler(Handler<Void> endHandler) {
+        this.endHandler = endHandler;
+        return this;
+    }
+}
@@ -0,0 +1,110 @@
+package server.ingest;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import server.couch.BulkWriter;
+import server.couch.Couch;
+import server.couch.CouchOptions;
+import server.couch.Database;
+import server.couch.designs.network.Network;
+import server.simulator.Simulator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/** Loads a stream of events into a mission database, e.g. from a simulation or a newline delimited JSON file.
+ * The stream is piped into a BulkWriter, so it is paused whenever CouchDB falls behind and the load never holds more
+ * than a few batches in memory, however long it is.
+ * Run from the command line it replaces node/uploader.js, creating the mission if need be;
+ * Ingest [config] mission [events.ndjson]
+ * where the events are simulated using the config's 'simulation' section if no file is given.
+ * @author casey */
+public class Ingest {
+
+    /** Where the configuration is read from when no path is given on the command line */
+    static final String DefaultConfig = "vertx/server/config/server.json";
+
+    /** How long a simulation runs when the config doesn't say, the same as node/uploader.js */
+    static final long DefaultDuration = 60000;
+
+    /** Pipes the documents into the writer, ending it when they run out.
+     * If the source fails part way the writer is still ended, so what came before is written, and the failure is only
+     * reported once it has been and the writer's counts are final.
+     * @return a summary of what was written, or a failure if the source or CouchDB failed part way */
+    public static Future<JsonObject> run(ReadStream<JsonObject> source, BulkWriter writer) {
+        long start = System.currentTimeMillis();
+        Promise<JsonObject> promise = Promise.promise();
+        source.pipe().endOnFailure(false).to( writer, piped -> {
+            if (piped.succeeded())
+                promise.complete( writer.toJson().put("elapsed", System.currentTimeMillis() - start) );
+            else
+                writer.end( ended -> promise.fail( piped.cause() ) );
+        });
+        return promise.future();
+    }
+
+    /** Simulates a run and loads the events as they are generated.
+     * @param simulation the simulator config, see Simulator */
+    public static Future<JsonObject> simulate(Vertx vertx, JsonObject simulation, Database mission) {
+        Simulator simulator = new Simulator( simulation );
+        return run( new IteratorStream<>(vertx, simulator.iterator()), mission.getWriter() );
+    }
+
+    /** Loads the events in a newline delimited JSON file, reading it only as fast as CouchDB takes them */
+    public static Future<JsonObject> load(Vertx vertx, String path, Database mission) {
+        return Future.<AsyncFile>future( promise ->
+                vertx.fileSystem().open( path, new OpenOptions().setRead(true).setWrite(false), promise ) )
+                .compose( file -> run( new JsonLines(file), mission.getWriter() ) );
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Ingest [config] mission [events.ndjson]");
+            return;
+        }
+        boolean configured = args.length > 1 && args[0].endsWith(".json");
+        String path = configured ? args[0] : DefaultConfig;
+        String umi = args[configured ? 1 : 0];
+        String events = args.length > (configured ? 2 : 1) ? args[configured ? 2 : 1] : null;
+
+        JsonObject config = new JsonObject( new String( Files.readAllBytes( Paths.get(path) ), StandardCharsets.UTF_8 ) );
+        JsonObject couch = config.getJsonObject("couchdb", new JsonObject());
+        JsonObject credentials = couch.getJsonObject("credentials", new JsonObject());
+        JsonObject simulation = config.getJsonObject("simulation", new JsonObject()).copy();
+        if (!simulation.containsKey("start"))
+            simulation.put("start", System.currentTimeMillis());
+        if (!simulation.containsKey("end") && !simulation.containsKey("duration"))
+            simulation.put("duration", DefaultDuration);
+
+        Vertx vertx = Vertx.vertx();
+        vertx.runOnContext( v -> {
+            Couch client = new Couch( vertx, new CouchOptions(couch) );
+            client.getSession( credentials.getString("name"), credentials.getString("password") )
+                    .compose( session -> client.getDatabase(umi).recover( missing -> client.putDatabase(umi)
+                            .compose( mission -> {
+                                // a new mission needs the events view
+                                Network network = new Network();
+                                return network.getDesignDocument()
+                                        .compose( ddoc -> mission.putDesign(network.getName(), ddoc) )
+                                        .map( mission );
+                            }) ) )
+                    .compose( mission -> events!=null
+                            ? load( vertx, events, mission )
+                            : simulate( vertx, simulation, mission ) )
+                    .onComplete( loaded -> {
+                        if (loaded.succeeded())
+                            System.out.println( loaded.result().encodePrettily() );
+                        else
+                            loaded.cause().printStackTrace();
+                        client.deleteSession().onComplete( deleted -> vertx.close() );
+                    });
+        });
+    }
+}
@@ -0,0 +1,110 @@
+package server.ingest;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.streams.ReadStream;
+
+import java.util.Iterator;
+
+/** Reads an iterator as a stream, e.g. the events of a simulation, only taking items as the consumer asks for them.
+ * Items are emitted in chunks on the event loop, which is let go between chunks so other work isn't held up by a long
+ * run, and nothing more is taken from the iterator while the stream is paused.
+ * @author casey */
+public class IteratorStream<T> implements ReadStream<T> {
+
+    /** The most items emitted before letting the event loop do something else */
+    public static final int DefaultChunkSize = 256;
+
+    Context context;
+    Iterator<T> iterator;
+    int chunkSize;
+
+    long demand = Long.MAX_VALUE;
+    boolean scheduled = false;
+    boolean ended = false;
+
+    Handler<T> handler;
+    Handler<Void> endHandler;
+    Handler<Throwable> exceptionHandler;
+
+    public IteratorStream(Vertx vertx, Iterator<T> iterator) {
+        this(vertx, iterator, DefaultChunkSize);
+    }
+
+    public IteratorStream(Vertx vertx, Iterator<T> iterator, int chunkSize) {
+        this.context = vertx.getOrCreateContext();
+        this.iterator = iterator;
+        this.chunkSize = chunkSize;
+    }
+
+    /** Emits the next chunk later on the event loop, unless it's already scheduled or nobody is listening */
+    private void schedule() {
+        if (scheduled || ended || handler==null || demand==0)
+            return;
+        scheduled = true;
+        context.runOnContext( v -> emit() );
+    }
+
+    private void emit() {
+        scheduled = false;
+        try {
+            for (int n = 0; n < chunkSize && demand > 0 && handler!=null && iterator.hasNext(); n++) {
+                if (demand != Long.MAX_VALUE)
+                    demand--;
+                handler.handle( iterator.next() );
+            }
+            if (!ended && !iterator.hasNext()) {
+                ended = true;
+                if (endHandler!=null)
+                    endHandler.handle(null);
+                return;
+            }
+        } catch (RuntimeException error) {
+            ended = true;
+            if (exceptionHandler!=null)
+                exceptionHandler.handle(error);
+            return;
+        }
+        schedule();
+    }
+
+    @Override
+    public IteratorStream<T> exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    @Override
+    public IteratorStream<T> handler(Handler<T> handler) {
+        this.handler = handler;
+        schedule();
+        return this;
+    }
+
+    @Override
+    public IteratorStream<T> pause() {
+        demand = 0;
+        return this;
+    }
+
+    @Override
+    public IteratorStream<T> resume() {
+        return fetch( Long.MAX_VALUE );
+    }
+
+    @Override
+    public IteratorStream<T> fetch(long amount) {
+        demand += amount;
+        if (demand < 0)
+            demand = Long.MAX_VALUE;
+        schedule();
+        return this;
+    }
+
+    @Override
+    public IteratorStream<T> endHandler(Handler<Void> endHandler) {
+        this.endHandler = endHandler;
+        return this;
+    }
+}
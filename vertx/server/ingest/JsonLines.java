@@ -0,0 +1,169 @@
+package server.ingest;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.RecordParser;
+import io.vertx.core.streams.ReadStream;
+
+/** Parses newline delimited JSON, one object per line, as it is read from a file or a request body.
+ * Lines are split by a record parser which only reads from the source as the consumer asks for objects, so a file of
+ * any size is parsed with no more than a line or so of it in memory. Blank lines are skipped, and a line which isn't
+ * a JSON object fails the stream with its line number. The last line needn't end with a newline.
+ * http://ndjson.org/
+ * @author casey */
+public class JsonLines implements ReadStream<JsonObject> {
+
+    /** The MIME type of newline delimited JSON */
+    public static final String MediaType = "application/x-ndjson";
+
+    /** The longest line that will be read, anything longer fails the stream rather than using up the heap */
+    public static final int MaxLineSize = 1024*1024;
+
+    RecordParser parser;
+    long line = 0;
+    boolean failed = false;
+
+    Handler<JsonObject> handler;
+    Handler<Throwable> exceptionHandler;
+
+    /** @param source the newline delimited JSON, which is paused and resumed as the objects are consumed */
+    public JsonLines(ReadStream<Buffer> source) {
+        this.parser = RecordParser.newDelimited("\n", new Terminated(source)).maxRecordSize(MaxLineSize);
+        parser.exceptionHandler( this::fail );
+    }
+
+    /** Ends the source with a newline if it doesn't already, since the record parser drops anything after the last
+     * delimiter when its source ends */
+    static class Terminated implements ReadStream<Buffer> {
+        ReadStream<Buffer> source;
+        Handler<Buffer> handler;
+        boolean unterminated = false;
+
+        Terminated(ReadStream<Buffer> source) {
+            this.source = source;
+        }
+
+        @Override
+        public Terminated handler(Handler<Buffer> handler) {
+            this.handler = handler;
+            source.handler( handler==null ? null : buffer -> {
+                if (buffer.length() > 0)
+                    unterminated = buffer.getByte( buffer.length() - 1 )!='\n';
+                handler.handle( buffer );
+            });
+            return this;
+        }
+
+        @Override
+        public Terminated endHandler(Handler<Void> endHandler) {
+            source.endHandler( endHandler==null ? null : end -> {
+                if (unterminated && handler!=null) {
+                    unterminated = false;
+                    handler.handle( Buffer.buffer("\n") );
+                }
+                endHandler.handle( end );
+            });
+            return this;
+        }
+
+        @Override
+        public Terminated exceptionHandler(Handler<Throwable> handler) {
+            source.exceptionHandler(handler);
+            return this;
+        }
+
+        @Override
+        public Terminated pause() {
+            source.pause();
+            return this;
+        }
+
+        @Override
+        public Terminated resume() {
+            source.resume();
+            return this;
+        }
+
+        @Override
+        public Terminated fetch(long amount) {
+            source.fetch(amount);
+            return this;
+        }
+    }
+
+    /** @return the number of lines read so far */
+    public long getLine() { return line; }
+
+    private void parse(Buffer record) {
+        line++;
+        if (failed)
+            return;
+
+        String text = record.toString("UTF-8").trim();
+        if (text.isEmpty()) {
+            // the blank line used up a request for an object, so ask for another in its place
+            parser.fetch(1);
+            return;
+        }
+
+        JsonObject json;
+        try {
+            json = new JsonObject(text);
+        } catch (DecodeException error) {
+            fail( new IllegalArgumentException("Line "+line+" isn't a JSON object: "+error.getMessage()) );
+            return;
+        }
+        if (handler!=null)
+            handler.handle( json );
+    }
+
+    private void fail(Throwable cause) {
+        if (failed)
+            return;
+        failed = true;
+        parser.pause();
+        if (exceptionHandler!=null)
+            exceptionHandler.handle( cause );
+    }
+
+    @Override
+    public JsonLines exceptionHandler(Handler<Throwable> handler) {
+        this.exceptionHandler = handler;
+        return this;
+    }
+
+    @Override
+    public JsonLines handler(Handler<JsonObject> handler) {
+        this.handler = handler;
+        parser.handler( handler==null ? null : this::parse );
+        return this;
+    }
+
+    @Override
+    public JsonLines pause() {
+        parser.pause();
+        return this;
+    }
+
+    @Override
+    public JsonLines resume() {
+        if (!failed)
+            parser.resume();
+        return this;
+    }
+
+    @Override
+    public JsonLines fetch(long amount) {
+        if (!failed)
+            parser.fetch(amount);
+        return this;
+    }
+
+    @Override
+    public JsonLines endHandler(Handler<Void> endHandler) {
+        parser.endHandler( endHandler );
+        return this;
+    }
+}
@@ -0,0 +1,260 @@
+package server.replay;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.WriteStream;
+
+import java.util.List;
+
+/** Plays a mission's events back in [stamp, source] order, at the pace they happened or some multiple of it.
+ * The playhead is mission time, advancing with the wall clock times the speed, and each event is written once the
+ * playhead reaches it, waiting on a Vert.x timer for the next one. At the Max speed events are written as fast as the
+ * output takes them instead, a burst at a time so other work on the event loop isn't starved.
+ * The next page of events is fetched as soon as the current one is started, so pacing only waits on the source if a
+ * whole page plays faster than the next can be read. When the output is backed up playback waits for it to drain,
+ * then catches up with the playhead.
+ * Each change of position, speed or pause invalidates any timer, page or drain already being waited for, so callbacks
+ * from before it can't play anything, except that only a later seek discards the page a seek is loading. Like the rest of the server this isn't thread safe, it belongs to one context.
+ * @author casey */
+public class Replay {
+
+    /** Plays events as fast as the output takes them */
+    public static final double Max = Double.POSITIVE_INFINITY;
+
+    /** The number of rows read from the source at a time */
+    public static final int DefaultPageSize = 1000;
+
+    /** The most events written in one turn of the event loop at the Max speed */
+    static final int Burst = 100;
+
+    Vertx vertx;
+    ReplaySource source;
+    WriteStream<JsonObject> out;
+
+    double speed = 1;
+    boolean paused = false;
+    boolean ended = false;
+    boolean closed = false;
+    boolean sought = false;
+
+    // the playhead was at 'time' when the wall clock read 'wall'
+    long time = Long.MIN_VALUE;
+    long wall;
+
+    List<JsonObject> rows;
+    int at;
+    Future<ReplaySource.Page> ahead;
+    long timer = -1;
+    int generation = 0;
+    int seeks = 0;
+    long played = 0;
+
+    /** @param source the events to play
+     * @param out where each event's view row is written, along with status messages */
+    public Replay(Vertx vertx, ReplaySource source, WriteStream<JsonObject> out) {
+        this.vertx = vertx;
+        this.source = source;
+        this.out = out;
+    }
+
+    /** @return the playhead, in epoch milliseconds of mission time, which holds still while a seek is loading */
+    public long getTime() {
+        if (paused || ended || rows==null || time==Long.MIN_VALUE || speed==Max)
+            return time;
+        return time + (long)((System.currentTimeMillis() - wall) * speed);
+    }
+
+    public double getSpeed() { return speed; }
+
+    public boolean isPaused() { return paused; }
+
+    public boolean isEnded() { return ended; }
+
+    /** @return the number of events written so far */
+    public long getPlayed() { return played; }
+
+    /** @return where playback is, which is also written to the output whenever it changes */
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject()
+                .put("type", "status")
+                .put("speed", speed==Max ? "max" : speed)
+                .put("paused", paused)
+                .put("ended", ended)
+                .put("played", played);
+        long playhead = getTime();
+        if (playhead!=Long.MIN_VALUE)
+            json.put("time", playhead);
+        return json;
+    }
+
+    /** Moves the playhead, then plays on from there unless paused. Nothing is played until the first seek, so the
+     * speed and pause can be set up beforehand.
+     * @param to the mission time in epoch milliseconds, or null for the first event */
+    public Replay seek(Long to) {
+        // only a later seek can replace the page being loaded, other controls just change how it's played
+        int seek = ++seeks;
+        invalidate();
+        sought = true;
+        rows = null;
+        ahead = null;
+        ended = false;
+        time = to==null ? Long.MIN_VALUE : to;
+        wall = System.currentTimeMillis();
+        source.seek(to).onComplete( sought -> {
+            if (seek!=seeks || closed)
+                return;
+            if (sought.failed()) {
+                fail( sought.cause() );
+                return;
+            }
+            start( sought.result() );
+            if (time==Long.MIN_VALUE)
+                time = rows.isEmpty() ? Long.MIN_VALUE : time( rows.get(0) );
+            wall = System.currentTimeMillis();
+            status();
+            play( generation );
+        });
+        return this;
+    }
+
+    /** Starts or continues playback from the playhead */
+    public Replay play() {
+        if (!paused)
+            return this;
+        paused = false;
+        wall = System.currentTimeMillis();
+        status();
+        play( invalidate() );
+        return this;
+    }
+
+    /** Holds the playhead where it is until play() */
+    public Replay pause() {
+        if (paused)
+            return this;
+        time = getTime();
+        paused = true;
+        invalidate();
+        status();
+        return this;
+    }
+
+    /** @param speed how many times faster than real time to play, or Max for as fast as possible */
+    public Replay speed(double speed) {
+        if (!(speed > 0))
+            throw new IllegalArgumentException("speed must be positive");
+        time = getTime();
+        wall = System.currentTimeMillis();
+        this.speed = speed;
+        status();
+        play( invalidate() );
+        return this;
+    }
+
+    /** Stops playback for good, e.g. when the socket closes */
+    public void close() {
+        closed = true;
+        invalidate();
+    }
+
+    /** Cancels whatever playback was waiting for */
+    private int invalidate() {
+        if (timer!=-1) {
+            vertx.cancelTimer(timer);
+            timer = -1;
+        }
+        return ++generation;
+    }
+
+    /** @return a handler which only runs if nothing has changed since it was made */
+    private <T> Handler<T> unchanged(int current, Handler<T> handler) {
+        return value -> {
+            if (current==generation)
+                handler.handle(value);
+        };
+    }
+
+    /** Takes the page's rows, and starts fetching the page after it */
+    private void start(ReplaySource.Page page) {
+        rows = page.rows;
+        at = 0;
+        ahead = page.next==null ? null : page.next.get();
+    }
+
+    /** Writes every event the playhead has reached, then waits for whatever the next one needs */
+    private void play(int current) {
+        if (closed || paused || ended || rows==null || current!=generation)
+            return;
+
+        int burst = 0;
+        while (true) {
+            if (at >= rows.size()) {
+                if (ahead==null) {
+                    time = getTime();
+                    ended = true;
+                    status();
+                    return;
+                }
+                if (!ahead.isComplete()) {
+                    ahead.onComplete( unchanged( current, fetched -> play(current) ) );
+                    return;
+                }
+                if (ahead.failed()) {
+                    fail( ahead.cause() );
+                    return;
+                }
+                start( ahead.result() );
+                continue;
+            }
+
+            JsonObject row = rows.get(at);
+            long due = time( row );
+            if (speed!=Max) {
+                long playhead = getTime();
+                if (due > playhead) {
+                    long delay = Math.max( 1, (long)Math.ceil( (due - playhead) / speed ) );
+                    timer = vertx.setTimer( delay, id -> {
+                        timer = -1;
+                        play(current);
+                    });
+                    return;
+                }
+            } else
+                time = Math.max( time, due );
+
+            out.write( row );
+            at++;
+            played++;
+
+            if (out.writeQueueFull()) {
+                out.drainHandler( unchanged( current, drained -> play(current) ) );
+                return;
+            }
+            if (speed==Max && ++burst >= Burst) {
+                vertx.runOnContext( unchanged( current, v -> play(current) ) );
+                return;
+            }
+        }
+    }
+
+    private void fail(Throwable cause) {
+        time = getTime();
+        ended = true;
+        if (!closed)
+            out.write( toJson().put("error", String.valueOf( cause.getMessage() )) );
+    }
+
+    /** Tells the output where playback is, once it has somewhere to play from */
+    private void status() {
+        if (!closed && sought)
+            out.write( toJson() );
+    }
+
+    /** @return the time of the event in a view row */
+    static long time(JsonObject row) {
+        JsonObject value = row.getJsonObject("value");
+        return value==null ? 0 : value.getLong("time", 0L);
+    }
+}
@@ -0,0 +1,97 @@
+package server.replay;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import server.couch.Cursor;
+import server.couch.View;
+import server.couch.designs.network.TimeRange;
+import server.store.EventLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/** Where a Replay reads a mission's events from, a page of network events view rows at a time in [stamp, source] order.
+ * @author casey */
+public interface ReplaySource {
+
+    /** A page of rows, and how to fetch the one after it */
+    class Page {
+        final List<JsonObject> rows;
+        final Supplier<Future<Page>> next;
+
+        /** @param rows view rows, which are only read
+         * @param next fetches the following page, or null if this is the last */
+        public Page(List<JsonObject> rows, Supplier<Future<Page>> next) {
+            this.rows = rows;
+            this.next = next;
+        }
+
+        public List<JsonObject> getRows() { return rows; }
+
+        public boolean isLast() { return next==null; }
+    }
+
+    /** @param time the earliest event time in epoch milliseconds, or null for the start of the mission
+     * @return the first page of events at or after the time */
+    Future<Page> seek(Long time);
+
+    /** Reads pages of the view, starting a page at a key rather than an offset so a seek costs the same as the start.
+     * Pages are fetched through View.getPage, so replays of the same mission at the same place share their queries.
+     * @param view the network events view of a mission */
+    static ReplaySource of(View view, int pageSize) {
+        return new ReplaySource() {
+            @Override
+            public Future<Page> seek(Long time) {
+                // a key of just the stamp sorts before every [stamp, source] key with that stamp
+                return fetch( time==null ? null : new Cursor( new JsonArray().add( TimeRange.stamp(time) ), null ) );
+            }
+
+            private Future<Page> fetch(Cursor after) {
+                return view.getPage( after, pageSize ).map( json -> {
+                    List<JsonObject> rows = new ArrayList<>();
+                    json.getJsonArray("rows", new JsonArray()).forEach( row -> rows.add( (JsonObject)row ) );
+                    String next = json.getString("next");
+                    return new Page( rows, next==null ? null : () -> fetch( Cursor.decode(next) ) );
+                });
+            }
+        };
+    }
+
+    /** Reads pages of an archived mission, found by a binary search of its log rather than a view query */
+    static ReplaySource of(EventLog log, int pageSize) {
+        return of( log, null, pageSize );
+    }
+
+    /** Reads pages of an archived mission's log, then carries on with the source from just after the log's last event,
+     * so events added since the mission was archived still play.
+     * @param after where events later than the log are read from, or null to end with the log */
+    static ReplaySource of(EventLog log, ReplaySource after, int pageSize) {
+        return new ReplaySource() {
+            @Override
+            public Future<Page> seek(Long time) {
+                if (after!=null && (log.size()==0 || (time!=null && time > log.getLast())))
+                    return after.seek(time);
+                return Future.succeededFuture( fetch( time==null ? 0 : log.seek(time) ) );
+            }
+
+            private Page fetch(long first) {
+                long last = Math.min( log.size(), first + pageSize );
+                if (first >= last)
+                    return new Page( Collections.emptyList(), next(last) );
+                List<JsonObject> rows = new ArrayList<>( (int)(last - first) );
+                for (long n = first; n < last; n++)
+                    rows.add( log.get(n).toRow() );
+                return new Page( rows, next(last) );
+            }
+
+            private Supplier<Future<Page>> next(long first) {
+                if (first < log.size())
+                    return () -> Future.succeededFuture( fetch(first) );
+                return after==null ? null : () -> after.seek( log.getLast() + 1 );
+            }
+        };
+    }
+}
@@ -0,0 +1,63 @@
+package server.replay;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.WriteStream;
+
+/** Writes each JSON object to a WebSocket as a text message, with the socket's flow control.
+ * @author casey */
+public class TextMessages implements WriteStream<JsonObject> {
+
+    ServerWebSocket socket;
+
+    public TextMessages(ServerWebSocket socket) {
+        this.socket = socket;
+    }
+
+    @Override
+    public TextMessages write(JsonObject json) {
+        socket.writeTextMessage( json.encode() );
+        return this;
+    }
+
+    @Override
+    public TextMessages write(JsonObject json, Handler<AsyncResult<Void>> handler) {
+        socket.writeTextMessage( json.encode(), handler );
+        return this;
+    }
+
+    @Override
+    public void end() {
+        socket.end();
+    }
+
+    @Override
+    public void end(Handler<AsyncResult<Void>> handler) {
+        socket.end(handler);
+    }
+
+    @Override
+    public TextMessages exceptionHandler(Handler<Throwable> handler) {
+        socket.exceptionHandler(handler);
+        return this;
+    }
+
+    @Override
+    public TextMessages setWriteQueueMaxSize(int maxSize) {
+        socket.setWriteQueueMaxSize(maxSize);
+        return this;
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        return socket.writeQueueFull();
+    }
+
+    @Override
+    public TextMessages drainHandler(Handler<Void> handler) {
+        socket.drainHandler(handler);
+        return this;
+    }
+}
@@ -0,0 +1,97 @@
+package server.simulator;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A node in the laydown of a sensor network, as the simulator's config describes it.
+ * The network is a tree; sensors are the leaves, and everything above them relays messages toward the headquarters.
+ * @author casey */
+public class Node {
+
+    public static final String SENSOR = "sensor";
+    public static final String ROUTER = "router";
+    public static final String COMMAND = "command";
+    public static final String HEADQUARTERS = "headquarters";
+
+    String id;
+    String type;
+    Object sic;
+    Object tap;
+    Object glyph;
+    double lat;
+    double lon;
+    double spin;
+    double latency;
+
+    Node parent;
+    List<Node> children = new ArrayList<>();
+
+    /** @param json a laydown entry, where 'class' names the node and 'parent' names the node above it */
+    public Node(JsonObject json) {
+        this.id = json.getString("class");
+        this.type = json.getString("type", ROUTER);
+        this.sic = json.getValue("sic");
+        this.tap = json.getValue("tap");
+        this.glyph = json.getValue("glyph");
+        this.lat = json.getDouble("lat", 0.0);
+        this.lon = json.getDouble("lon", 0.0);
+        this.spin = json.getDouble("spin", 10.0);
+        this.latency = json.getDouble("latency", 0.0);
+    }
+
+    public String getId() { return id; }
+    public String getType() { return type; }
+    public Node getParent() { return parent; }
+    public List<Node> getChildren() { return children; }
+    public boolean isSensor() { return SENSOR.equals(type); }
+
+    /** Links the laydown entries into a tree, like d3's stratify.
+     * @param laydown entries naming their 'parent', where the root's parent is empty
+     * @return every node after all of its children, so messages can be relayed up the whole tree in one pass */
+    public static List<Node> stratify(JsonArray laydown) {
+        Map<String, Node> index = new HashMap<>();
+        List<Node> nodes = new ArrayList<>();
+        laydown.forEach( entry -> {
+            Node node = new Node( (JsonObject)entry );
+            if (index.put(node.id, node)!=null)
+                throw new IllegalArgumentException("The laydown has more than one node named \""+node.id+"\"");
+            nodes.add(node);
+        });
+
+        Node root = null;
+        for (int n = 0; n < nodes.size(); n++) {
+            Node node = nodes.get(n);
+            String parent = laydown.getJsonObject(n).getString("parent", "");
+            if (parent.isEmpty()) {
+                if (root!=null)
+                    throw new IllegalArgumentException("The laydown has more than one root");
+                root = node;
+            } else {
+                node.parent = index.get(parent);
+                if (node.parent==null)
+                    throw new IllegalArgumentException("The parent of \""+node.id+"\" isn't in the laydown");
+                node.parent.children.add(node);
+            }
+        }
+        if (root==null)
+            throw new IllegalArgumentException("The laydown has no root");
+
+        List<Node> order = new ArrayList<>();
+        after(root, order);
+        if (order.size()!=nodes.size())
+            throw new IllegalArgumentException("The laydown isn't a tree");
+        return order;
+    }
+
+    /** visits the children before the node, like d3's eachAfter */
+    private static void after(Node node, List<Node> order) {
+        for (Node child : node.children)
+            after(child, order);
+        order.add(node);
+    }
+}
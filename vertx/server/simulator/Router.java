@@ -0,0 +1,36 @@
+package server.simulator;
+
+import io.vertx.core.json.JsonObject;
+import server.events.Event;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/** Relays the messages of the nodes below it up the network after a delay.
+ * Command nodes are where plots are correlated into tracks, so whatever they relay is a track.
+ * @author casey */
+public class Router {
+
+    Node node;
+    Queue<JsonObject> queue = new ArrayDeque<>();
+
+    public Router(Node node) {
+        this.node = node;
+    }
+
+    public Node getNode() { return node; }
+
+    /** Queues a message from below, unless this is the top of the network and there's nowhere to send it */
+    void send(JsonObject message) {
+        if (node.parent!=null)
+            queue.add(message);
+    }
+
+    /** Relays every message which has waited out the latency */
+    void update(long time, Simulator simulator) {
+        while (!queue.isEmpty() && time - queue.peek().getLong("time") >= node.latency) {
+            JsonObject received = queue.remove();
+            simulator.route(time, node, received, node.type.startsWith(Node.COMMAND) ? Event.TRACK : null);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package server.simulator;
+
+import io.vertx.core.json.JsonObject;
+import server.events.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A spinning sensor which plots any target its beam sweeps across, and reports strobes from targets' beacons.
+ * Each sensor only changes its own beam, so different sensors can sweep at the same time on different threads.
+ * @author casey */
+public class Sensor {
+
+    /** The bias added to every measured range */
+    static final double RangeBias = 1.0/60;
+
+    Node node;
+    double a0;
+    double a1;
+
+    public Sensor(Node node) {
+        this.node = node;
+        this.a0 = heading(0);
+        this.a1 = a0;
+    }
+
+    public Node getNode() { return node; }
+
+    /** Sweeps the beam on to the given time, plotting any targets it crossed.
+     * @return the bodies of the plot messages, which the simulator addresses and routes */
+    List<JsonObject> update(long time, List<Target> targets) {
+        a0 = a1;
+        a1 = heading(time);
+
+        List<JsonObject> plots = new ArrayList<>(0);
+        for (Target target : targets) {
+            // polar coordinates of the target relative to the sensor
+            double dx = target.lon - node.lon;
+            double dy = target.lat - node.lat;
+            double r = Math.sqrt( dx*dx + dy*dy );
+            double a = Math.atan2( dy, dx );
+
+            // check whether the target is within the sweep, remembering the beam may have rolled over
+            if ( (a0<a1 && (a0<=a && a<a1)) || (a0>a1 && (a0<a || a<a1)) )
+                plots.add( measure(a, r) );
+        }
+        return plots;
+    }
+
+    /** Adds the error model to the polar coordinates of a target, and makes a plot of it */
+    JsonObject measure(double azimuth, double range) {
+        range += RangeBias;
+
+        // the resulting position using a near-equator flat approximation
+        double x = node.lon + range * Math.cos(azimuth);
+        double y = node.lat + range * Math.sin(azimuth);
+
+        return new JsonObject()
+                .put("range", range)
+                .put("angle", angle(azimuth))
+                .put("power", 1)
+                .put("glyph", "circle")
+                .put("lon", x)
+                .put("lat", y)
+                .put("class", Event.PLOT);
+    }
+
+    /** @return the body of the message reporting a beacon heard on the given bearing */
+    JsonObject strobe(double azimuth) {
+        return new JsonObject()
+                .put("angle", angle(azimuth))
+                .put("class", Event.STROBE);
+    }
+
+    /** @return the bearing in degrees from north of an azimuth in radians from east */
+    static double angle(double azimuth) {
+        return 90 + 360 * azimuth / (Math.PI*2);
+    }
+
+    /** @return the direction of the beam at the given time, it turns once every 2 'spin' seconds */
+    double heading(long time) {
+        double v = node.spin * 1000;
+        double a = ((time / v) % 2.0) - 1.0;
+        return a * 2*Math.PI;
+    }
+}
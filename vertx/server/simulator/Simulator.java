@@ -0,0 +1,283 @@
+package server.simulator;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import server.couch.designs.network.TimeRange;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/** Simulates a sensor network watching a set of targets, producing the events a mission database would collect.
+ * This does what node/simulator does, except the events are produced lazily one time step at a time, so a long run
+ * can be streamed into a database without ever holding more than a step of it in memory. Within a step the sensors
+ * sweep their beams in parallel on a fork/join pool, since each only looks at the targets and its own beam.
+ * A simulator runs once; its sensors and routers carry their state from one step to the next.
+ * @author casey */
+public class Simulator {
+
+    /** The time between simulation steps in milliseconds, when the config doesn't say */
+    public static final long DefaultStep = 100;
+
+    /** The length of a run in milliseconds, when the config doesn't give an 'end' or a 'duration' */
+    public static final long DefaultDuration = 980000;
+
+    /** The sensor-target comparisons below which a step's sweep isn't worth splitting across threads */
+    static final int Grain = 4096;
+
+    /** The laydown node/uploader.js simulates when it initializes a database */
+    public static final JsonArray DefaultLaydown = new JsonArray( (
+        "[{'class':'hq', 'tap':'a', 'parent':'', 'type':'headquarters', 'status':1, 'sic':11}," +
+        " {'class':'d1', 'tap':'b', 'parent':'hq', 'type':'command', 'status':1, 'latency':0.005, 'sic':9}," +
+        " {'class':'d2', 'tap':'c', 'parent':'hq', 'type':'command', 'status':1, 'latency':0.005, 'sic':10}," +
+        " {'class':'r1', 'tap':'d', 'parent':'d1', 'type':'router', 'status':1, 'latency':0.005, 'sic':6}," +
+        " {'class':'r2', 'tap':'e', 'parent':'d2', 'type':'router', 'status':1, 'latency':0.005, 'sic':7}," +
+        " {'class':'r3', 'tap':'f', 'parent':'r2', 'type':'router', 'status':1, 'latency':0.005, 'sic':8}," +
+        " {'class':'s1', 'tap':'g', 'parent':'r1', 'type':'sensor', 'glyph':'glyph1', 'sic':1, 'status':1," +
+        "   'lat':35.942, 'lon':-114.882, 'spin':10.0, 'latency':0.005}," +
+        " {'class':'s2', 'tap':'h', 'parent':'r1', 'type':'sensor', 'glyph':'glyph2', 'sic':2, 'status':1," +
+        "   'lat':36.242, 'lon':-115.678, 'spin':10.0, 'latency':0.005}," +
+        " {'class':'s3', 'tap':'i', 'parent':'r2', 'type':'sensor', 'glyph':'glyph3', 'sic':3, 'status':1," +
+        "   'lat':35.942, 'lon':-115.493, 'spin':10.0, 'latency':0.005}," +
+        " {'class':'s4', 'tap':'j', 'parent':'r3', 'type':'sensor', 'glyph':'glyph4', 'sic':4, 'status':1," +
+        "   'lat':36.291, 'lon':-114.704, 'spin':10.0, 'latency':0.005}," +
+        " {'class':'s5', 'tap':'k', 'parent':'r3', 'type':'sensor', 'glyph':'glyph5', 'sic':5, 'status':1," +
+        "   'lat':36.651, 'lon':-115.188, 'spin':10.0, 'latency':0.005}]" )
+        .replace('\'', '"') );
+
+    long start;
+    long end;
+    long step;
+    ForkJoinPool pool;
+
+    List<Target> targets = new ArrayList<>();
+    List<Sensor> sensors = new ArrayList<>();
+    List<Router> routers = new ArrayList<>();
+    LinkedHashMap<String, Router> index = new LinkedHashMap<>();
+
+    boolean started = false;
+    List<JsonObject> frame;
+    String stamp;
+    int sequence;
+
+    /** Sweeps on the common fork/join pool
+     * @param config the simulation parameters, as node/uploader.js gives them */
+    public Simulator(JsonObject config) {
+        this(config, ForkJoinPool.commonPool());
+    }
+
+    /** @param config the 'start', 'end' or 'duration', and step 'dt' of the run in epoch milliseconds, the 'laydown'
+     * of the network, and the 'scenario' for the targets; 'circles' orbit the 'longitude' and 'latitude', and anything
+     * else is a stationary grid
+     * @param pool the threads the sensors sweep on */
+    public Simulator(JsonObject config, ForkJoinPool pool) {
+        this.pool = pool;
+        this.start = config.getLong("start", 0L);
+        this.end = config.getLong("end", start + config.getLong("duration", DefaultDuration));
+        this.step = config.getLong("dt", DefaultStep);
+        if (step <= 0)
+            throw new IllegalArgumentException("The simulation step 'dt' must be positive");
+
+        for (Node node : Node.stratify( config.getJsonArray("laydown", DefaultLaydown) )) {
+            if (node.isSensor())
+                sensors.add( new Sensor(node) );
+            else {
+                Router router = new Router(node);
+                routers.add( router );
+                index.put( node.id, router );
+            }
+        }
+
+        if ("circles".equals( config.getString("scenario", "circles") )) {
+            targets.add( new Target(
+                    config.getDouble("longitude", -115.805),
+                    config.getDouble("latitude", 35.887),
+                    config.getDouble("radius", 1.0),
+                    config.getDouble("velocity", 0.000001),
+                    true ) );
+
+            // each circles a quarter of the way around the one before, at half the distance
+            for (int n = 0; n < 4; n++) {
+                Target t = targets.get(n);
+                targets.add( new Target(
+                        t.lon + t.r * Math.cos(n*Math.PI/2) / 2,
+                        t.lat + t.r * Math.sin(n*Math.PI/2) / 2,
+                        t.r / 2,
+                        t.v,
+                        false ) );
+            }
+        } else {
+            for (int lat = 0; lat < 10; lat++)
+                for (int lon = 0; lon < 15; lon++)
+                    targets.add( new Target(-117.0 + lon*0.2, 35.0 + lat*0.2, 0, 0, false) );
+        }
+    }
+
+    /** Makes a laydown big enough to generate load, with every sensor reporting through one of a few routers.
+     * @param routers the number of routers under the command node
+     * @param sensors the number of sensors, spread over the routers and over a grid around the default laydown
+     * @return a laydown for the simulator config */
+    public static JsonArray laydown(int routers, int sensors) {
+        JsonArray laydown = new JsonArray()
+                .add( new JsonObject().put("class", "hq").put("parent", "").put("type", Node.HEADQUARTERS).put("sic", 0) )
+                .add( new JsonObject().put("class", "c1").put("parent", "hq").put("type", Node.COMMAND).put("sic", 1)
+                        .put("latency", 0.005) );
+        for (int n = 1; n <= routers; n++)
+            laydown.add( new JsonObject().put("class", "r"+n).put("parent", "c1").put("type", Node.ROUTER)
+                    .put("sic", 1+n).put("latency", 0.005) );
+
+        int side = (int)Math.ceil( Math.sqrt(sensors) );
+        for (int n = 0; n < sensors; n++)
+            laydown.add( new JsonObject()
+                    .put("class", "s"+(n+1))
+                    .put("parent", "r"+(1 + n%routers))
+                    .put("type", Node.SENSOR)
+                    .put("sic", 1+routers+n+1)
+                    .put("lat", 35.0 + 2.0*(n/side)/side)
+                    .put("lon", -117.0 + 3.0*(n%side)/side)
+                    .put("spin", 10.0)
+                    .put("latency", 0.005) );
+        return laydown;
+    }
+
+    public long getStart() { return start; }
+    public long getEnd() { return end; }
+    public long getStep() { return step; }
+    public List<Target> getTargets() { return targets; }
+    public List<Sensor> getSensors() { return sensors; }
+    public List<Router> getRouters() { return routers; }
+
+    /** @return the events of the whole run in time order, each step only being simulated once the last is used up.
+     * They're event documents as they'd be stored in the mission database, with ids that are the same every run. */
+    public Iterator<JsonObject> iterator() {
+        if (started)
+            throw new IllegalStateException("A simulator can only be run once");
+        started = true;
+
+        return new Iterator<JsonObject>() {
+            long time = start;
+            Iterator<JsonObject> events = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!events.hasNext() && time < end) {
+                    events = update(time).iterator();
+                    time += step;
+                }
+                return events.hasNext();
+            }
+
+            @Override
+            public JsonObject next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return events.next();
+            }
+        };
+    }
+
+    /** @return the events of the whole run in time order, as a sequential stream */
+    public Stream<JsonObject> stream() {
+        return StreamSupport.stream( Spliterators.spliteratorUnknownSize( iterator(),
+                Spliterator.ORDERED | Spliterator.NONNULL ), false );
+    }
+
+    /** Advances everything in the simulation to the given time.
+     * @return the events generated in this step */
+    public List<JsonObject> update(long time) {
+        frame = new ArrayList<>();
+        stamp = TimeRange.stamp(time);
+        sequence = 0;
+
+        // move the targets first, a strobing target is reported by the nearest sensor
+        for (Target target : targets) {
+            Target.Strobe strobe = target.update(time, sensors);
+            if (strobe!=null)
+                route( time, strobe.sensor.node, strobe.sensor.strobe(strobe.azimuth), null );
+        }
+
+        // then sweep the sensors, which only read the targets so they can all go at once
+        List<List<JsonObject>> plots = new ArrayList<>( Collections.nCopies(sensors.size(), null) );
+        Sweep sweep = new Sweep(time, plots, 0, sensors.size());
+        if (sensors.size() * targets.size() < Grain)
+            sweep.compute();
+        else
+            pool.invoke(sweep);
+        for (int n = 0; n < sensors.size(); n++)
+            for (JsonObject plot : plots.get(n))
+                route( time, sensors.get(n).node, plot, null );
+
+        // and relay everything up the network, each router after the ones below it
+        for (Router router : routers)
+            router.update(time, this);
+
+        List<JsonObject> events = frame;
+        frame = null;
+        return events;
+    }
+
+    /** Addresses the message, records it as an event, and queues it with the node's parent.
+     * @param time the time the message is sent
+     * @param source the node sending the message
+     * @param body the measurement, which is copied rather than changed since it may be an event already recorded
+     * @param type the class of the message, or null to keep the body's */
+    void route(long time, Node source, JsonObject body, String type) {
+        if (source.parent==null)
+            return;
+
+        JsonObject message = new JsonObject( new LinkedHashMap<>(body.getMap()) )
+                .put("_id", stamp + "-" + source.id + "-" + sequence++)
+                .put("time", time)
+                .put("stamp", stamp)
+                .put("target", source.parent.id)
+                .put("source", source.id)
+                .put("sic", source.sic)
+                .put("tap", source.tap);
+        if (type!=null)
+            message.put("class", type);
+
+        // we assume every message is captured as an event
+        frame.add( message );
+
+        Router parent = index.get( source.parent.id );
+        if (parent!=null)
+            parent.send( message );
+    }
+
+    /** Sweeps a range of the sensors, splitting it in half until each piece is small enough to just do */
+    class Sweep extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final long time;
+        final List<List<JsonObject>> plots;
+        final int from;
+        final int to;
+
+        Sweep(long time, List<List<JsonObject>> plots, int from, int to) {
+            this.time = time;
+            this.plots = plots;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && (to - from) * targets.size() >= Grain) {
+                int middle = (from + to) >>> 1;
+                invokeAll( new Sweep(time, plots, from, middle), new Sweep(time, plots, middle, to) );
+                return;
+            }
+            for (int n = from; n < to; n++)
+                plots.set( n, sensors.get(n).update(time, targets) );
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package server.simulator;
+
+import java.util.List;
+
+/** A target travelling in a circular orbit, which may emit a beacon that the nearest sensor reports as a strobe.
+ * Its position is a function of time, so sensors on other threads can look at it while they sweep.
+ * @author casey */
+public class Target {
+
+    /** How often in milliseconds a strobing target emits its beacon */
+    public static final long StrobeRate = 10000;
+
+    double cx;
+    double cy;
+    double r;
+    double v;
+    boolean strobe;
+
+    long lastStrobe = 0;
+    double lat;
+    double lon;
+
+    /** @param cx the longitude of the center of the orbit
+     * @param cy the latitude of the center of the orbit
+     * @param r the radius of the orbit in degrees
+     * @param v the speed of the target in degrees per millisecond
+     * @param strobe whether the target emits a beacon */
+    public Target(double cx, double cy, double r, double v, boolean strobe) {
+        this.cx = cx;
+        this.cy = cy;
+        this.r = r;
+        this.v = v;
+        this.strobe = strobe;
+        move(0);
+    }
+
+    public double getLatitude() { return lat; }
+    public double getLongitude() { return lon; }
+    public double getRadius() { return r; }
+    public double getVelocity() { return v; }
+
+    /** Moves the target along its orbit to the given time */
+    void move(long time) {
+        double angle = r==0 ? 0 : time * v / r;
+        lon = cx + r * Math.cos(angle);
+        lat = cy + r * Math.sin(angle);
+    }
+
+    /** Moves the target, and if it's due to strobe, has the nearest sensor report it.
+     * @return the sensor which heard the beacon and the bearing it heard it on, or null if it didn't strobe */
+    Strobe update(long time, List<Sensor> sensors) {
+        move(time);
+        if (!strobe || time - lastStrobe <= StrobeRate || sensors.isEmpty())
+            return null;
+        lastStrobe = time;
+
+        Sensor nearest = null;
+        double range = Double.MAX_VALUE;
+        double azimuth = 0;
+        for (Sensor sensor : sensors) {
+            double dx = lon - sensor.node.lon;
+            double dy = sensor.node.lat - lat;
+            double r = Math.sqrt( dx*dx + dy*dy );
+            if (r < range) {
+                nearest = sensor;
+                range = r;
+                azimuth = Math.atan2( dy, dx );
+            }
+        }
+        return new Strobe(nearest, azimuth);
+    }
+
+    /** A beacon heard by a sensor */
+    static class Strobe {
+        final Sensor sensor;
+        final double azimuth;
+
+        Strobe(Sensor sensor, double azimuth) {
+            this.sensor = sensor;
+            this.azimuth = azimuth;
+        }
+    }
+}
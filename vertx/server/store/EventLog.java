@@ -0,0 +1,368 @@
+package server.store;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+import server.events.Event;
+import server.events.EventCodec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** An append-only log of a mission's events on local disk, so a finished mission can be windowed and replayed
+ * without querying CouchDB. A log is two files:
+ * <pre>
+ *   name.events  each event in the EventCodec wire format, one after another
+ *   name.times   a fixed width record for each event, in time order: long time, long offset of the event
+ * </pre>
+ * Both are written through a FileChannel and read through read-only memory maps, so finding a time is a binary
+ * search of the mapped records, narrowed first by a sparse index of every IndexStride'th time kept in memory.
+ * Files are mapped in segments, and the events are padded so none straddles two.
+ * Appends are serialized and must be in time order. Reads don't lock; each sees the log as of the last append it
+ * started after, since an append maps what it wrote before publishing it. The data is written before the records,
+ * so if the process dies part way through an append, opening the log again drops whatever was left incomplete.
+ * @author casey */
+public class EventLog implements Shareable, Closeable {
+
+    /** The bytes in each time record */
+    public static final int RecordSize = 16;
+
+    /** One time in this many is kept in memory to narrow a search before it touches the records */
+    public static final int IndexStride = 256;
+
+    /** The most bytes of a file mapped as one buffer, a whole number of records */
+    static final long SegmentSize = 1L << 30;
+
+    public static final String Times = ".times";
+    public static final String Events = ".events";
+
+    final Path timesPath;
+    final Path eventsPath;
+    final FileChannel times;
+    final FileChannel events;
+    final EventCodec codec = new EventCodec();
+
+    // the end of the log as appends see it, guarded by this
+    long count = 0;
+    long end = 0;
+    long last = Long.MIN_VALUE;
+    long[] index = new long[16];
+
+    /** What readers see, replaced by each append once it is mapped */
+    volatile Mapping mapping;
+
+    /** The mapped segments of both files and the number of records in them. Never modified once published. */
+    static class Mapping {
+        final long count;
+        final long[] index;
+        final MappedByteBuffer[] times;
+        final MappedByteBuffer[] events;
+
+        Mapping(long count, long[] index, MappedByteBuffer[] times, MappedByteBuffer[] events) {
+            this.count = count;
+            this.index = index;
+            this.times = times;
+            this.events = events;
+        }
+
+        long time(long n) {
+            long at = n * RecordSize;
+            return times[(int)(at / SegmentSize)].getLong( (int)(at % SegmentSize) );
+        }
+
+        long offset(long n) {
+            long at = n * RecordSize + 8;
+            return times[(int)(at / SegmentSize)].getLong( (int)(at % SegmentSize) );
+        }
+    }
+
+    private EventLog(Path dir, String name) throws IOException {
+        this.timesPath = dir.resolve(name + Times);
+        this.eventsPath = dir.resolve(name + Events);
+        this.times = FileChannel.open( timesPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+        this.events = FileChannel.open( eventsPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+    }
+
+    /** @return whether there is a log of the name in the directory */
+    public static boolean exists(Path dir, String name) {
+        return Files.exists( dir.resolve(name + Times) );
+    }
+
+    /** Opens the named log in the directory, creating it if need be.
+     * This reads and may truncate the files, so it belongs on a worker thread. */
+    public static EventLog open(Path dir, String name) throws IOException {
+        Files.createDirectories(dir);
+        EventLog log = new EventLog(dir, name);
+        try {
+            log.recover();
+        } catch (IOException | RuntimeException error) {
+            log.close();
+            throw error;
+        }
+        return log;
+    }
+
+    /** Drops any partial record or event left by an append which didn't finish, then maps what's left */
+    private synchronized void recover() throws IOException {
+        long records = times.size() / RecordSize;
+        long size = events.size();
+        ByteBuffer record = ByteBuffer.allocate(RecordSize);
+        ByteBuffer length = ByteBuffer.allocate(4);
+        end = 0;
+        while (records > 0) {
+            record.clear();
+            length.clear();
+            times.read( record, (records - 1) * RecordSize );
+            long offset = record.getLong(8);
+            if (offset + 4 <= size && events.read( length, offset )==4 && offset + 4 + length.getInt(0) <= size) {
+                end = offset + 4 + length.getInt(0);
+                break;
+            }
+            records--;
+        }
+        times.truncate( records * RecordSize );
+        events.truncate( end );
+
+        // the sparse index is rebuilt from the mapped records rather than stored
+        count = records;
+        index = new long[ Math.max( 16, (int)(records / IndexStride) + 1 ) ];
+        Mapping mapped = map( null, records, end, index );
+        for (long n = 0; n < records; n += IndexStride)
+            index[(int)(n / IndexStride)] = mapped.time(n);
+        last = records > 0 ? mapped.time(records - 1) : Long.MIN_VALUE;
+        mapping = mapped;
+    }
+
+    /** Maps the files up to the given sizes, reusing the whole segments of the last mapping */
+    private Mapping map(Mapping previous, long records, long size, long[] index) throws IOException {
+        return new Mapping( records, index,
+                segments( times, previous==null ? null : previous.times, records * RecordSize ),
+                segments( events, previous==null ? null : previous.events, size ) );
+    }
+
+    private static MappedByteBuffer[] segments(FileChannel channel, MappedByteBuffer[] previous, long size)
+            throws IOException {
+        MappedByteBuffer[] segments = new MappedByteBuffer[ (int)((size + SegmentSize - 1) / SegmentSize) ];
+        for (int n = 0; n < segments.length; n++) {
+            long start = n * SegmentSize;
+            long length = Math.min( SegmentSize, size - start );
+            if (previous!=null && n < previous.length && previous[n].capacity()==length)
+                segments[n] = previous[n];
+            else
+                segments[n] = channel.map( FileChannel.MapMode.READ_ONLY, start, length );
+        }
+        return segments;
+    }
+
+    public void append(Event event) throws IOException {
+        append( Collections.singletonList(event) );
+    }
+
+    /** Adds the events to the end of the log, where readers can see them once this returns.
+     * @param batch events in time order, none earlier than the last event in the log
+     * @throws IllegalArgumentException if the events are out of order, in which case none are added */
+    public synchronized void append(List<? extends Event> batch) throws IOException {
+        if (batch.isEmpty())
+            return;
+
+        ByteBuffer records = ByteBuffer.allocate( batch.size() * RecordSize );
+        Buffer data = Buffer.buffer();
+        long time = last;
+        for (Event event : batch) {
+            if (event.getTime() < time)
+                throw new IllegalArgumentException( "event " + event.getId() + " at " + event.getTime()
+                        + " is earlier than the end of the log at " + time );
+            time = event.getTime();
+
+            Buffer encoded = Buffer.buffer();
+            codec.encodeToWire( encoded, event );
+            long offset = end + data.length();
+            long room = SegmentSize - offset % SegmentSize;
+            if (encoded.length() > room) {
+                data.appendBytes( new byte[(int)room] );
+                offset += room;
+            }
+            data.appendBuffer( encoded );
+            records.putLong( time ).putLong( offset );
+        }
+
+        // the data goes first, so a record never points past the end of the events
+        write( events, data.getByteBuf().nioBuffer(), end );
+        records.flip();
+        write( times, records, count * RecordSize );
+
+        for (long n = count; n < count + batch.size(); n++)
+            if (n % IndexStride==0) {
+                int slot = (int)(n / IndexStride);
+                if (slot >= index.length)
+                    index = Arrays.copyOf( index, index.length * 2 );
+                index[slot] = batch.get((int)(n - count)).getTime();
+            }
+        count += batch.size();
+        end += data.length();
+        last = time;
+        mapping = map( mapping, count, end, index );
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write( buffer, position );
+    }
+
+    /** Flushes what has been appended to the disk */
+    public void force() throws IOException {
+        events.force(false);
+        times.force(false);
+    }
+
+    /** @return the number of events in the log */
+    public long size() { return mapping.count; }
+
+    /** @return the time of the first event, or Long.MIN_VALUE if the log is empty */
+    public long getFirst() {
+        Mapping m = mapping;
+        return m.count==0 ? Long.MIN_VALUE : m.time(0);
+    }
+
+    /** @return the time of the last event, or Long.MIN_VALUE if the log is empty */
+    public long getLast() {
+        Mapping m = mapping;
+        return m.count==0 ? Long.MIN_VALUE : m.time(m.count - 1);
+    }
+
+    /** @return the number of events and the time they span, e.g. for the response to archiving a mission */
+    public JsonObject toJson() {
+        Mapping m = mapping;
+        JsonObject json = new JsonObject().put("events", m.count);
+        if (m.count > 0)
+            json.put("first", m.time(0)).put("last", m.time(m.count - 1));
+        return json;
+    }
+
+    /** @return the time of the nth event */
+    public long time(long n) {
+        Mapping m = mapping;
+        check( m, n );
+        return m.time(n);
+    }
+
+    /** @return the nth event, decoded from the mapped data */
+    public Event get(long n) {
+        Mapping m = mapping;
+        check( m, n );
+        return read( m, n );
+    }
+
+    private static void check(Mapping m, long n) {
+        if (n < 0 || n >= m.count)
+            throw new IndexOutOfBoundsException( "event " + n + " of " + m.count );
+    }
+
+    private Event read(Mapping m, long n) {
+        long offset = m.offset(n);
+        ByteBuffer segment = m.events[(int)(offset / SegmentSize)].duplicate();
+        int at = (int)(offset % SegmentSize);
+        byte[] bytes = new byte[ 4 + segment.getInt(at) ];
+        segment.position(at);
+        segment.get(bytes);
+        return codec.decodeFromWire( 0, Buffer.buffer(bytes) );
+    }
+
+    /** @return the number of the first event at or after the time, or the size of the log if there isn't one */
+    public long seek(long time) {
+        return seek( mapping, time );
+    }
+
+    private static long seek(Mapping m, long time) {
+        // the first indexed time at or after the time, the event we want is in the block before it
+        int low = 0, high = (int)((m.count + IndexStride - 1) / IndexStride);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (m.index[middle] < time)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        long first = Math.max( 0, (long)(low - 1) * IndexStride );
+        long last = Math.min( m.count, (long)low * IndexStride );
+        while (first < last) {
+            long middle = (first + last) >>> 1;
+            if (m.time(middle) < time)
+                first = middle + 1;
+            else
+                last = middle;
+        }
+        return first;
+    }
+
+    /** Reads the events from one time up to another, in the order they were appended.
+     * @param from the earliest event time, inclusive
+     * @param to the latest event time, exclusive
+     * @param source only read events from this source, or null for all of them
+     * @return the events, decoded as they are read, from the log as it was when this was called */
+    public Iterator<Event> read(long from, long to, String source) {
+        Mapping m = mapping;
+        long first = seek( m, from );
+        long stop = to > from ? seek( m, to ) : first;
+        return new Iterator<Event>() {
+            long n = first;
+            Event next = advance();
+
+            private Event advance() {
+                while (n < stop) {
+                    Event event = read( m, n++ );
+                    if (source==null || source.equals( event.getSource() ))
+                        return event;
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() { return next!=null; }
+
+            @Override
+            public Event next() {
+                if (next==null)
+                    throw new NoSuchElementException();
+                Event event = next;
+                next = advance();
+                return event;
+            }
+        };
+    }
+
+    /** @return every event in the log */
+    public Iterator<Event> read() {
+        return read( Long.MIN_VALUE, Long.MAX_VALUE, null );
+    }
+
+    /** Closes the files. The maps stay readable until they are collected, so readers already iterating can finish. */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            times.close();
+        } finally {
+            events.close();
+        }
+    }
+
+    /** Closes the log and removes its files */
+    public synchronized void delete() throws IOException {
+        close();
+        Files.deleteIfExists( timesPath );
+        Files.deleteIfExists( eventsPath );
+    }
+}
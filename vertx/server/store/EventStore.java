@@ -0,0 +1,215 @@
+package server.store;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import server.couch.Couch;
+import server.couch.Cursor;
+import server.couch.Design;
+import server.couch.View;
+import server.couch.designs.network.Network;
+import server.events.Event;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/** The EventLogs of the missions which have been archived to a directory on local disk.
+ * Which missions have logs is kept in memory, read from the directory by load() and added to by archive(), so a
+ * request for a mission without one never touches the disk. Logs are opened on a worker thread the first time they
+ * are asked for and shared by every verticle in the Vert.x instance, since they are only ever read from and a mapped
+ * file is best mapped once.
+ * Archiving a mission copies its network events view into a new log a page at a time, appending each page on a worker
+ * thread while the next is fetched. The copy is built beside the old log and only replaces it once it is complete,
+ * so readers never see half a mission.
+ * @author casey */
+public class EventStore {
+
+    /** Where the logs are kept when the config doesn't say */
+    public static final String DefaultPath = "data/store";
+
+    /** The number of view rows read in each request while archiving */
+    public static final int DefaultPageSize = 5000;
+
+    /** Appended to the name of a log while it is being built */
+    static final String Building = ".building";
+
+    Vertx vertx;
+    Path dir;
+    LocalMap<String, EventLog> logs;
+    LocalMap<String, Boolean> archived;
+    LocalMap<String, Boolean> building;
+    LocalMap<String, Integer> users;
+    boolean closed = false;
+
+    /** Uses the logs in the directory, which are shared with every other store of the same directory */
+    public EventStore(Vertx vertx, String dir) {
+        this.vertx = vertx;
+        this.dir = Paths.get(dir);
+        String name = "server.store:" + this.dir.toAbsolutePath();
+        this.logs = vertx.sharedData().getLocalMap(name);
+        this.archived = vertx.sharedData().getLocalMap(name + ".archived");
+        this.building = vertx.sharedData().getLocalMap(name + ".building");
+        this.users = vertx.sharedData().getLocalMap(name + ".users");
+        synchronized (this.logs) {
+            Integer count = users.get("count");
+            users.put( "count", count==null ? 1 : count + 1 );
+        }
+    }
+
+    /** Lists the missions archived in the directory, so requests can tell which have logs without touching the disk.
+     * @return completes once the directory has been read on a worker thread */
+    public Future<Void> load() {
+        return this.<Void>blocking( () -> {
+            if (!Files.isDirectory(dir))
+                return null;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream( dir, "*" + EventLog.Times )) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    String mission = name.substring( 0, name.length() - EventLog.Times.length() );
+                    if (!mission.endsWith(Building))
+                        archived.put( mission, true );
+                }
+            }
+            return null;
+        });
+    }
+
+    /** @return whether the mission has a log, as of load() and any archiving since */
+    public boolean isArchived(String mission) {
+        return archived.containsKey(mission);
+    }
+
+    /** Gets the mission's log, opening it on a worker thread the first time it's asked for.
+     * @return the log, or null if the mission hasn't been archived */
+    public Future<EventLog> get(String mission) {
+        EventLog log = logs.get(mission);
+        if (log!=null || !isArchived(mission))
+            return Future.succeededFuture( log );
+        return this.<EventLog>blocking( () -> {
+            EventLog opened = EventLog.open(dir, mission);
+            EventLog existing;
+            synchronized (this.logs) {
+                existing = logs.putIfAbsent(mission, opened);
+            }
+            // someone else opened it first, so use theirs
+            if (existing!=null) {
+                opened.close();
+                return existing;
+            }
+            return opened;
+        });
+    }
+
+    /** Copies the mission's network events into a new log, replacing any it had.
+     * @return a summary of the new log, or a failure if the mission is already being archived or couldn't be read */
+    public Future<JsonObject> archive(Couch couch, String mission) {
+        return archive( couch, mission, DefaultPageSize );
+    }
+
+    public Future<JsonObject> archive(Couch couch, String mission, int pageSize) {
+        if (building.putIfAbsent(mission, true)!=null)
+            return Future.failedFuture( new IllegalStateException(mission + " is already being archived") );
+
+        View view = new Design(couch, mission, Network.DESIGN_NAME).getView(Network.DefaultView);
+        long start = System.currentTimeMillis();
+        String name = mission + Building;
+        return this.<EventLog>blocking( () -> {
+                    // start from scratch if an earlier attempt was interrupted
+                    EventLog.open(dir, name).delete();
+                    return EventLog.open(dir, name);
+                })
+                .compose( log -> copy( view, view.getPage(null, pageSize), log, pageSize )
+                        .compose( copied -> this.<JsonObject>blocking( () -> {
+                            log.force();
+                            log.close();
+                            return replace( mission, name );
+                        }))
+                        .onFailure( error -> vertx.executeBlocking( deleting -> {
+                            try {
+                                log.delete();
+                            } catch (IOException ignored) {}
+                            deleting.complete();
+                        }, false, deleted -> {} )) )
+                .map( summary -> summary.put("elapsed", System.currentTimeMillis() - start) )
+                .onComplete( done -> building.remove(mission) );
+    }
+
+    /** Appends the page to the log, fetching the one after it at the same time */
+    private Future<Void> copy(View view, Future<JsonObject> page, EventLog log, int pageSize) {
+        return page.compose( json -> {
+            JsonArray rows = json.getJsonArray("rows", new JsonArray());
+            List<Event> events = new ArrayList<>( rows.size() );
+            for (Object row : rows) {
+                JsonObject value = ((JsonObject)row).getJsonObject("value");
+                // the page may be shared with other queries, so the value is copied rather than given an id
+                events.add( Event.fromJson( value.copy().put("_id", ((JsonObject)row).getString("id")) ) );
+            }
+
+            String next = json.getString("next");
+            Future<JsonObject> ahead = next==null ? null : view.getPage( Cursor.decode(next), pageSize );
+            return this.<Void>blocking( () -> {
+                log.append(events);
+                return null;
+            }).compose( appended -> ahead==null ? Future.succeededFuture() : copy( view, ahead, log, pageSize ) );
+        });
+    }
+
+    /** Moves the finished log into place and opens it, closing the one it replaces */
+    private JsonObject replace(String mission, String name) throws IOException {
+        for (String suffix : new String[] { EventLog.Events, EventLog.Times })
+            Files.move( dir.resolve(name + suffix), dir.resolve(mission + suffix),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        EventLog log = EventLog.open(dir, mission);
+        EventLog old;
+        synchronized (this.logs) {
+            old = logs.put(mission, log);
+            archived.put(mission, true);
+        }
+        // readers part way through the old log keep its mapping, which outlives the file being closed or replaced
+        if (old!=null)
+            old.close();
+        return log.toJson();
+    }
+
+    interface Blocking<T> {
+        T run() throws Exception;
+    }
+
+    /** Runs file IO on a worker thread */
+    private <T> Future<T> blocking(Blocking<T> task) {
+        return Future.future( promise -> vertx.executeBlocking( running -> {
+            try {
+                running.complete( task.run() );
+            } catch (Exception error) {
+                running.fail( error );
+            }
+        }, false, promise ) );
+    }
+
+    /** Stops using the store, e.g. when a verticle stops, closing every log once the last store of the directory does.
+     * Readers part way through a log can still finish, since its mapping outlives its files being closed. */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        synchronized (this.logs) {
+            Integer others = users.get("count");
+            int count = others==null ? 0 : others - 1;
+            users.put( "count", count );
+            if (count > 0)
+                return;
+            for (String mission : new ArrayList<>( logs.keySet() ))
+                try {
+                    logs.remove(mission).close();
+                } catch (IOException ignored) {}
+        }
+    }
+}
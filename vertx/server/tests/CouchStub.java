@@ -0,0 +1,602 @@
+package server.tests;
+
+import io.vertx.core.Future;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import server.couch.Couch;
+import server.couch.designs.network.Network;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.function.Function;
+
+/** An in memory stand in for CouchDB, implementing just the parts of the API the server.couch classes use.
+ * It runs in the same Vert.x instance as the test, so the suites don't need a CouchDB install or Docker:
+ * _session, _all_dbs, database PUT/HEAD/GET/DELETE, document GET/PUT/DELETE with ETags, _design_docs, _all_docs,
+ * _bulk_docs with or without new edits, and normal or continuous _changes feeds.
+ * It can't run javascript, so views are Java functions registered by design and view name. The network events view
+ * is registered by default. Keys are collated by type like CouchDB, but strings are compared by code point rather
+ * than with ICU, which is all the events' ISO timestamps and ids need. Every request is recorded, so tests can check
+ * the query params the client sent.
+ * Set the system property couchdb=live to run the suites against a real CouchDB on localhost instead.
+ * @author casey */
+public class CouchStub {
+
+    public static final String Name = "admin";
+    public static final String Password = "Preceptor";
+
+    Vertx vertx;
+    HttpServer server;
+    String name = Name;
+    String password = Password;
+    long latency = 0;
+    long jitter = 0;
+    Random random = new Random();
+
+    Set<String> sessions = new HashSet<>();
+    TreeMap<String, Db> dbs = new TreeMap<>();
+    Map<String, Function<JsonObject, JsonObject>> views = new HashMap<>();
+    List<Request> requests = new ArrayList<>();
+
+    /** A request the stub has answered, so tests can check what the client sent */
+    public static class Request {
+        public final HttpMethod method;
+        public final String path;
+        public final MultiMap params;
+
+        Request(HttpServerRequest request) {
+            this.method = request.method();
+            this.path = request.path();
+            this.params = MultiMap.caseInsensitiveMultiMap().addAll( request.params() );
+        }
+
+        /** @return whether the request had every one of the query params, each given as name=value */
+        public boolean has(String... params) {
+            for (String param : params) {
+                int equals = param.indexOf('=');
+                if (!param.substring(equals + 1).equals( this.params.get( param.substring(0, equals) ) ))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /** A database, with its documents in id order and the sequence each was last changed at */
+    class Db {
+        String name;
+        TreeMap<String, JsonObject> docs = new TreeMap<>();
+        TreeMap<Long, String> changes = new TreeMap<>();
+        Map<String, Long> seqs = new HashMap<>();
+        List<HttpServerResponse> feeds = new ArrayList<>();
+        long seq = 0;
+
+        Db(String name) { this.name = name; }
+    }
+
+    public CouchStub(Vertx vertx) {
+        this.vertx = vertx;
+        view( Network.DESIGN_NAME, Network.DefaultView, Network::toRow );
+    }
+
+    /** Starts a stub on any free port, or just points at localhost:5984 when the couchdb property is 'live'
+     * @return a client for whichever CouchDB is being tested, which still needs to get a session */
+    public static Future<Couch> client(Vertx vertx) {
+        if ("live".equals( System.getProperty("couchdb") ))
+            return Future.succeededFuture( new Couch(vertx, "localhost", 5984) );
+        return new CouchStub(vertx).listen().map( port -> new Couch(vertx, "localhost", port) );
+    }
+
+    /** @return a client for whichever CouchDB is being tested, already logged in as the test administrator */
+    public static Future<Couch> connect(Vertx vertx) {
+        return client(vertx).compose( client -> client.getSession(Name, Password).map( token -> client ) );
+    }
+
+    /** Changes the credentials the stub accepts, which are admin/Preceptor by default like the test database */
+    public CouchStub credentials(String name, String password) {
+        this.name = name;
+        this.password = password;
+        return this;
+    }
+
+    /** Delays every response, to see how the client behaves with a slow or distant database.
+     * @param latency the minimum delay in milliseconds
+     * @param jitter the most extra delay in milliseconds, chosen at random for each request */
+    public CouchStub latency(long latency, long jitter) {
+        this.latency = latency;
+        this.jitter = jitter;
+        return this;
+    }
+
+    /** Registers a view, in place of the javascript map function of a design document.
+     * @param map returns the row for a document, with its 'key' and 'value', or null if the document isn't in the view */
+    public CouchStub view(String design, String view, Function<JsonObject, JsonObject> map) {
+        views.put( "_design/" + design + "/" + view, map );
+        return this;
+    }
+
+    /** Forgets every session, as if they had all expired, so clients have to log in again */
+    public void expireSessions() {
+        sessions.clear();
+    }
+
+    /** @return every request answered so far, oldest first */
+    public List<Request> getRequests() { return requests; }
+
+    /** @return the requests answered so far for the path, e.g. /db/_design/name/_view/view, with every one of the
+     * query params, each given as name=value */
+    public List<Request> getRequests(String path, String... params) {
+        List<Request> matching = new ArrayList<>();
+        for (Request request : requests)
+            if (request.path.equals(path) && request.has(params))
+                matching.add( request );
+        return matching;
+    }
+
+    /** @return the port the stub is listening on, chosen by the operating system */
+    public Future<Integer> listen() {
+        Promise<Integer> promise = Promise.promise();
+        server = vertx.createHttpServer().requestHandler( request ->
+                request.bodyHandler( body -> delay( () -> handle(request, body) ) ) );
+        server.listen(0, "localhost", result -> {
+            if (result.succeeded())
+                promise.complete( result.result().actualPort() );
+            else
+                promise.fail( result.cause() );
+        });
+        return promise.future();
+    }
+
+    public Future<Void> close() {
+        Promise<Void> promise = Promise.promise();
+        dbs.values().forEach( db -> new ArrayList<>(db.feeds).forEach( HttpServerResponse::close ) );
+        server.close( promise );
+        return promise.future();
+    }
+
+    private void delay(Runnable handler) {
+        long delay = latency + (jitter > 0 ? (long)(random.nextDouble() * jitter) : 0);
+        if (delay > 0)
+            vertx.setTimer( delay, id -> handler.run() );
+        else
+            handler.run();
+    }
+
+    void handle(HttpServerRequest request, Buffer body) {
+        requests.add( new Request(request) );
+        request.response().putHeader("Content-Type", "application/json");
+        try {
+            List<String> path = new ArrayList<>();
+            for (String segment : request.path().split("/"))
+                if (!segment.isEmpty())
+                    path.add( URLDecoder.decode(segment, "UTF-8") );
+
+            if (path.size()==1 && path.get(0).equals("_session")) {
+                session(request, body);
+                return;
+            }
+            if (!authorized(request)) {
+                error(request, 401, "unauthorized", "You are not authorized to access this db.");
+                return;
+            }
+
+            if (path.size()==1 && path.get(0).equals("_all_dbs"))
+                send(request, 200, new JsonArray( new ArrayList<>( dbs.keySet() ) ));
+            else if (path.size()==1)
+                database(request, path.get(0));
+            else if (!dbs.containsKey( path.get(0) ))
+                error(request, 404, "not_found", "Database does not exist.");
+            else
+                document(request, dbs.get( path.get(0) ), path.subList(1, path.size()), body);
+
+        } catch (DecodeException | IllegalArgumentException | ClassCastException | UnsupportedEncodingException error) {
+            error(request, 400, "bad_request", error.getMessage());
+        }
+    }
+
+    private boolean authorized(HttpServerRequest request) {
+        String cookie = request.getHeader("Cookie");
+        if (cookie==null)
+            return false;
+        String session = Couch.parseCookie(cookie).getString("AuthSession");
+        return session!=null && sessions.contains(session);
+    }
+
+    private void session(HttpServerRequest request, Buffer body) {
+        if (request.method()==HttpMethod.DELETE) {
+            request.response().putHeader("Set-Cookie", "AuthSession=; Version=1; Path=/; HttpOnly; Max-Age=0");
+            send(request, 200, new JsonObject().put("ok", true));
+            return;
+        }
+
+        JsonObject credentials = body.length()==0 ? new JsonObject() : body.toJsonObject();
+        if (!name.equals( credentials.getString("name") ) || !password.equals( credentials.getString("password") )) {
+            error(request, 401, "unauthorized", "Name or password is incorrect.");
+            return;
+        }
+
+        String session = UUID.randomUUID().toString().replace("-", "");
+        sessions.add(session);
+        request.response().putHeader("Set-Cookie", "AuthSession=" + session + "; Version=1; Path=/; HttpOnly");
+        send(request, 200, new JsonObject()
+                .put("ok", true)
+                .put("name", name)
+                .put("roles", new JsonArray().add("_admin")));
+    }
+
+    private void database(HttpServerRequest request, String name) {
+        Db db = dbs.get(name);
+        switch (request.method()) {
+            case PUT:
+                if (db!=null) {
+                    error(request, 412, "file_exists", "The database could not be created, the file already exists.");
+                    return;
+                }
+                dbs.put(name, new Db(name));
+                send(request, 201, new JsonObject().put("ok", true));
+                return;
+
+            case HEAD:
+                request.response().setStatusCode( db==null ? 404 : 200 ).end();
+                return;
+
+            case GET:
+                if (db==null) {
+                    error(request, 404, "not_found", "Database does not exist.");
+                    return;
+                }
+                long deleted = db.docs.values().stream().filter( doc -> doc.getBoolean("_deleted", false) ).count();
+                send(request, 200, new JsonObject()
+                        .put("db_name", name)
+                        .put("doc_count", db.docs.size() - deleted)
+                        .put("doc_del_count", deleted)
+                        .put("update_seq", db.seq));
+                return;
+
+            case DELETE:
+                if (db==null) {
+                    error(request, 404, "not_found", "Database does not exist.");
+                    return;
+                }
+                dbs.remove(name);
+                new ArrayList<>(db.feeds).forEach( HttpServerResponse::close );
+                send(request, 200, new JsonObject().put("ok", true));
+                return;
+
+            default:
+                error(request, 405, "method_not_allowed", "Only DELETE,GET,HEAD,PUT allowed");
+        }
+    }
+
+    private void document(HttpServerRequest request, Db db, List<String> path, Buffer body) {
+        String first = path.get(0);
+
+        if (path.size()==1 && first.equals("_all_docs"))
+            query(request, db, doc -> new JsonObject()
+                    .put("id", doc.getString("_id"))
+                    .put("key", doc.getString("_id"))
+                    .put("value", new JsonObject().put("rev", doc.getString("_rev"))), true);
+        else if (path.size()==1 && first.equals("_design_docs"))
+            query(request, db, doc -> !doc.getString("_id").startsWith("_design/") ? null : new JsonObject()
+                    .put("id", doc.getString("_id"))
+                    .put("key", doc.getString("_id"))
+                    .put("value", new JsonObject().put("rev", doc.getString("_rev"))), true);
+        else if (path.size()==1 && first.equals("_bulk_docs"))
+            bulk(request, db, body.toJsonObject());
+        else if (path.size()==1 && first.equals("_changes"))
+            changes(request, db);
+        else if (path.size()==4 && first.equals("_design") && path.get(2).equals("_view"))
+            view(request, db, path.get(1), path.get(3));
+        else if (path.size()==2 && first.equals("_design"))
+            doc(request, db, "_design/" + path.get(1), body);
+        else if (path.size()==1 && !first.startsWith("_"))
+            doc(request, db, first, body);
+        else
+            error(request, 404, "not_found", "missing");
+    }
+
+    private void doc(HttpServerRequest request, Db db, String id, Buffer body) {
+        JsonObject doc = db.docs.get(id);
+        boolean missing = doc==null || doc.getBoolean("_deleted", false);
+
+        switch (request.method()) {
+            case GET:
+            case HEAD:
+                if (missing) {
+                    error(request, 404, "not_found", doc==null ? "missing" : "deleted");
+                    return;
+                }
+                String etag = "\"" + doc.getString("_rev") + "\"";
+                request.response().putHeader("ETag", etag);
+                if (etag.equals( request.getHeader("If-None-Match") ))
+                    request.response().setStatusCode(304).end();
+                else
+                    send(request, 200, doc);
+                return;
+
+            case PUT:
+                JsonObject result = save(db, body.toJsonObject().put("_id", id));
+                send(request, result.containsKey("error") ? 409 : 201, result);
+                return;
+
+            case DELETE:
+                if (missing) {
+                    error(request, 404, "not_found", "missing");
+                    return;
+                }
+                JsonObject deleted = save(db, new JsonObject()
+                        .put("_id", id)
+                        .put("_rev", request.getParam("rev"))
+                        .put("_deleted", true));
+                send(request, deleted.containsKey("error") ? 409 : 200, deleted);
+                return;
+
+            default:
+                error(request, 405, "method_not_allowed", "Only DELETE,GET,HEAD,PUT allowed");
+        }
+    }
+
+    private void bulk(HttpServerRequest request, Db db, JsonObject body) {
+        JsonArray results = new JsonArray();
+        boolean newEdits = body.getBoolean("new_edits", true);
+        for (Object doc : body.getJsonArray("docs")) {
+            JsonObject result = newEdits ? save(db, ((JsonObject)doc).copy()) : replicate(db, ((JsonObject)doc).copy());
+            // like CouchDB, without new edits only the failures are listed
+            if (newEdits || result.containsKey("error"))
+                results.add( result );
+        }
+        send(request, 201, results);
+    }
+
+    /** Stores a document at the revision it already has, as replication does. There's no revision tree, so the
+     * document simply replaces whatever is there unless that's a later generation. */
+    private JsonObject replicate(Db db, JsonObject doc) {
+        String id = doc.getString("_id");
+        String rev = doc.getString("_rev");
+        if (id==null || rev==null)
+            return new JsonObject()
+                    .put("id", id)
+                    .put("error", "bad_request")
+                    .put("reason", "Document must have an _id and a _rev.");
+
+        JsonObject existing = db.docs.get(id);
+        if (existing!=null && generation(existing.getString("_rev")) >= generation(rev))
+            return new JsonObject().put("ok", true).put("id", id).put("rev", rev);
+
+        db.docs.put(id, doc);
+        Long previous = db.seqs.put(id, ++db.seq);
+        if (previous!=null)
+            db.changes.remove(previous);
+        db.changes.put(db.seq, id);
+
+        JsonObject change = change(db, db.seq, id, true);
+        db.feeds.forEach( feed -> feed.write( change.encode() + "\n" ) );
+        return new JsonObject().put("ok", true).put("id", id).put("rev", rev);
+    }
+
+    private static int generation(String rev) {
+        return Integer.parseInt( rev.split("-")[0] );
+    }
+
+    /** Creates or updates a document, checking its revision like CouchDB, and notifies any feeds watching the database.
+     * @return {ok, id, rev}, or {id, error, reason} if the revision doesn't match */
+    private JsonObject save(Db db, JsonObject doc) {
+        String id = doc.getString("_id");
+        if (id==null) {
+            id = UUID.randomUUID().toString().replace("-", "");
+            doc.put("_id", id);
+        }
+
+        JsonObject existing = db.docs.get(id);
+        boolean live = existing!=null && !existing.getBoolean("_deleted", false);
+        String rev = doc.getString("_rev");
+        if (live ? !existing.getString("_rev").equals(rev) : rev!=null && existing==null)
+            return new JsonObject()
+                    .put("id", id)
+                    .put("error", "conflict")
+                    .put("reason", "Document update conflict.");
+
+        int generation = existing==null ? 1 : 1 + Integer.parseInt( existing.getString("_rev").split("-")[0] );
+        String next = generation + "-" + UUID.randomUUID().toString().replace("-", "");
+        doc.put("_rev", next);
+        db.docs.put(id, doc);
+
+        // each document only appears in the changes feed at its latest sequence
+        Long previous = db.seqs.put(id, ++db.seq);
+        if (previous!=null)
+            db.changes.remove(previous);
+        db.changes.put(db.seq, id);
+
+        JsonObject change = change(db, db.seq, id, true);
+        db.feeds.forEach( feed -> feed.write( change.encode() + "\n" ) );
+
+        return new JsonObject()
+                .put("ok", true)
+                .put("id", id)
+                .put("rev", next);
+    }
+
+    private JsonObject change(Db db, long seq, String id, boolean includeDocs) {
+        JsonObject doc = db.docs.get(id);
+        JsonObject change = new JsonObject()
+                .put("seq", seq)
+                .put("id", id)
+                .put("changes", new JsonArray().add( new JsonObject().put("rev", doc.getString("_rev")) ));
+        if (doc.getBoolean("_deleted", false))
+            change.put("deleted", true);
+        if (includeDocs)
+            change.put("doc", doc);
+        return change;
+    }
+
+    private void changes(HttpServerRequest request, Db db) {
+        String since = request.getParam("since");
+        long after = since==null ? 0 : since.equals("now") ? db.seq : Long.parseLong( since.split("-")[0] );
+        boolean includeDocs = "true".equals( request.getParam("include_docs") );
+
+        if (!"continuous".equals( request.getParam("feed") )) {
+            JsonArray results = new JsonArray();
+            db.changes.tailMap(after, false).forEach( (seq, id) -> results.add( change(db, seq, id, includeDocs) ) );
+            send(request, 200, new JsonObject().put("results", results).put("last_seq", db.seq));
+            return;
+        }
+
+        // a continuous feed catches up, then stays open with a line for each change and blank lines as a heartbeat
+        // CouchDB answers straight away, so the client knows the feed is open before there are any changes
+        HttpServerResponse response = request.response();
+        response.setChunked(true).setStatusCode(200).write("\n");
+        db.changes.tailMap(after, false).forEach( (seq, id) ->
+                response.write( change(db, seq, id, true).encode() + "\n" ) );
+        db.feeds.add(response);
+
+        String heartbeat = request.getParam("heartbeat");
+        long timer = heartbeat==null ? -1
+                : vertx.setPeriodic( Long.parseLong(heartbeat), id -> response.write("\n") );
+        response.closeHandler( v -> {
+            db.feeds.remove(response);
+            if (timer!=-1)
+                vertx.cancelTimer(timer);
+        });
+    }
+
+    private void view(HttpServerRequest request, Db db, String design, String name) {
+        if (!db.docs.containsKey( "_design/" + design )) {
+            error(request, 404, "not_found", "missing");
+            return;
+        }
+        Function<JsonObject, JsonObject> map = views.get( "_design/" + design + "/" + name );
+        if (map==null) {
+            error(request, 404, "not_found", "missing_named_view");
+            return;
+        }
+
+        // design documents are never passed to map functions
+        query(request, db, doc -> {
+            if (doc.getString("_id").startsWith("_design/"))
+                return null;
+            JsonObject row = map.apply(doc);
+            return row==null ? null : row.copy().put("id", doc.getString("_id"));
+        }, false);
+    }
+
+    /** Answers a view query over the rows the function makes of each document, supporting the parameters we use:
+     * startkey, startkey_docid, endkey, inclusive_end, limit, skip and include_docs.
+     * The stub's views are computed on every query, so they are never stale and 'update' and 'stable' are ignored. */
+    private void query(HttpServerRequest request, Db db, Function<JsonObject, JsonObject> map, boolean allDocs) {
+        List<JsonObject> rows = new ArrayList<>();
+        Map<String, JsonObject> docs = new HashMap<>();
+        db.docs.values().forEach( doc -> {
+            if (doc.getBoolean("_deleted", false))
+                return;
+            JsonObject row = map.apply(doc);
+            if (row!=null) {
+                rows.add(row);
+                docs.put(row.getString("id"), doc);
+            }
+        });
+        rows.sort( (a, b) -> {
+            int order = collate(a.getValue("key"), b.getValue("key"));
+            return order!=0 ? order : a.getString("id").compareTo( b.getString("id") );
+        });
+
+        Object startkey = param(request, "startkey");
+        String startId = request.getParam("startkey_docid");
+        Object endkey = param(request, "endkey");
+        boolean inclusive = !"false".equals( request.getParam("inclusive_end") );
+        String limit = request.getParam("limit");
+        String skip = request.getParam("skip");
+        boolean includeDocs = "true".equals( request.getParam("include_docs") );
+
+        int offset = 0;
+        if (request.params().contains("startkey"))
+            while (offset < rows.size() && before(rows.get(offset), startkey, startId))
+                offset++;
+        if (skip!=null)
+            offset = Math.min(rows.size(), offset + Integer.parseInt(skip));
+
+        JsonArray page = new JsonArray();
+        int max = limit==null ? Integer.MAX_VALUE : Integer.parseInt(limit);
+        for (int n = offset; n < rows.size() && page.size() < max; n++) {
+            JsonObject row = rows.get(n);
+            if (request.params().contains("endkey")) {
+                int order = collate(row.getValue("key"), endkey);
+                if (order > 0 || (order==0 && !inclusive))
+                    break;
+            }
+            if (includeDocs)
+                row = row.copy().put("doc", docs.get( row.getString("id") ));
+            page.add(row);
+        }
+
+        send(request, 200, new JsonObject()
+                .put("total_rows", rows.size())
+                .put("offset", offset)
+                .put("rows", page));
+    }
+
+    /** @return whether the row comes before the start of the query */
+    private boolean before(JsonObject row, Object startkey, String startId) {
+        int order = collate(row.getValue("key"), startkey);
+        return order < 0 || (order==0 && startId!=null && row.getString("id").compareTo(startId) < 0);
+    }
+
+    private Object param(HttpServerRequest request, String name) {
+        String value = request.getParam(name);
+        return value==null ? null : Json.decodeValue(value);
+    }
+
+    /** Orders keys like CouchDB: null, false, true, numbers, strings, arrays, then objects */
+    static int collate(Object a, Object b) {
+        int type = Integer.compare(rank(a), rank(b));
+        if (type!=0)
+            return type;
+
+        if (a instanceof Boolean)
+            return Boolean.compare((Boolean)a, (Boolean)b);
+        if (a instanceof Number)
+            return Double.compare(((Number)a).doubleValue(), ((Number)b).doubleValue());
+        if (a instanceof String)
+            return ((String)a).compareTo((String)b);
+        if (a instanceof JsonArray) {
+            JsonArray x = (JsonArray)a, y = (JsonArray)b;
+            for (int n = 0; n < Math.min(x.size(), y.size()); n++) {
+                int order = collate(x.getValue(n), y.getValue(n));
+                if (order!=0)
+                    return order;
+            }
+            return Integer.compare(x.size(), y.size());
+        }
+        // objects are rare as keys, so we don't bother comparing them field by field
+        if (a instanceof JsonObject)
+            return ((JsonObject)a).encode().compareTo( ((JsonObject)b).encode() );
+        return 0;
+    }
+
+    private static int rank(Object key) {
+        if (key==null) return 0;
+        if (key instanceof Boolean) return ((Boolean)key) ? 2 : 1;
+        if (key instanceof Number) return 3;
+        if (key instanceof String) return 4;
+        if (key instanceof JsonArray) return 5;
+        return 6;
+    }
+
+    private void send(HttpServerRequest request, int status, Object json) {
+        String body = json instanceof JsonObject ? ((JsonObject)json).encode() : ((JsonArray)json).encode();
+        request.response().setStatusCode(status).end(body);
+    }
+
+    private void error(HttpServerRequest request, int status, String error, String reason) {
+        send(request, status, new JsonObject().put("error", error).put("reason", reason));
+    }
+}
@@ -0,0 +1,63 @@
+package server.tests;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.TestOptions;
+import io.vertx.ext.unit.TestSuite;
+import io.vertx.ext.unit.report.ReportOptions;
+import server.Columns;
+import server.couch.designs.network.Network;
+import server.couch.designs.network.TimeRange;
+
+/** Test packing view rows into columns, which doesn't need a CouchDB instance. */
+public class TestColumns {
+
+    public static void main(String[] args) {
+        TestSuite suite = TestSuite.create("test_columns");
+
+        suite.test( "columns_pack", context -> {
+            JsonArray rows = new JsonArray();
+            for (int n = 0; n<10; n++) {
+                long time = 1596240000000L + n*250;
+                JsonObject doc = new JsonObject()
+                        .put("_id", "event"+n)
+                        .put("time", time)
+                        .put("stamp", TimeRange.stamp(time))
+                        .put("source", "s" + (n%2))
+                        .put("target", "r1")
+                        .put("class", n<5 ? "strobe" : "plot")
+                        .put("angle", n * 10.0);
+                if (n>=5)
+                    doc.put("power", 1.0);
+                rows.add( Network.toRow(doc) );
+            }
+
+            JsonObject columns = Columns.of(rows);
+            context.assertEquals( columns.getInteger("count"), 10 );
+            context.assertEquals( columns.getJsonObject("time").getLong("base"), 1596240000000L );
+            context.assertEquals( columns.getJsonObject("time").getJsonArray("delta").getLong(3), 250L );
+
+            // stamps which are just the time are left out
+            context.assertFalse( columns.containsKey("stamp") );
+
+            // repeated values are indexes into a dictionary
+            JsonObject sources = columns.getJsonObject("source");
+            context.assertEquals( sources.getJsonArray("dict").size(), 2 );
+            context.assertEquals( sources.getJsonArray("index").getInteger(3), 1 );
+
+            // fields some rows don't have are null in those rows
+            JsonArray power = columns.getJsonArray("power");
+            context.assertEquals( power.size(), 10 );
+            context.assertNull( power.getValue(0) );
+            context.assertEquals( power.getDouble(9), 1.0 );
+
+            // and it's smaller than the rows it came from
+            context.assertTrue( columns.encode().length() < new JsonObject().put("rows", rows).encode().length() );
+        } );
+
+        // just write the results to the console for right now
+        suite.run(
+                new TestOptions().addReporter(
+                        new ReportOptions().setTo("console")));
+    }
+}
@@ -1,11 +1,13 @@
 package server.tests;
 
 import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.unit.Async;
 import io.vertx.ext.unit.TestOptions;
 import io.vertx.ext.unit.TestSuite;
 import io.vertx.ext.unit.report.ReportOptions;
+import server.couch.Cache;
 import server.couch.Couch;
 import server.couch.Database;
 
@@ -23,9 +25,8 @@ public class TestCouchEvent {
             context.put("vertx", vertx);
 
             // get the session token from the database
-            Couch client = new Couch( vertx,"localhost", 5984);
-            client.getSession("admin","Preceptor")
-            .compose( token -> {
+            CouchStub.connect( vertx )
+            .compose( client -> {
                 // cache the client for subsequest test requests
                 context.put("client", client);
 
@@ -75,6 +76,59 @@ public class TestCouchEvent {
             }).onFailure( context::fail );
         } );
 
+        // make sure repeated reads are served from the cache, and writes invalidate it
+        suite.test( "event_cache", context -> {
+            Async async = context.async();
+            Couch client = context.get("client");
+            Database mission = context.get("mission");
+            Cache cache = client.getCache();
+
+            String id = "cached-event";
+            JsonObject event = new JsonObject()
+                    .put("stamp", "YYYY-MM-DDThh:mm:ss.sTZD")
+                    .put("source", "cache")
+                    .put("value", "first");
+
+            mission.putDoc(id, event)
+                .compose( json -> mission.getDoc(id) )
+                .compose( json -> {
+                    // the second read shouldn't go to couch
+                    long hits = cache.getHits();
+                    return mission.getDoc(id).map( again -> {
+                        context.assertEquals( cache.getHits(), hits+1 );
+                        context.assertEquals( again, json );
+                        return again;
+                    });
+                })
+                .compose( json -> {
+                    // updating the document should drop it from the cache
+                    JsonObject update = event.copy()
+                            .put("_rev", json.getString("_rev"))
+                            .put("value", "second");
+                    return mission.putDoc(id, update);
+                })
+                .compose( json -> mission.getDoc(id) )
+                .compose( json -> {
+                    context.assertEquals( json.getString("value"), "second" );
+
+                    // so should importing a later revision, though CouchDB doesn't list documents it writes that way
+                    JsonObject imported = event.copy()
+                            .put("_id", id)
+                            .put("_rev", "9-imported")
+                            .put("value", "imported");
+                    return mission.bulkDocs( new JsonArray().add(imported), false );
+                })
+                .compose( results -> {
+                    context.assertTrue( results.isEmpty() );
+                    return mission.getDoc(id);
+                })
+                .onSuccess( json -> {
+                    context.assertEquals( json.getString("value"), "imported" );
+                    async.complete();
+                })
+                .onFailure( context::fail );
+        } );
+
         // TODO add a test for accessing a Product's view of events...
 
         // delete the test mission database, then the client
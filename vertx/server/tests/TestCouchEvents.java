@@ -3,12 +3,16 @@ package server.tests;
 import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.MessageConsumer;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.unit.Async;
 import io.vertx.ext.unit.TestOptions;
 import io.vertx.ext.unit.TestSuite;
 import io.vertx.ext.unit.report.ReportOptions;
+import server.couch.ChangeFeeds;
+import server.couch.ChangeHub;
+import server.couch.ChangeStream;
 import server.couch.Couch;
 import server.couch.Database;
 import server.couch.View;
@@ -16,6 +20,7 @@ import server.couch.designs.network.Network;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 
 /** Test event creation and retrieval using only the default view. */
 public class TestCouchEvents {
@@ -35,9 +40,8 @@ public class TestCouchEvents {
             context.put( "design", design );
 
             // get the session token from the database
-            Couch client = new Couch( vertx,"localhost", 5984);
-            client.getSession("admin","Preceptor")
-            .compose( token -> {
+            CouchStub.connect( vertx )
+            .compose( client -> {
 
                 // cache the client for subsequest test requests
                 context.put("client", client);
@@ -116,6 +120,129 @@ public class TestCouchEvents {
                 .onFailure( context::fail );
         } );
 
+        suite.test( "event_bulk", context -> {
+            Async async = context.async();
+            Database db = context.get("db");
+
+            // generate a thousand events from a different source so they don't collide with the previous test
+            List<JsonObject> events = new ArrayList<>();
+            for (int n = 0; n<1000; n++) {
+                String stamp = String.format("%05d", n*100);
+                String source = "bulk";
+                events.add( new JsonObject()
+                        .put("_id", stamp+"-"+source)
+                        .put("time", n*100)
+                        .put("stamp", stamp)
+                        .put("source", source)
+                        .put("target", "test")
+                        .put("class", "strobe")
+                        .put("sic", "a")
+                        .put("tap", "b")
+                        .put("angle", n * 2.5 / Math.PI) );
+            }
+
+            // upload them in batches that don't evenly divide the events
+            db.putDocs( events.iterator(), 300 )
+                .onSuccess( results -> {
+
+                    // make sure every event has a result, in the order they were sent
+                    context.assertEquals( results.size(), events.size() );
+                    for (int n = 0; n<results.size(); n++) {
+                        JsonObject result = results.getJsonObject(n);
+                        context.assertTrue( result.getBoolean("ok", false), result.toString() );
+                        context.assertEquals( result.getString("id"), events.get(n).getString("_id") );
+                        context.assertNotNull( result.getString("rev") );
+                    }
+                    async.complete(); })
+                .onFailure( context::fail );
+        } );
+
+        suite.test( "event_changes", context -> {
+            Async async = context.async();
+            Couch client = context.get("client");
+            Database db = context.get("db");
+
+            // start the feed at the current sequence, so we can't miss the change even if it beats the feed request
+            client.getDatabaseInfo( TEST_MISSION ).onSuccess( info -> {
+                ChangeStream changes = db.getChanges( info.getValue("update_seq").toString() );
+                changes.exceptionHandler( context::fail );
+                changes.handler( change -> {
+                    context.assertEquals( change.getString("id"), "live-event" );
+                    context.assertEquals( change.getJsonObject("doc").getString("source"), "live" );
+                    context.assertNotNull( changes.getLastSeq() );
+                    changes.close();
+                    async.complete();
+                });
+
+                db.putDoc( "live-event", new JsonObject()
+                        .put("time", 0)
+                        .put("stamp", "00000")
+                        .put("source", "live") )
+                    .onFailure( context::fail );
+            }).onFailure( context::fail );
+        } );
+
+        suite.test( "event_hub", context -> {
+            Async async = context.async(2);
+            Couch client = context.get("client");
+            Database db = context.get("db");
+
+            // two consumers of the same mission should share one feed
+            ChangeHub hub = new ChangeHub(client);
+            List<MessageConsumer<JsonObject>> consumers = new ArrayList<>();
+            for (int n = 0; n<2; n++)
+                consumers.add( hub.subscribe( TEST_MISSION, message -> {
+                    context.assertEquals( message.body().getString("id"), "hub-event" );
+                    async.countDown();
+                }) );
+            context.assertEquals( hub.size(), 1 );
+
+            // once both have heard the change, the feed should close
+            async.handler( done -> {
+                consumers.forEach( consumer -> hub.unsubscribe( TEST_MISSION, consumer ) );
+                context.assertEquals( hub.size(), 0 );
+            });
+
+            // the feed starts from the current sequence rather than 'now', so it resumes from there if it drops before
+            // the first change, which is only made once it is open
+            hub.opened( TEST_MISSION ).compose( open -> {
+                    context.assertNotEquals( hub.getLastSeq(TEST_MISSION), "now" );
+                    return db.putDoc( "hub-event", new JsonObject()
+                        .put("time", 0)
+                        .put("stamp", "00000")
+                        .put("source", "hub") );
+                })
+                .onFailure( context::fail );
+        } );
+
+        // make sure subscribers in different verticles share the listening hub's feed, which closes after them
+        suite.test( "event_feeds", context -> {
+            Async async = context.async();
+            Vertx vertx = context.get("vertx");
+            Couch client = context.get("client");
+
+            ChangeHub hub = new ChangeHub(client).listen();
+            List<ChangeFeeds> verticles = new ArrayList<>();
+            for (int n = 0; n<2; n++) {
+                ChangeFeeds feeds = new ChangeFeeds(vertx);
+                feeds.subscribe( TEST_MISSION, message -> {} );
+                feeds.subscribeEvents( TEST_MISSION, message -> {} );
+                verticles.add( feeds );
+            }
+
+            // the hub hears about subscriptions over the event bus, so wait until it has counted them all
+            until( vertx, () -> hub.size()==1 && hub.getConsumers(TEST_MISSION)==4 )
+                    .compose( counted -> {
+                        verticles.forEach( ChangeFeeds::close );
+                        return until( vertx, () -> hub.size()==0 );
+                    })
+                    .onSuccess( closed -> {
+                        hub.close();
+                        async.complete();
+                    })
+                    .onFailure( context::fail );
+        } );
+
         // TODO add a test for accessing a Product's view of events...
 
         // delete the test mission database, then the client
@@ -134,6 +261,20 @@ public class TestCouchEvents {
                         new ReportOptions().setTo("console")));
     }
 
+    /** @return completes once the condition holds, checking it every few milliseconds for up to five seconds */
+    static Future<Void> until(Vertx vertx, Supplier<Boolean> condition) {
+        long deadline = System.currentTimeMillis() + 5000;
+        return Future.future( promise -> vertx.setPeriodic( 5, id -> {
+            if (condition.get()) {
+                vertx.cancelTimer(id);
+                promise.complete();
+            } else if (System.currentTimeMillis() > deadline) {
+                vertx.cancelTimer(id);
+                promise.fail("timed out waiting for the condition");
+            }
+        }));
+    }
+
     // a recursive approach...
 //    private Future<JsonObject> simulate(CouchClient client, int n) {
 //        JsonObject event =  new JsonObject()
@@ -18,11 +18,10 @@ public class TestCouchMissions {
         suite.before( context -> {
             Async async = context.async();
             Vertx vertx = Vertx.vertx();
-            Couch client = new Couch( vertx,"localhost", 5984);
 
             // get the session token from the database
-            client.getSession("admin","Preceptor")
-            .onSuccess( token -> {
+            CouchStub.connect( vertx )
+            .onSuccess( client -> {
                 context.put("client", client);
                 async.complete();
             })
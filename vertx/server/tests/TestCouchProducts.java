@@ -26,8 +26,7 @@ public class TestCouchProducts {
             context.put("vertx", vertx);
 
             // get the session token from the database
-            Couch client = new Couch( vertx,"localhost", 5984);
-            client.getSession("admin","Preceptor").compose( token -> {
+            CouchStub.connect( vertx ).compose( client -> {
 
                 // cache the client for subsequest test requests
                 context.put("client", client);
@@ -0,0 +1,108 @@
+package server.tests;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestOptions;
+import io.vertx.ext.unit.TestSuite;
+import io.vertx.ext.unit.report.ReportOptions;
+import server.couch.Couch;
+import server.couch.ChangeStream;
+import server.couch.Database;
+import server.couch.RowStream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Test how the client copes with sessions expiring and a slow database, which only the stub can arrange. */
+public class TestCouchSession {
+
+    public static final String TEST_MISSION = "test_mission";
+
+    public static void main(String[] args) {
+        TestSuite suite = TestSuite.create("test_couchdb_session");
+
+        suite.before( context -> {
+            Async async = context.async();
+            Vertx vertx = Vertx.vertx();
+            context.put("vertx", vertx);
+
+            // answer every request after a delay, like a database on the far side of a network
+            CouchStub stub = new CouchStub(vertx).latency(20, 10);
+            context.put("stub", stub);
+            stub.listen().compose( port -> {
+                Couch client = new Couch(vertx, "localhost", port);
+                context.put("client", client);
+                return client.getSession(CouchStub.Name, CouchStub.Password)
+                        .compose( token -> client.putDatabase( TEST_MISSION ) );
+            }).onSuccess( mission -> {
+                context.put("mission", mission);
+                async.complete();
+            }).onFailure( context::fail );
+        });
+
+        // make sure reads carry on once the session cookie has expired
+        suite.test( "session_expiry", context -> {
+            Async async = context.async();
+            CouchStub stub = context.get("stub");
+            Database mission = context.get("mission");
+
+            mission.putDoc( "expiry", new JsonObject().put("time", 0).put("source", "sim") )
+                .compose( result -> {
+                    stub.expireSessions();
+                    return mission.getDoc( "expiry" );
+                })
+                .compose( doc -> {
+                    context.assertEquals( doc.getString("source"), "sim" );
+                    return mission.exists();
+                })
+                .onSuccess( exists -> {
+                    context.assertTrue( exists );
+                    async.complete();
+                })
+                .onFailure( context::fail );
+        } );
+
+        // make sure streamed pages and change feeds log in again too, rather than failing until something else does
+        suite.test( "session_expiry_stream", context -> {
+            Async async = context.async();
+            CouchStub stub = context.get("stub");
+            Database mission = context.get("mission");
+
+            mission.putDoc( "streamed", new JsonObject().put("time", 1).put("source", "sim") ).onSuccess( result -> {
+                stub.expireSessions();
+                List<String> ids = new ArrayList<>();
+                RowStream rows = mission.getDefaultView().streamPage( null, 10 );
+                rows.handler( row -> ids.add( row.getString("id") ) );
+                rows.exceptionHandler( context::fail );
+                rows.endHandler( v -> {
+                    context.assertTrue( ids.contains("streamed") );
+
+                    stub.expireSessions();
+                    ChangeStream changes = mission.getChanges("0");
+                    changes.exceptionHandler( context::fail );
+                    changes.handler( change -> {
+                        changes.close();
+                        async.complete();
+                    });
+                });
+            }).onFailure( context::fail );
+        } );
+
+        suite.after( context -> {
+            Async async = context.async();
+            Couch client = context.get("client");
+            CouchStub stub = context.get("stub");
+            client.deleteDatabase( TEST_MISSION )
+                .compose( v -> client.deleteSession() )
+                .compose( v -> stub.close() )
+                .onSuccess( v -> async.complete() )
+                .onFailure( context::fail );
+        });
+
+        // just write the results to the console for right now
+        suite.run(
+                new TestOptions().addReporter(
+                        new ReportOptions().setTo("console")));
+    }
+}
@@ -10,10 +10,13 @@ import io.vertx.ext.unit.TestOptions;
 import io.vertx.ext.unit.TestSuite;
 import io.vertx.ext.unit.report.ReportOptions;
 import server.couch.Couch;
+import server.couch.Cursor;
 import server.couch.Database;
 import server.couch.Design;
+import server.couch.RowStream;
 import server.couch.View;
 import server.couch.designs.network.Network;
+import server.couch.designs.network.TimeRange;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -33,8 +36,7 @@ public class TestCouchView {
             context.put("vertx", vertx);
 
             // get the session token from the database and cache it
-            Couch client = new Couch( vertx,"localhost", 5984);
-            client.getSession("admin","Preceptor").compose( token -> {
+            CouchStub.connect( vertx ).compose( client -> {
                 context.put("client", client);
 
                 // then create a test database for the products to be tested on
@@ -121,6 +123,190 @@ public class TestCouchView {
                 .onFailure( context::fail );
         } );
 
+        // make sure the streamed rows are the same as the buffered ones
+        suite.test( "event_stream", context -> {
+            Async async = context.async();
+            Design design = context.get("design");
+
+            String start = "[\"00100\",\"sim\"]";
+            View view = design.getView(Network.DefaultView);
+            view.getDocs(start, 50).onSuccess( json -> {
+                JsonArray expected = json.getJsonArray("rows");
+                JsonArray streamed = new JsonArray();
+
+                // pause the stream every few rows to exercise the back pressure
+                RowStream rows = view.streamDocs(start, 50);
+                rows.handler( row -> {
+                    streamed.add( row );
+                    if (streamed.size() % 7 == 0) {
+                        rows.pause();
+                        Vertx.currentContext().runOnContext( v -> rows.resume() );
+                    }
+                });
+                rows.exceptionHandler( context::fail );
+                rows.endHandler( v -> {
+                    context.assertEquals( streamed.size(), 50 );
+                    context.assertEquals( streamed, expected );
+                    async.complete();
+                });
+            }).onFailure( context::fail );
+        } );
+
+        // make sure following the cursors visits every event exactly once, in order
+        suite.test( "event_pages", context -> {
+            Async async = context.async();
+            Design design = context.get("design");
+            View view = design.getView(Network.DefaultView);
+
+            JsonArray visited = new JsonArray();
+            pageThrough( view, null, 30, visited )
+                .onSuccess( pages -> {
+                    // 100 events in pages of 30 needs 4 pages
+                    context.assertEquals( pages, 4 );
+                    context.assertEquals( visited.size(), 100 );
+                    for (int n = 0; n<visited.size(); n++)
+                        context.assertEquals( visited.getJsonObject(n).getString("id"),
+                                String.format("%05d", n*100)+"-sim" );
+                    async.complete();
+                })
+                .onFailure( context::fail );
+        } );
+
+        // make sure a time window only returns the events stamped within it
+        suite.test( "event_window", context -> {
+            Async async = context.async();
+            Database mission = context.get("mission");
+            Design design = context.get("design");
+            View view = design.getView(Network.DefaultView);
+
+            // stamp events from two sources the way the simulator does, a second apart
+            long start = 1600000000000L;
+            List<JsonObject> events = new ArrayList<>();
+            for (int n = 0; n<60; n++) {
+                long time = start + n*1000;
+                String source = (n%2==0) ? "s1" : "s2";
+                events.add( new JsonObject()
+                        .put("_id", TimeRange.stamp(time)+"-"+source)
+                        .put("time", time)
+                        .put("stamp", TimeRange.stamp(time))
+                        .put("source", source)
+                        .put("target", "r1")
+                        .put("class", "strobe")
+                        .put("sic", "a")
+                        .put("tap", "b")
+                        .put("angle", n) );
+            }
+
+            mission.putDocs( events ).compose( results -> {
+                // the window includes the 10th event and excludes the 20th
+                TimeRange window = new TimeRange( start + 10*1000, start + 20*1000 );
+                TimeRange filtered = new TimeRange( start + 10*1000, start + 20*1000, "s2" );
+                return CompositeFuture.all( window.query(view), filtered.query(view) );
+            }).onSuccess( results -> {
+                JsonArray all = results.<JsonObject>resultAt(0).getJsonArray("rows");
+                context.assertEquals( all.size(), 10 );
+                context.assertEquals( all.getJsonObject(0).getJsonObject("value").getLong("time"), start + 10*1000 );
+                context.assertEquals( all.getJsonObject(9).getJsonObject("value").getLong("time"), start + 19*1000 );
+
+                JsonArray s2 = results.<JsonObject>resultAt(1).getJsonArray("rows");
+                context.assertEquals( s2.size(), 5 );
+                s2.forEach( row -> context.assertEquals(
+                        ((JsonObject)row).getJsonObject("value").getString("source"), "s2") );
+                async.complete();
+            }).onFailure( context::fail );
+        } );
+
+        suite.test( "shared_pages", context -> {
+            Async async = context.async();
+            Couch client = context.get("client");
+            Database mission = context.get("mission");
+            Design design = context.get("design");
+            View view = design.getView(Network.DefaultView);
+
+            // the earlier tests' loads warm the index in the background through the same queries, so wait that out
+            mission.warm().onComplete( warmed -> {
+                // identical queries asked for at once share one request, a different one gets its own
+                long shared = client.getQueries().getShared();
+                List<Future> pages = new ArrayList<>();
+                for (int n = 0; n<5; n++)
+                    pages.add( view.getPage(null, 10) );
+                pages.add( view.getPage(null, 20) );
+                context.assertEquals( client.getQueries().size(), 2 );
+
+                CompositeFuture.all( pages ).onSuccess( results -> {
+                    context.assertEquals( client.getQueries().getShared() - shared, 4L );
+                    context.assertTrue( results.resultAt(0) == results.resultAt(4) );
+                    context.assertTrue( results.resultAt(0) != results.resultAt(5) );
+                    context.assertEquals( client.getQueries().size(), 0 );
+
+                    // and once they've finished, the next one asks again
+                    view.getPage(null, 10).onSuccess( page -> {
+                        context.assertTrue( page != results.resultAt(0) );
+                        async.complete();
+                    });
+                }).onFailure( context::fail );
+            });
+        } );
+
+        // make sure lazy reads ask CouchDB not to wait for the index, and new designs and bulk loads warm the indexes.
+        // This needs its own stub to see the requests, even when the other tests run against a live CouchDB.
+        suite.test( "lazy_views", context -> {
+            Async async = context.async();
+            Vertx vertx = context.get("vertx");
+            CouchStub stub = new CouchStub(vertx);
+            Network network = new Network();
+            String path = "/test_lazy/_design/" + Network.DESIGN_NAME + "/_view/" + Network.DefaultView;
+
+            List<JsonObject> docs = new ArrayList<>();
+            for (int n = 0; n<50; n++)
+                docs.add( new JsonObject()
+                        .put("_id", String.format("%05d", n*100) + "-lazy")
+                        .put("time", n*100)
+                        .put("stamp", String.format("%05d", n*100))
+                        .put("source", "lazy")
+                        .put("class", "strobe")
+                        .put("angle", n) );
+
+            stub.listen().compose( port -> {
+                Couch client = new Couch(vertx, "localhost", port);
+                return client.getSession(CouchStub.Name, CouchStub.Password).compose( token -> client.putDatabase("test_lazy") )
+                        // the new design is warmed in the background, then again once the documents are loaded
+                        .compose( mission -> network.getDesignDocument()
+                                .compose( ddoc -> mission.putDesign(network.getName(), ddoc) )
+                                .compose( design -> TestCouchEvents.until( vertx,
+                                        () -> stub.getRequests(path, "limit=0").size()==1 ).map(design) )
+                                .compose( design -> mission.putDocs(docs)
+                                        .compose( loaded -> TestCouchEvents.until( vertx,
+                                                () -> stub.getRequests(path, "limit=0").size()==2 ) )
+                                        .map(design) ) )
+                        .compose( design -> {
+                            View view = design.getView(Network.DefaultView);
+                            View lazy = view.lazy();
+                            context.assertTrue( lazy.isLazy() );
+                            context.assertFalse( view.isLazy() );
+                            return CompositeFuture.all( view.getPage(null, 25), lazy.getPage(null, 25) );
+                        })
+                        .compose( pages -> {
+                            // once the indexes are warm, a lazy read sees the same rows as one which waits for the index
+                            JsonObject page = pages.resultAt(0);
+                            context.assertEquals( page.getJsonArray("rows").size(), 25 );
+                            context.assertEquals( page.getJsonArray("rows"), pages.<JsonObject>resultAt(1).getJsonArray("rows") );
+                            context.assertEquals( page.getString("next"), pages.<JsonObject>resultAt(1).getString("next") );
+
+                            // and only the lazy one told CouchDB not to wait
+                            List<CouchStub.Request> reads = stub.getRequests(path, "limit=26");
+                            context.assertEquals( reads.size(), 2 );
+                            context.assertEquals( stub.getRequests(path, "limit=26", "update=lazy", "stable=true").size(), 1 );
+                            context.assertEquals( reads.stream().filter( read -> read.params.contains("update") ).count(), 1L );
+                            return client.deleteDatabase("test_lazy");
+                        })
+                        .compose( v -> client.deleteSession() );
+            })
+            .compose( v -> stub.close() )
+            .onSuccess( v -> async.complete() )
+            .onFailure( context::fail );
+        } );
+
         // TODO add a test for accessing a Product's view of events...
 
         // delete the test mission database, then the client
@@ -141,6 +327,18 @@ public class TestCouchView {
                         new ReportOptions().setTo("console")));
     }
 
+    /** Follows the 'next' cursors until the view is exhausted, collecting all the rows.
+     * @return the number of pages read */
+    private static Future<Integer> pageThrough(View view, Cursor after, int limit, JsonArray rows) {
+        return view.getPage(after, limit).compose( page -> {
+            rows.addAll( page.getJsonArray("rows") );
+            String next = page.getString("next");
+            if (next==null)
+                return Future.succeededFuture(1);
+            return pageThrough(view, Cursor.decode(next), limit, rows).map( n -> n+1 );
+        });
+    }
+
     // a recursive approach...
 //    private Future<JsonObject> simulate(CouchClient client, int n) {
 //        JsonObject event =  new JsonObject()
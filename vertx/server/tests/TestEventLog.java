@@ -0,0 +1,185 @@
+package server.tests;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestContext;
+import io.vertx.ext.unit.TestOptions;
+import io.vertx.ext.unit.TestSuite;
+import io.vertx.ext.unit.report.ReportOptions;
+import server.couch.Design;
+import server.couch.designs.network.Network;
+import server.events.Event;
+import server.simulator.Simulator;
+import server.store.EventLog;
+import server.store.EventStore;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/** Test the local event log, searching it by time, recovering it after a crash, and archiving a mission into it. */
+public class TestEventLog {
+
+    static final long START = 1600000000000L;
+
+    public static void main(String[] args) throws IOException {
+        TestSuite suite = TestSuite.create("test_event_log");
+        Path dir = Files.createTempDirectory("test_event_log");
+        List<JsonObject> docs = new Simulator( new JsonObject().put("start", START).put("duration", 60000) )
+                .stream().collect( Collectors.toList() );
+        List<Event> simulated = docs.stream().map( Event::fromJson ).collect( Collectors.toList() );
+
+        // make sure any window read by binary search has the same events as filtering every one, before and after reopening
+        suite.test( "event_log_windows", context -> {
+            try {
+                EventLog log = EventLog.open(dir, "windows");
+                for (int n = 0; n < simulated.size(); n += 100)
+                    log.append( simulated.subList( n, Math.min(simulated.size(), n+100) ) );
+                context.assertEquals( log.size(), (long)simulated.size() );
+                context.assertEquals( log.getFirst(), simulated.get(0).getTime() );
+                context.assertEquals( log.getLast(), simulated.get(simulated.size()-1).getTime() );
+
+                checkWindows( context, log, simulated );
+                log.close();
+
+                EventLog reopened = EventLog.open(dir, "windows");
+                context.assertEquals( reopened.size(), (long)simulated.size() );
+                checkWindows( context, reopened, simulated );
+                reopened.delete();
+            } catch (IOException error) {
+                context.fail(error);
+            }
+        } );
+
+        // make sure an event earlier than the end of the log is refused without adding any of its batch
+        suite.test( "event_log_order", context -> {
+            try {
+                EventLog log = EventLog.open(dir, "order");
+                log.append( simulated.subList(100, 200) );
+                try {
+                    log.append( simulated.subList(0, 10) );
+                    context.fail("appended out of order");
+                } catch (IllegalArgumentException expected) {
+                    context.assertEquals( log.size(), 100L );
+                }
+                log.delete();
+            } catch (IOException error) {
+                context.fail(error);
+            }
+        } );
+
+        // make sure a log left half written is opened with the events which were complete, and can be appended to
+        suite.test( "event_log_recover", context -> {
+            try {
+                EventLog log = EventLog.open(dir, "recover");
+                log.append( simulated.subList(0, 50) );
+                log.close();
+
+                // cut the last event short, and leave a partial record after it
+                try (RandomAccessFile events = new RandomAccessFile( dir.resolve("recover" + EventLog.Events).toFile(), "rw" );
+                     RandomAccessFile times = new RandomAccessFile( dir.resolve("recover" + EventLog.Times).toFile(), "rw" )) {
+                    events.setLength( events.length() - 3 );
+                    times.setLength( times.length() + 5 );
+                }
+
+                EventLog recovered = EventLog.open(dir, "recover");
+                context.assertEquals( recovered.size(), 49L );
+                recovered.append( simulated.subList(49, 60) );
+                context.assertEquals( recovered.size(), 60L );
+                context.assertEquals( recovered.get(59).getId(), simulated.get(59).getId() );
+                recovered.delete();
+            } catch (IOException error) {
+                context.fail(error);
+            }
+        } );
+
+        // make sure archiving a mission copies its whole events view in view order, over several pages, and that a
+        // store started afterwards finds the log
+        suite.test( "event_store_archive", context -> {
+            Async async = context.async();
+            Vertx vertx = Vertx.vertx();
+            EventStore store = new EventStore( vertx, dir.toString() );
+            Network network = new Network();
+
+            CouchStub.connect( vertx ).compose( client -> client.putDatabase("test_event_log")
+                    .compose( mission -> network.getDesignDocument()
+                            .compose( ddoc -> mission.putDesign(network.getName(), ddoc) )
+                            .compose( design -> mission.putDocs(docs) ) )
+                    .compose( loaded -> new Design( client, "test_event_log", Network.DESIGN_NAME )
+                            .getView( Network.DefaultView ).getPage( null, docs.size() ) )
+                    .compose( view -> store.archive( client, "test_event_log", 100 )
+                            .compose( summary -> store.get("test_event_log").map( log -> {
+                                List<String> expected = new ArrayList<>();
+                                view.getJsonArray("rows").forEach( row -> expected.add( ((JsonObject)row).getString("id") ) );
+                                List<String> archived = new ArrayList<>();
+                                log.read().forEachRemaining( event -> archived.add( event.getId() ) );
+
+                                context.assertTrue( store.isArchived("test_event_log") );
+                                context.assertTrue( expected.size() > 100 );
+                                context.assertEquals( summary.getLong("events"), (long)expected.size() );
+                                context.assertEquals( archived, expected );
+                                return summary;
+                            })) )
+                    .compose( summary -> reload( dir, summary ) )
+                    .compose( reloaded -> client.deleteDatabase("test_event_log") )
+                    .compose( v -> client.deleteSession() )
+            ).onSuccess( v -> {
+                store.close();
+                vertx.close( closed -> async.complete() );
+            }).onFailure( context::fail );
+        } );
+
+        // just write the results to the console for right now
+        suite.run(
+                new TestOptions().addReporter(
+                        new ReportOptions().setTo("console")));
+    }
+
+    /** Checks a store started after the archive finds it on disk, and nothing else, without being told about it */
+    static Future<Void> reload(Path dir, JsonObject summary) {
+        Vertx vertx = Vertx.vertx();
+        EventStore store = new EventStore( vertx, dir.toString() );
+        return store.load()
+                .compose( loaded -> {
+                    if (store.isArchived("missing") || !store.isArchived("test_event_log"))
+                        return Future.failedFuture("the archived missions weren't loaded");
+                    return store.get("missing").compose( missing -> missing!=null
+                            ? Future.failedFuture("a mission which wasn't archived has a log")
+                            : store.get("test_event_log") );
+                })
+                .compose( log -> log.size()==summary.getLong("events")
+                        ? Future.<Void>succeededFuture()
+                        : Future.failedFuture("the loaded log has " + log.size() + " events") )
+                .onComplete( checked -> {
+                    store.close();
+                    vertx.close();
+                });
+    }
+
+    /** Compares windows of the log, including ones which start and end on runs of equal times, with the events */
+    private static void checkWindows(TestContext context, EventLog log, List<Event> events) {
+        long end = events.get(events.size()-1).getTime();
+        for (long start = START - 1000; start <= end + 1000; start += 2345)
+            for (long duration : new long[] { 0, 1, 100, 5000 }) {
+                long from = start;
+                long to = start + duration;
+                String source = start % 2==0 ? null : events.get(0).getSource();
+                List<String> expected = events.stream()
+                        .filter( event -> event.getTime() >= from && event.getTime() < to )
+                        .filter( event -> source==null || source.equals(event.getSource()) )
+                        .map( Event::getId )
+                        .collect( Collectors.toList() );
+                List<String> read = new ArrayList<>();
+                Iterator<Event> window = log.read( from, to, source );
+                window.forEachRemaining( event -> read.add( event.getId() ) );
+                context.assertEquals( read, expected );
+            }
+    }
+}
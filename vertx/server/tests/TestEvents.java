@@ -0,0 +1,99 @@
+package server.tests;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestOptions;
+import io.vertx.ext.unit.TestSuite;
+import io.vertx.ext.unit.report.ReportOptions;
+import server.couch.designs.network.Network;
+import server.events.Event;
+import server.events.EventCodec;
+import server.events.Plot;
+import server.events.Strobe;
+
+/** Test the typed events and their event bus codec, which don't need a CouchDB instance. */
+public class TestEvents {
+
+    public static void main(String[] args) {
+        TestSuite suite = TestSuite.create("test_events");
+
+        // make sure events make the same view rows as the map function
+        suite.test( "event_row", context -> {
+            JsonObject doc = plot();
+            Event event = Event.fromJson(doc);
+            context.assertTrue( event instanceof Plot );
+            context.assertEquals( event.toRow(), Network.toRow(doc) );
+
+            // fields other classes don't have are left out
+            JsonObject strobe = plot().put("class", "strobe");
+            context.assertTrue( Event.fromJson(strobe) instanceof Strobe );
+            context.assertFalse( Event.fromJson(strobe).toJson().containsKey("range") );
+        } );
+
+        // make sure an event survives the wire, including several in one buffer
+        suite.test( "event_codec", context -> {
+            EventCodec codec = new EventCodec();
+            Buffer buffer = Buffer.buffer().appendString("header");
+            codec.encodeToWire( buffer, Event.fromJson(plot()) );
+            int second = buffer.length();
+            codec.encodeToWire( buffer, Event.fromJson(plot().put("sic", "a").putNull("tap").put("class", "unknown")) );
+
+            Event first = codec.decodeFromWire( 6, buffer );
+            context.assertEquals( first.toRow(), Network.toRow(plot()) );
+            Event other = codec.decodeFromWire( second, buffer );
+            context.assertEquals( other.getType(), "unknown" );
+            context.assertEquals( other.getSic(), "a" );
+            context.assertNull( other.getTap() );
+
+            // strings too long for a short length, e.g. a large JSON sic, come through whole
+            StringBuilder sic = new StringBuilder();
+            while (sic.length() < 40000)
+                sic.append("sic \u00e9 ");
+            Buffer large = Buffer.buffer();
+            codec.encodeToWire( large, Event.fromJson(plot().put("sic", sic.toString())) );
+            Event decoded = codec.decodeFromWire( 0, large );
+            context.assertEquals( decoded.getSic(), sic.toString() );
+            context.assertEquals( decoded.getType(), "plot" );
+        } );
+
+        // make sure local consumers get the event that was sent, rather than a copy
+        suite.test( "event_bus", context -> {
+            Async async = context.async();
+            Vertx vertx = Vertx.vertx();
+            EventCodec.register(vertx);
+            EventCodec.register(vertx); // registering again is harmless
+
+            Event sent = Event.fromJson(plot());
+            vertx.eventBus().<Event>consumer( "test.events", message -> {
+                context.assertTrue( message.body()==sent );
+                vertx.close( v -> async.complete() );
+            });
+            vertx.eventBus().publish( "test.events", sent );
+        } );
+
+        // just write the results to the console for right now
+        suite.run(
+                new TestOptions().addReporter(
+                        new ReportOptions().setTo("console")));
+    }
+
+    static JsonObject plot() {
+        return new JsonObject()
+                .put("_id", "2020-08-01T00:00:00.000Z-s1")
+                .put("time", 1596240000000L)
+                .put("stamp", "2020-08-01T00:00:00.000Z")
+                .put("source", "s1")
+                .put("target", "r1")
+                .put("class", "plot")
+                .put("sic", 1L)
+                .put("tap", "g")
+                .put("angle", 92.5)
+                .put("range", 0.25)
+                .put("lat", 32.1)
+                .put("lon", -110.9)
+                .put("glyph", "circle")
+                .put("power", 1.0);
+    }
+}
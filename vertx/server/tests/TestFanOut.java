@@ -0,0 +1,87 @@
+package server.tests;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestOptions;
+import io.vertx.ext.unit.TestSuite;
+import io.vertx.ext.unit.report.ReportOptions;
+import server.FanOut;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/** Test querying missions concurrently and merging their rows, which doesn't need a CouchDB instance. */
+public class TestFanOut {
+
+    public static void main(String[] args) {
+        TestSuite suite = TestSuite.create("test_fan_out");
+
+        // make sure no more than the limit run at once, and the results keep their order
+        suite.test( "fan_out_bounded", context -> {
+            Async async = context.async();
+            Vertx vertx = Vertx.vertx();
+            int[] running = {0};
+            int[] most = {0};
+
+            List<Supplier<Future<Integer>>> tasks = new ArrayList<>();
+            for (int n = 0; n<20; n++) {
+                int task = n;
+                tasks.add( () -> {
+                    running[0]++;
+                    most[0] = Math.max(most[0], running[0]);
+                    Promise<Integer> promise = Promise.promise();
+                    vertx.setTimer( 1 + (task*7)%10, id -> {
+                        running[0]--;
+                        if (task==13)
+                            promise.fail("unlucky");
+                        else
+                            promise.complete(task);
+                    });
+                    return promise.future();
+                });
+            }
+
+            // run on one context, as a verticle would, so the tasks' timers don't race each other over the counts
+            vertx.runOnContext( start -> FanOut.bounded( tasks, 4 ).onSuccess( results -> {
+                context.assertEquals( most[0], 4 );
+                context.assertEquals( results.size(), 20 );
+                for (int n = 0; n<20; n++)
+                    if (n==13)
+                        context.assertTrue( results.get(n).failed() );
+                    else
+                        context.assertEquals( results.get(n).result(), n );
+                vertx.close( v -> async.complete() );
+            }) );
+        } );
+
+        // make sure rows from every list come out in key order
+        suite.test( "fan_out_merge", context -> {
+            List<JsonArray> lists = new ArrayList<>();
+            for (int list = 0; list<3; list++) {
+                JsonArray rows = new JsonArray();
+                for (int n = list; n<30; n += 3)
+                    rows.add( new JsonObject()
+                            .put("id", "e"+n)
+                            .put("key", new JsonArray().add( String.format("%05d", n) ).add("s"+list)) );
+                lists.add( rows );
+            }
+            lists.add( new JsonArray() );
+
+            Iterator<JsonObject> merged = FanOut.merge( lists, FanOut.ByKey );
+            for (int n = 0; n<30; n++)
+                context.assertEquals( merged.next().getString("id"), "e"+n );
+            context.assertFalse( merged.hasNext() );
+        } );
+
+        // just write the results to the console for right now
+        suite.run(
+                new TestOptions().addReporter(
+                        new ReportOptions().setTo("console")));
+    }
+}
@@ -0,0 +1,214 @@
+package server.tests;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestOptions;
+import io.vertx.ext.unit.TestSuite;
+import io.vertx.ext.unit.report.ReportOptions;
+import server.couch.BulkWriter;
+import server.couch.Couch;
+import server.couch.Database;
+import server.ingest.ExportStream;
+import server.ingest.Ingest;
+import server.ingest.IteratorStream;
+import server.ingest.JsonLines;
+import server.simulator.Simulator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Test streaming events into a slow database without overwhelming it, and exporting and importing whole missions,
+ * using the stub since it can be made slow. */
+public class TestIngest {
+
+    public static String TEST_MISSION = "test_ingest";
+
+    public static void main(String[] args) {
+        TestSuite suite = TestSuite.create("test_ingest");
+
+        suite.before( context -> {
+            Async async = context.async();
+            Vertx vertx = Vertx.vertx();
+            context.put("vertx", vertx);
+
+            CouchStub stub = new CouchStub(vertx).latency(10, 10);
+            context.put("stub", stub);
+            stub.listen().compose( port -> {
+                Couch client = new Couch(vertx, "localhost", port);
+                context.put("client", client);
+                return client.getSession(CouchStub.Name, CouchStub.Password)
+                        .compose( session -> client.putDatabase(TEST_MISSION) );
+            }).onSuccess( mission -> {
+                context.put("mission", mission);
+                async.complete();
+            }).onFailure( context::fail );
+        });
+
+        // make sure a simulation is written in full, with no more than the limit of requests or documents outstanding
+        suite.test( "ingest_simulation", context -> {
+            Async async = context.async();
+            Vertx vertx = context.get("vertx");
+            Database mission = context.get("mission");
+
+            JsonObject config = new JsonObject().put("start", 1600000000000L).put("duration", 120000);
+            long expected = new Simulator(config).stream().count();
+
+            int[] most = {0, 0};
+            BulkWriter writer = new BulkWriter(mission, 50, 2, 100) {
+                @Override
+                public BulkWriter write(JsonObject doc, Handler<AsyncResult<Void>> handler) {
+                    most[0] = Math.max(most[0], getQueued());
+                    most[1] = Math.max(most[1], getInFlight());
+                    return super.write(doc, handler);
+                }
+            };
+            IteratorStream<JsonObject> events = new IteratorStream<>(vertx, new Simulator(config).iterator());
+
+            Ingest.run( events, writer ).onSuccess( summary -> {
+                context.assertEquals( summary.getLong("written"), expected );
+                context.assertEquals( summary.getLong("rejected"), 0L );
+                context.assertEquals( writer.getQueued(), 0 );
+
+                // the simulator was paused rather than buffered while the writer was full
+                context.assertTrue( most[0] <= 50 * 3 );
+                context.assertTrue( most[1] <= 2 );
+                async.complete();
+            }).onFailure( context::fail );
+        } );
+
+        // make sure lines are parsed wherever the chunks split them, and blank lines are skipped
+        suite.test( "ingest_lines", context -> {
+            Async async = context.async();
+            Vertx vertx = context.get("vertx");
+
+            String text = "{\"n\":1}\n\n{\"n\":2}\r\n  {\"n\":3}\n";
+            List<Buffer> chunks = new ArrayList<>();
+            for (int n = 0; n < text.length(); n += 5)
+                chunks.add( Buffer.buffer( text.substring(n, Math.min(text.length(), n+5)) ) );
+
+            List<Integer> read = new ArrayList<>();
+            JsonLines lines = new JsonLines( new IteratorStream<>(vertx, chunks.iterator(), 1) );
+            lines.handler( json -> read.add( json.getInteger("n") ) );
+            lines.exceptionHandler( context::fail );
+            lines.endHandler( v -> {
+                context.assertEquals( read.toString(), "[1, 2, 3]" );
+                async.complete();
+            });
+        } );
+
+        // make sure the last line is read when the input doesn't end with a newline
+        suite.test( "ingest_unterminated", context -> {
+            Async async = context.async();
+            Vertx vertx = context.get("vertx");
+
+            String text = "{\"n\":1}\n{\"n\":2}\n{\"n\":3}";
+            List<Buffer> chunks = new ArrayList<>();
+            for (int n = 0; n < text.length(); n += 5)
+                chunks.add( Buffer.buffer( text.substring(n, Math.min(text.length(), n+5)) ) );
+
+            List<Integer> read = new ArrayList<>();
+            JsonLines lines = new JsonLines( new IteratorStream<>(vertx, chunks.iterator(), 1) );
+            lines.handler( json -> read.add( json.getInteger("n") ) );
+            lines.exceptionHandler( context::fail );
+            lines.endHandler( v -> {
+                context.assertEquals( read.toString(), "[1, 2, 3]" );
+                context.assertEquals( lines.getLine(), 3L );
+                async.complete();
+            });
+        } );
+
+        // make sure a bad line fails the import, saying where it was, after loading what came before it
+        suite.test( "ingest_bad_line", context -> {
+            Async async = context.async();
+            Vertx vertx = context.get("vertx");
+            Database mission = context.get("mission");
+
+            List<Buffer> chunks = new ArrayList<>();
+            chunks.add( Buffer.buffer("{\"_id\":\"bad-1\",\"time\":1}\n{\"_id\":\"bad-2\",\"time\":2}\n") );
+            chunks.add( Buffer.buffer("not json\n{\"_id\":\"bad-4\",\"time\":4}\n") );
+            BulkWriter writer = new BulkWriter(mission, 10, 1, 10);
+
+            Ingest.run( new JsonLines( new IteratorStream<>(vertx, chunks.iterator()) ), writer ).onComplete( result -> {
+                context.assertTrue( result.failed() );
+                context.assertTrue( result.cause().getMessage().startsWith("Line 3") );
+                context.assertEquals( writer.getWritten(), 2L );
+                async.complete();
+            });
+        } );
+
+        // make sure an export imported elsewhere reproduces the mission, revisions and all, and can be imported again
+        suite.test( "export_import", context -> {
+            Async async = context.async();
+            Vertx vertx = context.get("vertx");
+            Couch client = context.get("client");
+
+            List<JsonObject> docs = new ArrayList<>();
+            for (int n = 0; n<25; n++)
+                docs.add( new JsonObject().put("_id", String.format("doc-%03d", n)).put("n", n) );
+
+            Buffer[] exported = new Buffer[2];
+            client.putDatabase("test_export").compose( original ->
+                original.putDocs( docs )
+                    .compose( results -> export( original ) )
+            ).compose( buffer -> {
+                exported[0] = buffer;
+                return client.putDatabase("test_export_copy");
+            }).compose( copy -> {
+                List<Buffer> chunks = new ArrayList<>();
+                for (int n = 0; n < exported[0].length(); n += 100)
+                    chunks.add( exported[0].getBuffer( n, Math.min(exported[0].length(), n+100) ) );
+                BulkWriter writer = copy.getWriter().setNewEdits(false);
+                return Ingest.run( new JsonLines( new IteratorStream<>(vertx, chunks.iterator()) ), writer )
+                        .compose( summary -> {
+                            context.assertEquals( summary.getLong("written"), 25L );
+
+                            // importing the same revisions again changes nothing
+                            BulkWriter again = copy.getWriter().setNewEdits(false);
+                            return Ingest.run( new JsonLines( new IteratorStream<>(vertx, chunks.iterator()) ), again );
+                        })
+                        .compose( summary -> export( copy ) );
+            }).onSuccess( copied -> {
+                context.assertEquals( copied.toString(), exported[0].toString() );
+                context.assertEquals( copied.toString().split("\n").length, 25 );
+                client.deleteDatabase("test_export")
+                        .compose( v -> client.deleteDatabase("test_export_copy") )
+                        .onSuccess( v -> async.complete() )
+                        .onFailure( context::fail );
+            }).onFailure( context::fail );
+        } );
+
+        suite.after( context -> {
+            Async async = context.async();
+            Vertx vertx = context.get("vertx");
+            Couch client = context.get("client");
+            CouchStub stub = context.get("stub");
+            client.deleteDatabase(TEST_MISSION)
+                .compose( v -> client.deleteSession() )
+                .compose( v -> stub.close() )
+                .onSuccess( v -> vertx.close( closed -> async.complete() ) )
+                .onFailure( context::fail );
+        });
+
+        // just write the results to the console for right now
+        suite.run(
+                new TestOptions().addReporter(
+                        new ReportOptions().setTo("console")));
+    }
+
+    /** @return the whole export of the database, read in pages smaller than it */
+    private static Future<Buffer> export(Database db) {
+        Promise<Buffer> promise = Promise.promise();
+        Buffer buffer = Buffer.buffer();
+        ExportStream export = new ExportStream(db, 7);
+        export.exceptionHandler( promise::fail );
+        export.endHandler( v -> promise.complete(buffer) );
+        export.handler( buffer::appendBuffer );
+        return promise.future();
+    }
+}
@@ -0,0 +1,260 @@
+package server.tests;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.WriteStream;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestOptions;
+import io.vertx.ext.unit.TestSuite;
+import io.vertx.ext.unit.report.ReportOptions;
+import server.couch.Design;
+import server.couch.designs.network.Network;
+import server.events.Event;
+import server.replay.Replay;
+import server.replay.ReplaySource;
+import server.simulator.Simulator;
+import server.store.EventLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/** Test playing missions back at speed, as fast as possible, and with seeks and pauses, from a log and from the view. */
+public class TestReplay {
+
+    static final long START = 1600000000000L;
+    static final long DURATION = 20000;
+
+    /** Collects what a replay writes, noting when each event arrived, and can be made to report it is full */
+    static class Collector implements WriteStream<JsonObject> {
+        List<JsonObject> events = new ArrayList<>();
+        List<Long> arrived = new ArrayList<>();
+        List<JsonObject> statuses = new ArrayList<>();
+        Consumer<JsonObject> onStatus = status -> {};
+        int fullEvery = 0;
+        Handler<Void> drainHandler;
+
+        @Override
+        public Collector write(JsonObject json) {
+            if (json.containsKey("type")) {
+                statuses.add(json);
+                onStatus.accept(json);
+            } else {
+                events.add(json);
+                arrived.add( System.currentTimeMillis() );
+            }
+            return this;
+        }
+
+        @Override
+        public Collector write(JsonObject json, Handler<AsyncResult<Void>> handler) {
+            write(json);
+            handler.handle( Future.succeededFuture() );
+            return this;
+        }
+
+        @Override
+        public void end() {}
+
+        @Override
+        public void end(Handler<AsyncResult<Void>> handler) {}
+
+        @Override
+        public Collector exceptionHandler(Handler<Throwable> handler) { return this; }
+
+        @Override
+        public Collector setWriteQueueMaxSize(int maxSize) { return this; }
+
+        @Override
+        public boolean writeQueueFull() {
+            return fullEvery > 0 && events.size() % fullEvery==0;
+        }
+
+        @Override
+        public Collector drainHandler(Handler<Void> handler) {
+            this.drainHandler = handler;
+            return this;
+        }
+
+        List<String> ids() {
+            return events.stream().map( row -> row.getString("id") ).collect( Collectors.toList() );
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        TestSuite suite = TestSuite.create("test_replay");
+        Path dir = Files.createTempDirectory("test_replay");
+        List<JsonObject> docs = new Simulator( new JsonObject().put("start", START).put("duration", DURATION) )
+                .stream().collect( Collectors.toList() );
+        List<String> ids = docs.stream().map( doc -> doc.getString("_id") ).collect( Collectors.toList() );
+
+        suite.before( context -> {
+            Vertx vertx = Vertx.vertx();
+            context.put("vertx", vertx);
+            try {
+                EventLog log = EventLog.open(dir, "replay");
+                log.append( docs.stream().map( Event::fromJson ).collect( Collectors.toList() ) );
+                context.put("log", log);
+            } catch (IOException error) {
+                context.fail(error);
+            }
+        });
+
+        // make sure events are played no sooner than they happened, scaled by the speed, across several pages
+        suite.test( "replay_paced", context -> {
+            Async async = context.async();
+            Vertx vertx = context.get("vertx");
+            EventLog log = context.get("log");
+
+            Collector out = new Collector();
+            long started = System.currentTimeMillis();
+            out.onStatus = status -> {
+                if (!status.getBoolean("ended"))
+                    return;
+                context.assertEquals( out.ids(), ids );
+                for (int n = 0; n < out.events.size(); n++) {
+                    long due = (out.events.get(n).getJsonObject("value").getLong("time") - log.getFirst()) / 100;
+                    context.assertTrue( out.arrived.get(n) - started >= due - 1 );
+                }
+                context.assertTrue( System.currentTimeMillis() - started >= (log.getLast() - log.getFirst()) / 100 );
+                async.complete();
+            };
+            new Replay( vertx, ReplaySource.of(log, 100), out ).speed(100).seek(null);
+        } );
+
+        // make sure playing as fast as possible plays everything, waiting whenever the output is full
+        suite.test( "replay_max", context -> {
+            Async async = context.async();
+            Vertx vertx = context.get("vertx");
+            EventLog log = context.get("log");
+
+            Collector out = new Collector();
+            out.fullEvery = 37;
+            out.onStatus = status -> {
+                if (status.getBoolean("ended")) {
+                    context.assertEquals( out.ids(), ids );
+                    async.complete();
+                }
+            };
+            new Replay( vertx, ReplaySource.of(log, 50), out ).speed(Replay.Max).seek(null);
+
+            // drain the output whenever the replay is waiting on it
+            vertx.setPeriodic( 5, id -> {
+                Handler<Void> drain = out.drainHandler;
+                out.drainHandler = null;
+                if (drain!=null)
+                    drain.handle(null);
+            });
+        } );
+
+        // make sure nothing plays while paused, and a seek plays on from the first event at or after its time
+        suite.test( "replay_seek_pause", context -> {
+            Async async = context.async();
+            Vertx vertx = context.get("vertx");
+            EventLog log = context.get("log");
+
+            long middle = START + DURATION / 2;
+            Collector out = new Collector();
+            Replay replay = new Replay( vertx, ReplaySource.of(log, 100), out ).pause().speed(10);
+            replay.seek(middle);
+
+            vertx.setTimer( 100, paused -> {
+                context.assertTrue( out.events.isEmpty() );
+                context.assertEquals( out.statuses.get(0).getLong("time"), middle );
+                context.assertTrue( out.statuses.get(0).getBoolean("paused") );
+                out.onStatus = status -> {
+                    if (!status.getBoolean("ended"))
+                        return;
+                    context.assertEquals( out.ids(), ids.subList( (int)log.seek(middle), ids.size() ) );
+                    async.complete();
+                };
+                replay.speed(Replay.Max).play();
+            });
+        } );
+
+        // make sure the view plays in [stamp, source] order from a seek, fetching pages ahead of the playhead,
+        // however the replay is paused or sped up while it waits for the first page
+        suite.test( "replay_view", context -> {
+            Async async = context.async();
+            Vertx vertx = context.get("vertx");
+            long middle = START + DURATION / 2;
+            Network network = new Network();
+
+            CouchStub.connect( vertx ).compose( client -> client.putDatabase("test_replay")
+                    .compose( mission -> network.getDesignDocument()
+                            .compose( ddoc -> mission.putDesign(network.getName(), ddoc) )
+                            .compose( design -> mission.putDocs(docs) ) )
+                    .compose( loaded -> {
+                        Design design = new Design( client, "test_replay", Network.DESIGN_NAME );
+                        return design.getView( Network.DefaultView ).getPage( null, docs.size() ).compose( all -> {
+                            List<String> expected = new ArrayList<>();
+                            all.getJsonArray("rows").forEach( row -> {
+                                JsonObject json = (JsonObject) row;
+                                if (json.getJsonObject("value").getLong("time") >= middle)
+                                    expected.add( json.getString("id") );
+                            });
+
+                            Collector out = new Collector();
+                            Future<Void> ended = Future.future( promise -> out.onStatus = status -> {
+                                if (status.getBoolean("ended"))
+                                    promise.complete();
+                            });
+                            new Replay( vertx, ReplaySource.of( design.getView(Network.DefaultView), 20 ), out )
+                                    .speed(Replay.Max).seek(middle);
+                            return ended.compose( v -> {
+                                context.assertTrue( expected.size() > 20 );
+                                context.assertEquals( out.ids(), expected );
+
+                                // controls sent while the first page is still loading mustn't lose it
+                                Collector controlled = new Collector();
+                                Replay replay = new Replay( vertx,
+                                        ReplaySource.of( design.getView(Network.DefaultView), 20 ), controlled );
+                                replay.seek(middle);
+                                replay.pause();
+                                replay.speed(Replay.Max);
+
+                                // the next status is the page arriving, still paused, so play on from there
+                                Future<Void> finished = Future.future( promise -> controlled.onStatus = status -> {
+                                    if (status.getBoolean("ended"))
+                                        promise.complete();
+                                    else if (status.getBoolean("paused"))
+                                        vertx.runOnContext( resume -> replay.play() );
+                                });
+                                return finished.map( done -> {
+                                    context.assertEquals( controlled.ids(), expected );
+                                    return done;
+                                });
+                            });
+                        });
+                    })
+                    .compose( v -> client.deleteDatabase("test_replay") )
+                    .compose( v -> client.deleteSession() )
+            ).onSuccess( v -> async.complete() )
+            .onFailure( context::fail );
+        } );
+
+        suite.after( context -> {
+            Async async = context.async();
+            Vertx vertx = context.get("vertx");
+            EventLog log = context.get("log");
+            try {
+                log.delete();
+            } catch (IOException error) {
+                context.fail(error);
+            }
+            vertx.close( closed -> async.complete() );
+        });
+
+        // just write the results to the console for right now
+        suite.run(
+                new TestOptions().addReporter(
+                        new ReportOptions().setTo("console")));
+    }
+}
@@ -0,0 +1,101 @@
+package server.tests;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.Async;
+import io.vertx.ext.unit.TestOptions;
+import io.vertx.ext.unit.TestSuite;
+import io.vertx.ext.unit.report.ReportOptions;
+import server.events.Event;
+import server.simulator.Simulator;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/** Test the sensor network simulator, and loading what it simulates into a mission. */
+public class TestSimulator {
+
+    static final long START = 1600000000000L;
+
+    public static void main(String[] args) {
+        TestSuite suite = TestSuite.create("test_simulator");
+
+        // make sure a run is in time order, has every class of event, and doesn't reuse ids
+        suite.test( "simulator_events", context -> {
+            Simulator simulator = new Simulator( new JsonObject().put("start", START).put("duration", 60000) );
+            Set<String> ids = new HashSet<>();
+            Set<String> classes = new HashSet<>();
+            long[] last = {START};
+            simulator.stream().forEach( event -> {
+                context.assertTrue( ids.add(event.getString("_id")) );
+                context.assertTrue( event.getLong("time") >= last[0] );
+                last[0] = event.getLong("time");
+                classes.add( event.getString("class") );
+            });
+            context.assertTrue( ids.size() > 0 );
+            context.assertTrue( last[0] < START + 60000 );
+            context.assertTrue( classes.contains(Event.PLOT) );
+            context.assertTrue( classes.contains(Event.TRACK) );
+            context.assertTrue( classes.contains(Event.STROBE) );
+        } );
+
+        // make sure a run is only simulated as far as it's read
+        suite.test( "simulator_lazy", context -> {
+            long year = 365L * 24 * 60 * 60 * 1000;
+            Simulator simulator = new Simulator( new JsonObject().put("start", START).put("duration", year) );
+            Iterator<JsonObject> events = simulator.iterator();
+            long time = 0;
+            for (int n = 0; n<1000; n++)
+                time = events.next().getLong("time");
+            context.assertTrue( time < START + 24 * 60 * 60 * 1000 );
+        } );
+
+        // make sure sweeping sensors in parallel gives the same events as sweeping them one at a time
+        suite.test( "simulator_parallel", context -> {
+            JsonObject config = new JsonObject()
+                    .put("start", START)
+                    .put("duration", 20000)
+                    .put("scenario", "grid")
+                    .put("laydown", Simulator.laydown(4, 200));
+
+            ForkJoinPool single = new ForkJoinPool(1);
+            ForkJoinPool several = new ForkJoinPool(4);
+            List<JsonObject> sequential = new Simulator(config, single).stream().collect(Collectors.toList());
+            List<JsonObject> parallel = new Simulator(config, several).stream().collect(Collectors.toList());
+            single.shutdown();
+            several.shutdown();
+
+            context.assertTrue( sequential.size() > 0 );
+            context.assertEquals( sequential, parallel );
+        } );
+
+        // make sure a run can be streamed straight into a mission in batches
+        suite.test( "simulator_ingest", context -> {
+            Async async = context.async();
+            Vertx vertx = Vertx.vertx();
+            Simulator simulator = new Simulator( new JsonObject().put("start", START).put("duration", 60000) );
+            long expected = new Simulator( new JsonObject().put("start", START).put("duration", 60000) ).stream().count();
+
+            CouchStub.connect( vertx ).compose( client ->
+                client.putDatabase("test_simulator").compose( mission ->
+                    mission.putDocs( simulator.iterator(), 100 ) )
+                .compose( results -> {
+                    context.assertEquals( (long)results.size(), expected );
+                    results.forEach( result -> context.assertTrue( ((JsonObject)result).getBoolean("ok", false) ) );
+                    return client.deleteDatabase("test_simulator");
+                })
+                .compose( v -> client.deleteSession() )
+            ).onSuccess( v -> vertx.close( closed -> async.complete() ) )
+            .onFailure( context::fail );
+        } );
+
+        // just write the results to the console for right now
+        suite.run(
+                new TestOptions().addReporter(
+                        new ReportOptions().setTo("console")));
+    }
+}
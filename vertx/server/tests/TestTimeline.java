@@ -0,0 +1,95 @@
+package server.tests;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.unit.TestOptions;
+import io.vertx.ext.unit.TestSuite;
+import io.vertx.ext.unit.report.ReportOptions;
+import server.timeline.Timeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Test the server side timeline buffer, which doesn't need a CouchDB instance. */
+public class TestTimeline {
+
+    public static void main(String[] args) {
+        TestSuite suite = TestSuite.create("test_timeline");
+
+        // make sure windows are read with the right bounds, even after the buffer grows
+        suite.test( "timeline_window", context -> {
+            Timeline timeline = new Timeline(1000);
+            for (int n = 0; n<5000; n++)
+                context.assertTrue( timeline.buffer( n*10, event(n*10) ) );
+            context.assertEquals( timeline.size(), 5000 );
+
+            // the window is [time-duration, time)
+            JsonArray window = timeline.window( 20000, 1000 );
+            context.assertEquals( window.size(), 100 );
+            context.assertEquals( window.getJsonObject(0).getLong("time"), 19000L );
+            context.assertEquals( window.getJsonObject(99).getLong("time"), 19990L );
+
+            // out of order events are refused, and the timeline no longer vouches for that period
+            context.assertTrue( timeline.covers( 0 ) );
+            context.assertFalse( timeline.buffer( 100, event(100) ) );
+            context.assertFalse( timeline.covers( 0 ) );
+            context.assertTrue( timeline.covers( 101 ) );
+        } );
+
+        // make sure a full timeline discards the oldest events and keeps reading in order across the wrap
+        suite.test( "timeline_wrap", context -> {
+            Timeline timeline = new Timeline(1000, 1024);
+            for (int n = 0; n<1500; n++)
+                timeline.buffer( n, event(n) );
+
+            context.assertEquals( timeline.size(), 1024 );
+            context.assertEquals( timeline.start(), 1500L-1024 );
+            context.assertEquals( timeline.end(), 1499L );
+            context.assertFalse( timeline.covers( 0 ) );
+
+            JsonArray window = timeline.window( 1500, 1024 );
+            context.assertEquals( window.size(), 1024 );
+            for (int n = 0; n<window.size(); n++)
+                context.assertEquals( window.getJsonObject(n).getLong("time"), 1500L-1024+n );
+        } );
+
+        // make sure stepping dispatches each event into and out of the display window exactly once
+        suite.test( "timeline_step", context -> {
+            List<Long> occurred = new ArrayList<>();
+            List<Long> expired = new ArrayList<>();
+            Timeline timeline = new Timeline(100)
+                    .onOccur( e -> occurred.add( e.getLong("time") ) )
+                    .onExpire( e -> expired.add( e.getLong("time") ) );
+            for (int n = 0; n<100; n++)
+                timeline.buffer( n*10, event(n*10) );
+
+            for (int n = 0; n<120; n++)
+                timeline.step( 10 );
+            context.assertEquals( occurred.size(), 100 );
+            context.assertEquals( expired.size(), 100 );
+            for (int n = 0; n<100; n++) {
+                context.assertEquals( occurred.get(n), n*10L );
+                context.assertEquals( expired.get(n), n*10L );
+            }
+
+            // seeking back empties the display window, and stepping refills it
+            occurred.clear();
+            timeline.seek( 500 );
+            timeline.step( 1 );
+            context.assertEquals( occurred.size(), 11 );
+            context.assertEquals( occurred.get(0), 400L );
+        } );
+
+        // just write the results to the console for right now
+        suite.run(
+                new TestOptions().addReporter(
+                        new ReportOptions().setTo("console")));
+    }
+
+    static JsonObject event(long time) {
+        return new JsonObject()
+                .put("time", time)
+                .put("source", "sim")
+                .put("class", "strobe");
+    }
+}
@@ -0,0 +1,249 @@
+package server.timeline;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+
+/** Buffers and dispatches a sliding time window of streaming events, ported from web/timeline.js.
+ * Events are stored in a circular buffer, with their times in a primitive array and their payloads in a parallel
+ * array, so searching by time never touches the payloads. Events are dispatched when they enter and exit the moving
+ * display interval, and any interval of buffered events can be read directly with a binary search.
+ * This isn't thread safe, it should be owned by a single verticle.
+ * @author casey */
+public class Timeline {
+
+    /** The initial capacity of the buffer */
+    public static final int DefaultCapacity = 1024;
+
+    /** The most events a timeline will hold by default before it starts discarding the oldest */
+    public static final int DefaultMaxCapacity = 1 << 20;
+
+    long[] times;
+    JsonObject[] payloads;
+    int capacity;
+    int maxCapacity;
+
+    int head = 0; // the buffer index of the oldest buffered event
+    int tail = 0; // the buffer index after the newest buffered event
+    int count = 0; // the number of buffered events, so a full buffer can be told apart from an empty one
+
+    // the display interval, as offsets from the oldest buffered event so they survive reallocation and wrapping
+    int newest = 0; // the offset after the newest displayed event
+    int oldest = 0; // the offset of the oldest displayed event
+
+    long missing = Long.MIN_VALUE; // the latest time of an event which arrived out of order and wasn't buffered
+
+    long time; // current time of the display window
+    boolean started = false;
+    long duration; // period of time to dispatch to components
+
+    Handler<JsonObject> occur;
+    Handler<JsonObject> expire;
+
+    /** @param duration the length of the display window in milliseconds */
+    public Timeline(long duration) {
+        this(duration, DefaultMaxCapacity);
+    }
+
+    /** @param duration the length of the display window in milliseconds
+     * @param maxCapacity the most events buffered before the oldest are discarded */
+    public Timeline(long duration, int maxCapacity) {
+        this.duration = duration;
+        this.maxCapacity = maxCapacity;
+        this.capacity = Math.min(DefaultCapacity, maxCapacity);
+        this.times = new long[capacity];
+        this.payloads = new JsonObject[capacity];
+    }
+
+    /** Register a listener for events entering the display window, as in the 'occur' dispatch of timeline.js */
+    public Timeline onOccur(Handler<JsonObject> occur) {
+        this.occur = occur;
+        return this;
+    }
+
+    /** Register a listener for events leaving the display window, as in the 'expire' dispatch of timeline.js */
+    public Timeline onExpire(Handler<JsonObject> expire) {
+        this.expire = expire;
+        return this;
+    }
+
+    /** @return the number of events currently buffered */
+    public int size() { return count; }
+
+    public boolean isEmpty() { return count==0; }
+
+    /** @return the time of the oldest buffered event */
+    public long start() { return times[head]; }
+
+    /** @return the time of the newest buffered event */
+    public long end() { return times[prev(tail)]; }
+
+    /** @return the current time of the display window */
+    public long time() { return time; }
+
+    /** @return the time spanned by the buffered events */
+    public long span() { return isEmpty() ? 0 : end() - start(); }
+
+    /** @return the buffered time remaining ahead of the display window */
+    public long remaining() { return isEmpty() ? 0 : end() - time; }
+
+    /** @return the time before which events are expired from the display window */
+    public long expiry() { return time - duration; }
+
+    /** Add the given event to the circular buffer.
+     * @param time the event time in milliseconds, which must not be earlier than the last buffered event
+     * @param payload the event itself
+     * @return false if the event was out of order and was not buffered */
+    public boolean buffer(long time, JsonObject payload) {
+        if (count>0 && end() > time) {
+            missing = Math.max(missing, time);
+            return false;
+        }
+
+        if (!started) {
+            this.time = time;
+            started = true;
+        }
+
+        push(time, payload);
+        return true;
+    }
+
+    /** Advances the display window by the given amount of time, dispatching the events which enter and leave it. */
+    public void step(long dt) {
+        if (isEmpty())
+            return;
+
+        time += dt;
+
+        // dispatch the interval of events
+        while (newest < count && times[physical(newest)] < time) {
+            if (occur!=null)
+                occur.handle( payloads[physical(newest)] );
+            newest++;
+        }
+
+        // expire events now outside the displayed interval
+        long expired = time - duration;
+        while (oldest < newest && times[physical(oldest)] < expired) {
+            if (expire!=null)
+                expire.handle( payloads[physical(oldest)] );
+            oldest++;
+        }
+    }
+
+    /** Expires everything in the display window, then moves the window to the given time.
+     * The window is left empty, the next step dispatches the events leading up to the new time. */
+    public void seek(long time) {
+
+        // expire everything in the display window
+        while (oldest < newest) {
+            if (expire!=null)
+                expire.handle( payloads[physical(oldest)] );
+            oldest++;
+        }
+
+        // find the start of the display window in the buffer
+        this.time = time;
+        oldest = lowerBound(time - duration);
+        newest = oldest;
+    }
+
+    /** Read the buffered events in an interval, without disturbing the display window.
+     * @param time the end of the interval, exclusive
+     * @param duration the length of the interval
+     * @return the payloads of the events with times in [time-duration, time) */
+    public JsonArray window(long time, long duration) {
+        JsonArray events = new JsonArray();
+        int end = lowerBound(time);
+        for (int n = lowerBound(time - duration); n < end; n++)
+            events.add( payloads[physical(n)] );
+        return events;
+    }
+
+    /** @return whether every event from the given time onward is buffered, i.e. none have been discarded or rejected */
+    public boolean covers(long from) {
+        return !isEmpty() && start() <= from && missing < from;
+    }
+
+    /** Clears all data buffered in the timeline. */
+    public void clear() {
+        Arrays.fill(payloads, null);
+        head = tail = count = 0;
+        newest = oldest = 0;
+        time = 0;
+        missing = Long.MIN_VALUE;
+        started = false;
+    }
+
+    /** @return the logical index of the first buffered event at or after the given time */
+    int lowerBound(long time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[physical(mid)] < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /** @return the buffer index of the logical index, counting from the oldest buffered event */
+    int physical(int index) { return (head + index) % capacity; }
+
+    int next(int index) { return (index+1) % capacity; }
+
+    int prev(int index) { return (index-1+capacity) % capacity; } // avoid using comparison...
+
+    void push(long time, JsonObject payload) {
+        if (count==capacity) {
+            if (capacity < maxCapacity)
+                reallocate();
+            else
+                shift();
+        }
+
+        times[tail] = time;
+        payloads[tail] = payload;
+        tail = next(tail);
+        count++;
+    }
+
+    /** Discard the oldest event, first expiring it from the display window if need be */
+    void shift() {
+        if (count==0)
+            return;
+
+        if (oldest==0 && newest>0 && expire!=null)
+            expire.handle( payloads[head] );
+        oldest = Math.max(0, oldest-1);
+        newest = Math.max(0, newest-1);
+
+        payloads[head] = null;
+        head = next(head);
+        count--;
+    }
+
+    void reallocate() {
+        int size = Math.min(capacity * 2, maxCapacity);
+        long[] t = new long[size];
+        JsonObject[] p = new JsonObject[size];
+
+        // copy old data to front of new buffer
+        for (int i = 0; i < count; i++) {
+            t[i] = times[physical(i)];
+            p[i] = payloads[physical(i)];
+        }
+
+        // swap buffers, reset pointers
+        head = 0;
+        tail = count;
+        times = t;
+        payloads = p;
+        capacity = size;
+    }
+}
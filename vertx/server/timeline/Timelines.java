@@ -0,0 +1,93 @@
+package server.timeline;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.MessageConsumer;
+import server.couch.ChangeFeeds;
+import server.couch.designs.network.Network;
+import server.events.Event;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/** Keeps a Timeline of recent events for each mission product someone is looking at.
+ * Each timeline is filled from the mission's shared changes feed, so once it has been running for a while recent
+ * windows can be served from memory. Timelines nobody has asked for in a while are dropped, along with their
+ * subscription to the feed.
+ * This isn't thread safe, it should be owned by a single verticle.
+ * @author casey */
+public class Timelines {
+
+    /** How long in milliseconds a timeline is kept after it was last read */
+    public static final long DefaultIdle = 5 * 60 * 1000;
+
+    /** The display window of the buffered timelines, which the server doesn't step through itself */
+    static final long DisplayDuration = 60 * 1000;
+
+    Vertx vertx;
+    ChangeFeeds changes;
+    long idle;
+    long timer;
+    Map<String, Entry> timelines = new HashMap<>();
+
+    class Entry {
+        String mission;
+        Timeline timeline;
+        MessageConsumer<Event> consumer;
+        long accessed;
+    }
+
+    /** @param vertx the context which owns the timelines
+     * @param changes the change feeds the timelines are filled from
+     * @param idle how long in milliseconds to keep a timeline nobody is reading */
+    public Timelines(Vertx vertx, ChangeFeeds changes, long idle) {
+        this.vertx = vertx;
+        this.changes = changes;
+        this.idle = idle;
+        this.timer = vertx.setPeriodic( Math.max(1000, idle/2), id -> expire() );
+    }
+
+    /** Gets the timeline of the mission product, and starts buffering one if this is the first time it's been asked for.
+     * @return the timeline, or null if the product's events can't be buffered */
+    public Timeline get(String mission, String product) {
+        // we only know how to turn network event documents into view rows
+        if (!Network.DESIGN_NAME.equals(product))
+            return null;
+
+        String key = mission + "/" + product;
+        Entry entry = timelines.get(key);
+        if (entry==null) {
+            Entry created = new Entry();
+            created.mission = mission;
+            created.timeline = new Timeline(DisplayDuration);
+            created.consumer = changes.subscribeEvents( mission, message -> {
+                Event event = message.body();
+                created.timeline.buffer( event.getTime(), event.toRow() );
+            });
+            timelines.put(key, created);
+            entry = created;
+        }
+        entry.accessed = System.currentTimeMillis();
+        return entry.timeline;
+    }
+
+    /** Drops the timelines which haven't been read recently */
+    void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> entries = timelines.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (now - entry.accessed > idle) {
+                changes.unsubscribe( entry.mission, entry.consumer );
+                entries.remove();
+            }
+        }
+    }
+
+    /** Drops every timeline and stops checking for idle ones */
+    public void close() {
+        vertx.cancelTimer(timer);
+        timelines.values().forEach( entry -> changes.unsubscribe( entry.mission, entry.consumer ) );
+        timelines.clear();
+    }
+}